@@ -0,0 +1,344 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded disk cache for MMS attachments and their thumbnails.
+ *
+ * Thumbnails are generated lazily, the first time a part is shown, by decoding the part with
+ * an inSampleSize that keeps the decoded bitmap near the requested size, then rotated upright
+ * from the part's EXIF orientation. Decodes run one at a
+ * time on the cache thread, which also bounds peak bitmap memory. Files are evicted least
+ * recently used first once the cache exceeds MAX_BYTES; the LRU order survives restarts
+ * through file modification times.
+ */
+class AttachmentCache {
+    private static final String TAG = "AttachmentCache";
+
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    private static final int THUMBNAIL_QUALITY = 85;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    interface Callback {
+        void onResult(File file);
+
+        void onError(Exception e);
+    }
+
+    private static AttachmentCache instance;
+
+    private final ContentResolver contentResolver;
+    private final File directory;
+    private final Handler handler;
+
+    // File name -> size, in access order; guarded by this
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes = 0;
+    private boolean loaded = false;
+
+    static synchronized AttachmentCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new AttachmentCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AttachmentCache(Context context) {
+        this.contentResolver = context.getContentResolver();
+        this.directory = new File(context.getCacheDir(), "attachments");
+
+        HandlerThread thread = new HandlerThread("AttachmentCache");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Cached thumbnail of a part if one exists, without touching the provider
+     */
+    File getCachedThumbnail(long partId, int maxSize) {
+        return lookup(thumbnailName(partId, maxSize));
+    }
+
+    /**
+     * Thumbnail of an image part no larger than maxSize on its longer side, generated if needed
+     */
+    void getThumbnail(final long partId, final int maxSize, final Callback callback) {
+        handler.post(() -> {
+            String name = thumbnailName(partId, maxSize);
+            try {
+                File cached = lookup(name);
+                if (cached == null) {
+                    cached = store(name, out -> writeThumbnail(partId, maxSize, out));
+                }
+                callback.onResult(cached);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to create thumbnail for part " + partId, e);
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * Full-size copy of a part, e.g. for the image viewer
+     */
+    void getAttachment(final long partId, final Callback callback) {
+        handler.post(() -> {
+            String name = "part-" + partId;
+            try {
+                File cached = lookup(name);
+                if (cached == null) {
+                    cached = store(name, out -> copyPart(partId, out));
+                }
+                callback.onResult(cached);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to cache part " + partId, e);
+                callback.onError(e);
+            }
+        });
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Write a new entry through a temporary file, so readers never see a partial file
+     */
+    private File store(String name, Writer writer) throws IOException {
+        ensureLoaded();
+        File temp = new File(directory, name + ".tmp");
+        File file = new File(directory, name);
+
+        try (OutputStream out = new FileOutputStream(temp)) {
+            writer.write(out);
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot move " + temp + " into the cache");
+        }
+
+        synchronized (this) {
+            Long previous = entries.put(name, file.length());
+            totalBytes += file.length() - (previous != null ? previous : 0);
+        }
+        trimToSize();
+        return file;
+    }
+
+    private File lookup(String name) {
+        ensureLoaded();
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                return null;
+            }
+        }
+
+        File file = new File(directory, name);
+        if (!file.exists()) {
+            // Cleared by the system under storage pressure
+            synchronized (this) {
+                Long size = entries.remove(name);
+                if (size != null) totalBytes -= size;
+            }
+            return null;
+        }
+        // Persist the access for the LRU order after a restart
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    private void writeThumbnail(long partId, int maxSize, OutputStream out) throws IOException {
+        Uri partUri = partUri(partId);
+
+        // Bounds only: no pixels are allocated
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = openPart(partUri)) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Part " + partId + " is not a decodable image");
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(bounds.outWidth, bounds.outHeight, maxSize);
+        Bitmap decoded;
+        try (InputStream in = openPart(partUri)) {
+            decoded = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (decoded == null) {
+            throw new IOException("Failed to decode part " + partId);
+        }
+
+        // Scale and orientation in one pass
+        Matrix matrix = orientationMatrix(readOrientation(partUri));
+        int longer = Math.max(decoded.getWidth(), decoded.getHeight());
+        if (longer > maxSize) {
+            float scale = (float) maxSize / longer;
+            matrix.preScale(scale, scale);
+        }
+        Bitmap thumbnail = matrix.isIdentity()
+            ? decoded
+            : Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+
+        try {
+            Bitmap.CompressFormat format = thumbnail.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            if (!thumbnail.compress(format, THUMBNAIL_QUALITY, out)) {
+                throw new IOException("Failed to encode thumbnail for part " + partId);
+            }
+        } finally {
+            if (thumbnail != decoded) thumbnail.recycle();
+            decoded.recycle();
+        }
+    }
+
+    /**
+     * EXIF orientation of a part; camera JPEGs are stored sideways with a tag saying so
+     */
+    private int readOrientation(Uri partUri) {
+        try (InputStream in = openPart(partUri)) {
+            return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException | RuntimeException e) {
+            // No EXIF block, or not a format ExifInterface reads
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    static Matrix orientationMatrix(int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+            default:
+                break;
+        }
+        return matrix;
+    }
+
+    private void copyPart(long partId, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (InputStream in = openPart(partUri(partId))) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private InputStream openPart(Uri partUri) throws IOException {
+        InputStream in = contentResolver.openInputStream(partUri);
+        if (in == null) {
+            throw new IOException("Cannot open " + partUri);
+        }
+        return in;
+    }
+
+    /**
+     * Largest power of two that keeps the decoded image at least maxSize on its longer side
+     */
+    static int sampleSize(int width, int height, int maxSize) {
+        int longer = Math.max(width, height);
+        int sampleSize = 1;
+        while (longer / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void trimToSize() {
+        synchronized (this) {
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (totalBytes > MAX_BYTES && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                new File(directory, eldest.getKey()).delete();
+                totalBytes -= eldest.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Rebuild the index from disk on first use, oldest access first
+     */
+    private synchronized void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + directory);
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                // Left over from a write that didn't finish
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+        Log.d(TAG, "Loaded " + entries.size() + " cached attachments, " + totalBytes + " bytes");
+        trimToSize();
+    }
+
+    private static Uri partUri(long partId) {
+        return Uri.parse("content://mms/part/" + partId);
+    }
+
+    private static String thumbnailName(long partId, int maxSize) {
+        return "thumb-" + partId + "-" + maxSize;
+    }
+}
@@ -0,0 +1,85 @@
+package com.googlemessages.app;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+
+import java.io.File;
+
+/**
+ * Exposes the native attachment cache to JS as file:// URIs
+ */
+public class AttachmentCacheModule extends ReactContextBaseJavaModule {
+    private static final int MIN_THUMBNAIL_SIZE = 32;
+    private static final int MAX_THUMBNAIL_SIZE = 2048;
+
+    private final ReactApplicationContext reactContext;
+
+    public AttachmentCacheModule(ReactApplicationContext reactContext) {
+        super(reactContext);
+        this.reactContext = reactContext;
+    }
+
+    @Override
+    public String getName() {
+        return "AttachmentCache";
+    }
+
+    /**
+     * Get a file:// URI of a part's thumbnail, at most maxSize pixels on its longer side.
+     * Cache hits resolve immediately; misses decode on the cache thread.
+     */
+    @ReactMethod
+    public void getThumbnail(String partId, int maxSize, final Promise promise) {
+        long id;
+        try {
+            id = Long.parseLong(partId);
+        } catch (NumberFormatException e) {
+            promise.reject("INVALID_PART", "Invalid part id: " + partId);
+            return;
+        }
+
+        int size = Math.max(MIN_THUMBNAIL_SIZE, Math.min(maxSize, MAX_THUMBNAIL_SIZE));
+        AttachmentCache cache = AttachmentCache.getInstance(reactContext);
+        File cached = cache.getCachedThumbnail(id, size);
+        if (cached != null) {
+            promise.resolve(toUri(cached));
+            return;
+        }
+        cache.getThumbnail(id, size, callbackFor(promise, "THUMBNAIL_FAILED"));
+    }
+
+    /**
+     * Get a file:// URI of a full-size copy of a part
+     */
+    @ReactMethod
+    public void getAttachment(String partId, final Promise promise) {
+        long id;
+        try {
+            id = Long.parseLong(partId);
+        } catch (NumberFormatException e) {
+            promise.reject("INVALID_PART", "Invalid part id: " + partId);
+            return;
+        }
+        AttachmentCache.getInstance(reactContext).getAttachment(id, callbackFor(promise, "ATTACHMENT_FAILED"));
+    }
+
+    private static AttachmentCache.Callback callbackFor(final Promise promise, final String errorCode) {
+        return new AttachmentCache.Callback() {
+            @Override
+            public void onResult(File file) {
+                promise.resolve(toUri(file));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                promise.reject(errorCode, e.getMessage(), e);
+            }
+        };
+    }
+
+    private static String toUri(File file) {
+        return "file://" + file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,179 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of every address in the provider's canonical-addresses table and its conversation key.
+ *
+ * Recipient ids never change their address, so id -> address entries are cached for the life
+ * of the process and only unknown ids hit the provider. Every raw address maps to the key
+ * produced by PhoneNumberCanonicalizer, so "+1 555…", "1555…" and "555…" share one key.
+ * The reverse direction (key -> recipient ids) is loaded incrementally: ids only grow, so
+ * each refresh reads just the rows above the highest id seen.
+ */
+class CanonicalAddressIndex {
+    private static final String TAG = "CanonicalAddressIndex";
+
+    private static CanonicalAddressIndex instance;
+
+    private final ContentResolver contentResolver;
+    private final PhoneNumberCanonicalizer canonicalizer;
+
+    private final Map<String, String> addressById = new HashMap<>();
+    private final Map<String, String> keyByAddress = new HashMap<>();
+    private final Map<String, List<String>> idsByKey = new HashMap<>();
+    private long maxLoadedId = 0;
+
+    static synchronized CanonicalAddressIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new CanonicalAddressIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CanonicalAddressIndex(Context context) {
+        this.contentResolver = context.getContentResolver();
+        this.canonicalizer = PhoneNumberCanonicalizer.getInstance(context);
+    }
+
+    /**
+     * Conversation key of a raw address
+     */
+    String keyFor(String address) {
+        if (address == null) {
+            return null;
+        }
+        synchronized (this) {
+            String key = keyByAddress.get(address);
+            if (key == null) {
+                key = canonicalizer.canonicalize(address);
+                keyByAddress.put(address, key);
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Recipient ids of every spelling of the key's number, reading only canonical addresses
+     * added since the last call
+     */
+    List<String> recipientIdsFor(String key) {
+        if (key == null) {
+            return new ArrayList<>();
+        }
+        loadNewAddresses();
+        synchronized (this) {
+            List<String> ids = idsByKey.get(key);
+            return ids != null ? new ArrayList<>(ids) : new ArrayList<>();
+        }
+    }
+
+    private void loadNewAddresses() {
+        long after;
+        synchronized (this) {
+            after = maxLoadedId;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(
+                ThreadSummaryReader.CANONICAL_ADDRESSES_URI,
+                new String[]{"_id", "address"},
+                "_id > ?",
+                new String[]{String.valueOf(after)},
+                "_id ASC"
+            );
+            if (cursor == null) return;
+
+            int idIndex = cursor.getColumnIndexOrThrow("_id");
+            int addressIndex = cursor.getColumnIndexOrThrow("address");
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idIndex);
+                String address = cursor.getString(addressIndex);
+                if (address == null) continue;
+                String key = keyFor(address);
+                synchronized (this) {
+                    if (id <= maxLoadedId) continue;
+                    maxLoadedId = id;
+                    addressById.put(String.valueOf(id), address);
+                    List<String> ids = idsByKey.get(key);
+                    if (ids == null) {
+                        ids = new ArrayList<>(1);
+                        idsByKey.put(key, ids);
+                    }
+                    ids.add(String.valueOf(id));
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading canonical addresses", e);
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Resolve recipient ids to raw addresses; only ids not seen before are queried, in chunks
+     */
+    Map<String, String> addressesFor(Collection<String> recipientIds) {
+        Map<String, String> addresses = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        synchronized (this) {
+            for (String id : recipientIds) {
+                String address = addressById.get(id);
+                if (address != null) {
+                    addresses.put(id, address);
+                } else {
+                    missing.add(id);
+                }
+            }
+        }
+
+        for (int start = 0; start < missing.size(); start += ThreadSummaryReader.MAX_SQL_ARGS) {
+            List<String> chunk = missing.subList(start, Math.min(start + ThreadSummaryReader.MAX_SQL_ARGS, missing.size()));
+            Cursor cursor = null;
+            try {
+                cursor = contentResolver.query(
+                    ThreadSummaryReader.CANONICAL_ADDRESSES_URI,
+                    new String[]{"_id", "address"},
+                    "_id IN (" + ThreadSummaryReader.placeholders(chunk.size()) + ")",
+                    chunk.toArray(new String[0]),
+                    null
+                );
+
+                if (cursor != null) {
+                    int idIndex = cursor.getColumnIndexOrThrow("_id");
+                    int addressIndex = cursor.getColumnIndexOrThrow("address");
+                    synchronized (this) {
+                        while (cursor.moveToNext()) {
+                            String id = cursor.getString(idIndex);
+                            String address = cursor.getString(addressIndex);
+                            if (address == null) continue;
+                            addressById.put(id, address);
+                            addresses.put(id, address);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error resolving canonical addresses", e);
+            } finally {
+                if (cursor != null && !cursor.isClosed()) {
+                    cursor.close();
+                }
+            }
+        }
+
+        return addresses;
+    }
+}
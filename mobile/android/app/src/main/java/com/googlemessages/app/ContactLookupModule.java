@@ -0,0 +1,77 @@
+package com.googlemessages.app;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Resolves phone numbers to contacts in batches through the shared ContactNameCache
+ */
+public class ContactLookupModule extends ReactContextBaseJavaModule {
+    private final ReactApplicationContext reactContext;
+    private final SmsIoExecutor ioExecutor = SmsIoExecutor.get();
+
+    public ContactLookupModule(ReactApplicationContext reactContext) {
+        super(reactContext);
+        this.reactContext = reactContext;
+    }
+
+    @Override
+    public String getName() {
+        return "ContactLookup";
+    }
+
+    /**
+     * Resolve many numbers at once.
+     * Returns a map from each input number to {id, name, photo}, or null when it has no contact.
+     */
+    @ReactMethod
+    public void resolveNames(ReadableArray numbers, final Promise promise) {
+        // Copy on the calling thread; ReadableArray is not safe to hand to another thread
+        final List<String> numberList = new ArrayList<>(numbers.size());
+        for (int i = 0; i < numbers.size(); i++) {
+            numberList.add(numbers.getString(i));
+        }
+
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "resolveNames", reactContext, promise,
+            () -> resolveNamesInternal(numberList, promise));
+    }
+
+    private void resolveNamesInternal(List<String> numbers, Promise promise) {
+        ContactNameCache cache = ContactNameCache.getInstance(reactContext);
+
+        Set<String> unique = new LinkedHashSet<>(numbers);
+        WritableMap result = Arguments.createMap();
+        for (String number : unique) {
+            if (number == null) continue;
+
+            ContactNameCache.Entry entry = cache.lookup(number);
+            if (entry == null) {
+                result.putNull(number);
+                continue;
+            }
+
+            WritableMap contact = Arguments.createMap();
+            contact.putString("id", entry.contactId);
+            contact.putString("name", entry.name);
+            contact.putString("photo", entry.photoUri);
+            result.putMap(number, contact);
+        }
+
+        promise.resolve(result);
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        ioExecutor.cancelAll(reactContext);
+    }
+}
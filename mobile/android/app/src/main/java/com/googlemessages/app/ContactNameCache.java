@@ -0,0 +1,155 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache from canonical phone number to contact id, display name and photo.
+ *
+ * Lookups go through ContactsContract.PhoneLookup, which applies the platform's own number
+ * matching. Numbers without a contact are cached negatively. Any change to the contacts
+ * provider drops the whole cache, since an edit can affect any number.
+ */
+class ContactNameCache {
+    private static final String TAG = "ContactNameCache";
+
+    private static final int MAX_ENTRIES = 512;
+    private static final int MAX_NEGATIVE_ENTRIES = 256;
+    private static final long INVALIDATE_DELAY_MS = 500;
+
+    private static final String[] LOOKUP_PROJECTION = new String[]{
+        ContactsContract.PhoneLookup._ID,
+        ContactsContract.PhoneLookup.DISPLAY_NAME,
+        ContactsContract.PhoneLookup.PHOTO_THUMBNAIL_URI
+    };
+
+    static class Entry {
+        // ContactsContract.Contacts._ID
+        final String contactId;
+        final String name;
+        final String photoUri;
+
+        Entry(String contactId, String name, String photoUri) {
+            this.contactId = contactId;
+            this.name = name;
+            this.photoUri = photoUri;
+        }
+    }
+
+    private static ContactNameCache instance;
+
+    private final ContentResolver contentResolver;
+    private final Handler handler;
+    private final PhoneNumberCanonicalizer canonicalizer;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final Map<String, Boolean> missing = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_NEGATIVE_ENTRIES;
+        }
+    };
+
+    private final Runnable invalidateRunnable = this::invalidateAll;
+
+    static synchronized ContactNameCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContactNameCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ContactNameCache(Context context) {
+        this.contentResolver = context.getContentResolver();
+        this.canonicalizer = PhoneNumberCanonicalizer.getInstance(context);
+
+        HandlerThread thread = new HandlerThread("ContactNameCache");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+
+        try {
+            contentResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    // Debounce: a sync touches many rows
+                    handler.removeCallbacks(invalidateRunnable);
+                    handler.postDelayed(invalidateRunnable, INVALIDATE_DELAY_MS);
+                }
+            });
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot observe contacts, cache will not be invalidated", e);
+        }
+    }
+
+    /**
+     * Contact for a phone number, or null if there is none (or contacts can't be read)
+     */
+    Entry lookup(String phoneNumber) {
+        if (phoneNumber == null || phoneNumber.isEmpty()) {
+            return null;
+        }
+        String key = canonicalizer.canonicalize(phoneNumber);
+
+        synchronized (this) {
+            Entry cached = entries.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            if (missing.containsKey(key)) {
+                return null;
+            }
+        }
+
+        Entry entry = null;
+        Cursor cursor = null;
+        try {
+            Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phoneNumber));
+            cursor = contentResolver.query(uri, LOOKUP_PROJECTION, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                entry = new Entry(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+            }
+        } catch (SecurityException e) {
+            // No READ_CONTACTS yet; don't cache, the permission may be granted later
+            Log.w(TAG, "Contacts permission missing: " + e.getMessage());
+            return null;
+        } catch (Exception e) {
+            Log.e(TAG, "Error looking up contact: " + e.getMessage());
+            return null;
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+
+        synchronized (this) {
+            if (entry != null) {
+                entries.put(key, entry);
+            } else {
+                missing.put(key, Boolean.TRUE);
+            }
+        }
+        return entry;
+    }
+
+    private synchronized void invalidateAll() {
+        entries.clear();
+        missing.clear();
+        Log.d(TAG, "Contacts changed, cache invalidated");
+    }
+}
@@ -0,0 +1,452 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.ContactsContract;
+import android.provider.Telephony;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.googlemessages.app.ThreadSummaryReader.ThreadRow;
+import com.googlemessages.app.ThreadSummaryReader.ThreadSummary;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * App-private, materialized conversation list.
+ *
+ * One row per thread with everything the list shows (snippet, date, unread count, contact
+ * name, SIM), indexed by (date, thread_id) so a page is an index walk. The table is kept in
+ * sync incrementally: the receive, send, read and delete paths and a provider observer all
+ * schedule a reconcile, which reads only the threads table and rebuilds just the rows whose
+ * thread changed.
+ */
+class ConversationSummaryStore extends SQLiteOpenHelper {
+    private static final String TAG = "ConversationSummaries";
+
+    private static final String DATABASE_NAME = "conversation_summaries.db";
+    // 2: group threads are keyed by all their members
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE = "summaries";
+    private static final String COL_THREAD_ID = "thread_id";
+    private static final String COL_KEY = "conversation_key";
+    private static final String COL_ADDRESS = "address";
+    private static final String COL_ADDRESSES = "addresses";
+    private static final String COL_RECIPIENT_IDS = "recipient_ids";
+    private static final String COL_SNIPPET = "snippet";
+    private static final String COL_DATE = "date";
+    private static final String COL_MESSAGE_COUNT = "message_count";
+    private static final String COL_READ = "read";
+    private static final String COL_UNREAD_COUNT = "unread_count";
+    private static final String COL_CONTACT_NAME = "contact_name";
+    private static final String COL_SUBSCRIPTION_ID = "subscription_id";
+
+    // Separates addresses of group threads; never part of an address
+    private static final String ADDRESS_SEPARATOR = "\u001f";
+
+    private static final Uri MMS_SMS_URI = Uri.parse("content://mms-sms/");
+    private static final long RECONCILE_DELAY_MS = 300;
+
+    private static ConversationSummaryStore instance;
+
+    private final Context appContext;
+    private final ContentResolver contentResolver;
+    private final Handler handler;
+    private final Runnable reconcileRunnable = this::reconcileInBackground;
+    private final Runnable refreshNamesRunnable = this::refreshContactNames;
+
+    private boolean started = false;
+    private volatile boolean built = false;
+
+    static synchronized ConversationSummaryStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConversationSummaryStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ConversationSummaryStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.appContext = context;
+        this.contentResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread("ConversationSummaries");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+            + COL_THREAD_ID + " INTEGER PRIMARY KEY, "
+            + COL_KEY + " TEXT, "
+            + COL_ADDRESS + " TEXT, "
+            + COL_ADDRESSES + " TEXT, "
+            + COL_RECIPIENT_IDS + " TEXT, "
+            + COL_SNIPPET + " TEXT, "
+            + COL_DATE + " INTEGER NOT NULL, "
+            + COL_MESSAGE_COUNT + " INTEGER NOT NULL, "
+            + COL_READ + " INTEGER NOT NULL, "
+            + COL_UNREAD_COUNT + " INTEGER NOT NULL, "
+            + COL_CONTACT_NAME + " TEXT, "
+            + COL_SUBSCRIPTION_ID + " INTEGER)");
+        db.execSQL("CREATE INDEX summaries_by_date ON " + TABLE + " (" + COL_DATE + " DESC, " + COL_THREAD_ID + " DESC)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // A cache of the provider; rebuilding is always correct
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Start observing the SMS and contacts providers (idempotent)
+     */
+    synchronized void start() {
+        if (started) return;
+        started = true;
+
+        try {
+            ContentObserver messagesObserver = new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    invalidate();
+                }
+            };
+            contentResolver.registerContentObserver(Telephony.Sms.CONTENT_URI, true, messagesObserver);
+            contentResolver.registerContentObserver(MMS_SMS_URI, true, messagesObserver);
+
+            contentResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    handler.removeCallbacks(refreshNamesRunnable);
+                    handler.postDelayed(refreshNamesRunnable, RECONCILE_DELAY_MS);
+                }
+            });
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot observe providers, summaries update only through explicit hooks", e);
+        }
+        invalidate();
+    }
+
+    /**
+     * Schedule a reconcile with the provider. Bursts of calls collapse into one pass.
+     */
+    void invalidate() {
+        handler.removeCallbacks(reconcileRunnable);
+        handler.postDelayed(reconcileRunnable, RECONCILE_DELAY_MS);
+    }
+
+    /**
+     * A thread was marked read: zero its unread count now instead of waiting for the reconcile
+     */
+    void onThreadRead(long threadId) {
+        handler.post(() -> {
+            ContentValues values = new ContentValues();
+            values.put(COL_READ, 1);
+            values.put(COL_UNREAD_COUNT, 0);
+            getWritableDatabase().update(TABLE, values, COL_THREAD_ID + " = ?", new String[]{String.valueOf(threadId)});
+        });
+        invalidate();
+    }
+
+    /**
+     * Page of summaries, newest first. beforeDate/beforeId < 0 starts from the top.
+     * Builds the table on first use; throws if it can't be built, so callers never page
+     * through an empty or partial table.
+     */
+    List<Summary> getPage(long beforeDate, long beforeId, int limit) throws Exception {
+        if (!built) {
+            // Blocks the caller once, on the first request after install or upgrade
+            synchronized (this) {
+                if (!built) reconcile();
+            }
+        }
+
+        String selection = null;
+        String[] selectionArgs = null;
+        if (beforeDate >= 0 && beforeId >= 0) {
+            selection = COL_DATE + " < ? OR (" + COL_DATE + " = ? AND " + COL_THREAD_ID + " < ?)";
+            selectionArgs = new String[]{String.valueOf(beforeDate), String.valueOf(beforeDate), String.valueOf(beforeId)};
+        }
+
+        List<Summary> summaries = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE, null, selection, selectionArgs, null, null,
+            COL_DATE + " DESC, " + COL_THREAD_ID + " DESC", String.valueOf(limit));
+        try {
+            while (cursor.moveToNext()) {
+                summaries.add(readSummary(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return summaries;
+    }
+
+    /**
+     * SIM of the newest message in the conversation with this key, or null if unknown. Reads
+     * the table as it is, even before this process has reconciled it.
+     */
+    Integer getLastSubscriptionId(String conversationKey) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE, new String[]{COL_SUBSCRIPTION_ID},
+            COL_KEY + " = ? AND " + COL_SUBSCRIPTION_ID + " IS NOT NULL", new String[]{conversationKey},
+            null, null, COL_DATE + " DESC", "1")) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : null;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to read the SIM of " + conversationKey, e);
+            return null;
+        }
+    }
+
+    private void reconcileInBackground() {
+        try {
+            reconcile();
+        } catch (SecurityException e) {
+            Log.w(TAG, "No SMS permission, summaries not updated");
+        } catch (Exception e) {
+            Log.e(TAG, "Error reconciling conversation summaries", e);
+        }
+    }
+
+    /**
+     * Bring the table in line with the provider's threads table. The table only counts as
+     * built once a pass has completed.
+     */
+    private synchronized void reconcile() throws Exception {
+        Map<Long, ThreadRow> current = readThreads();
+        Map<Long, ThreadRow> stored = readStoredRows();
+
+        List<ThreadRow> changed = new ArrayList<>();
+        for (ThreadRow row : current.values()) {
+            ThreadRow previous = stored.get(row.threadId);
+            if (previous == null || row.differsFrom(previous)) {
+                changed.add(row);
+            }
+        }
+        List<Long> removed = new ArrayList<>();
+        for (Long threadId : stored.keySet()) {
+            if (!current.containsKey(threadId)) removed.add(threadId);
+        }
+
+        if (!changed.isEmpty() || !removed.isEmpty()) {
+            write(new ThreadSummaryReader(appContext).summarize(changed), removed);
+            Log.d(TAG, "Reconciled: " + changed.size() + " threads updated, " + removed.size() + " removed");
+        }
+        built = true;
+    }
+
+    private void write(List<ThreadSummary> summaries, List<Long> removed) {
+        ContactNameCache contacts = ContactNameCache.getInstance(appContext);
+
+        // Resolve names and SIMs before opening the transaction; both hit other providers
+        List<Long> threadIds = new ArrayList<>(summaries.size());
+        for (ThreadSummary summary : summaries) {
+            threadIds.add(summary.row.threadId);
+        }
+        Map<Long, Integer> subscriptionIds = readLatestSubscriptionIds(threadIds);
+
+        List<ContentValues> rows = new ArrayList<>(summaries.size());
+        for (ThreadSummary summary : summaries) {
+            ThreadRow row = summary.row;
+            ContentValues values = new ContentValues();
+            values.put(COL_THREAD_ID, row.threadId);
+            values.put(COL_KEY, summary.conversationKey);
+            values.put(COL_ADDRESS, summary.primaryAddress);
+            values.put(COL_ADDRESSES, TextUtils.join(ADDRESS_SEPARATOR, summary.addresses));
+            values.put(COL_RECIPIENT_IDS, row.recipientIds);
+            values.put(COL_SNIPPET, row.snippet);
+            values.put(COL_DATE, row.date);
+            values.put(COL_MESSAGE_COUNT, row.messageCount);
+            values.put(COL_READ, row.read ? 1 : 0);
+            values.put(COL_UNREAD_COUNT, summary.unreadCount);
+
+            ContactNameCache.Entry contact = contacts.lookup(summary.primaryAddress);
+            values.put(COL_CONTACT_NAME, contact != null ? contact.name : null);
+
+            Integer subscriptionId = subscriptionIds.get(row.threadId);
+            if (subscriptionId != null) {
+                values.put(COL_SUBSCRIPTION_ID, subscriptionId);
+            } else {
+                values.putNull(COL_SUBSCRIPTION_ID);
+            }
+            rows.add(values);
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : rows) {
+                db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (Long threadId : removed) {
+                db.delete(TABLE, COL_THREAD_ID + " = ?", new String[]{String.valueOf(threadId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Contacts changed: re-resolve every stored name (cached lookups, one per thread)
+     */
+    private void refreshContactNames() {
+        SQLiteDatabase db = getWritableDatabase();
+        ContactNameCache contacts = ContactNameCache.getInstance(appContext);
+
+        Map<Long, String> addresses = new HashMap<>();
+        Cursor cursor = db.query(TABLE, new String[]{COL_THREAD_ID, COL_ADDRESS}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                addresses.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        db.beginTransaction();
+        try {
+            for (Map.Entry<Long, String> entry : addresses.entrySet()) {
+                ContactNameCache.Entry contact = contacts.lookup(entry.getValue());
+                ContentValues values = new ContentValues();
+                values.put(COL_CONTACT_NAME, contact != null ? contact.name : null);
+                db.update(TABLE, values, COL_THREAD_ID + " = ?", new String[]{String.valueOf(entry.getKey())});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private Map<Long, ThreadRow> readThreads() {
+        Map<Long, ThreadRow> threads = new HashMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(
+                ThreadSummaryReader.THREADS_URI,
+                ThreadSummaryReader.THREAD_PROJECTION,
+                Telephony.Threads.MESSAGE_COUNT + " > 0",
+                null,
+                null
+            );
+            for (ThreadRow row : ThreadSummaryReader.readRows(cursor, Integer.MAX_VALUE)) {
+                threads.put(row.threadId, row);
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+        return threads;
+    }
+
+    private Map<Long, ThreadRow> readStoredRows() {
+        Map<Long, ThreadRow> rows = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE,
+            new String[]{COL_THREAD_ID, COL_DATE, COL_MESSAGE_COUNT, COL_RECIPIENT_IDS, COL_SNIPPET, COL_READ},
+            null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ThreadRow row = new ThreadRow();
+                row.threadId = cursor.getLong(0);
+                row.date = cursor.getLong(1);
+                row.messageCount = cursor.getInt(2);
+                row.recipientIds = cursor.getString(3);
+                row.snippet = cursor.getString(4);
+                row.read = cursor.getInt(5) != 0;
+                rows.put(row.threadId, row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * SIM of each thread's newest message, one query per MAX_SQL_ARGS threads. Threads whose
+     * provider doesn't record the SIM are left out.
+     */
+    private Map<Long, Integer> readLatestSubscriptionIds(List<Long> threadIds) {
+        Map<Long, Integer> subscriptionIds = new HashMap<>();
+        for (int start = 0; start < threadIds.size(); start += ThreadSummaryReader.MAX_SQL_ARGS) {
+            List<Long> chunk = threadIds.subList(start, Math.min(start + ThreadSummaryReader.MAX_SQL_ARGS, threadIds.size()));
+            String[] args = new String[chunk.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = String.valueOf(chunk.get(i));
+            }
+
+            Cursor cursor = null;
+            try {
+                // Newest first within each thread; the first row seen per thread wins
+                cursor = contentResolver.query(
+                    Telephony.Sms.CONTENT_URI,
+                    new String[]{Telephony.Sms.THREAD_ID, Telephony.Sms.SUBSCRIPTION_ID},
+                    Telephony.Sms.THREAD_ID + " IN (" + ThreadSummaryReader.placeholders(args.length) + ")",
+                    args,
+                    Telephony.Sms.THREAD_ID + ", " + Telephony.Sms.DATE + " DESC"
+                );
+                long previousThread = -1;
+                while (cursor != null && cursor.moveToNext()) {
+                    long threadId = cursor.getLong(0);
+                    if (threadId == previousThread) continue;
+                    previousThread = threadId;
+                    if (!cursor.isNull(1)) {
+                        subscriptionIds.put(threadId, cursor.getInt(1));
+                    }
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Could not read subscriptions for " + chunk.size() + " threads: " + e.getMessage());
+            } finally {
+                if (cursor != null && !cursor.isClosed()) {
+                    cursor.close();
+                }
+            }
+        }
+        return subscriptionIds;
+    }
+
+    private static Summary readSummary(Cursor cursor) {
+        Summary summary = new Summary();
+        summary.threadId = cursor.getLong(cursor.getColumnIndexOrThrow(COL_THREAD_ID));
+        summary.conversationKey = cursor.getString(cursor.getColumnIndexOrThrow(COL_KEY));
+        summary.address = cursor.getString(cursor.getColumnIndexOrThrow(COL_ADDRESS));
+        String addresses = cursor.getString(cursor.getColumnIndexOrThrow(COL_ADDRESSES));
+        summary.addresses = TextUtils.isEmpty(addresses) ? new String[0] : addresses.split(ADDRESS_SEPARATOR);
+        summary.snippet = cursor.getString(cursor.getColumnIndexOrThrow(COL_SNIPPET));
+        summary.date = cursor.getLong(cursor.getColumnIndexOrThrow(COL_DATE));
+        summary.messageCount = cursor.getInt(cursor.getColumnIndexOrThrow(COL_MESSAGE_COUNT));
+        summary.read = cursor.getInt(cursor.getColumnIndexOrThrow(COL_READ)) != 0;
+        summary.unreadCount = cursor.getInt(cursor.getColumnIndexOrThrow(COL_UNREAD_COUNT));
+        summary.contactName = cursor.getString(cursor.getColumnIndexOrThrow(COL_CONTACT_NAME));
+        int subscriptionIndex = cursor.getColumnIndexOrThrow(COL_SUBSCRIPTION_ID);
+        summary.subscriptionId = cursor.isNull(subscriptionIndex) ? null : cursor.getInt(subscriptionIndex);
+        return summary;
+    }
+
+    static class Summary {
+        long threadId;
+        String conversationKey;
+        String address;
+        String[] addresses;
+        String snippet;
+        long date;
+        int messageCount;
+        boolean read;
+        int unreadCount;
+        String contactName;
+        Integer subscriptionId;
+    }
+}
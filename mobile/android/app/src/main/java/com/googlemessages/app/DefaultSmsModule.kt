@@ -47,4 +47,12 @@ class DefaultSmsModule(reactContext: ReactApplicationContext) : ReactContextBase
             promise.reject("ERROR", e.message, e)
         }
     }
+    
+    /**
+     * Get queue-wait metrics of the shared native SMS I/O executor
+     */
+    @ReactMethod
+    fun getIoQueueStats(promise: Promise) {
+        promise.resolve(SmsIoExecutor.get().stats)
+    }
 }
@@ -0,0 +1,183 @@
+package com.googlemessages.app
+
+import android.content.Context
+import android.util.Log
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Append-only, memory-mapped journal of the latest outbox state per messageId.
+ *
+ * Every state change appends one record; an in-memory index of the newest record per message
+ * makes getStatus an O(1) lookup, and the index is rebuilt from the file on first use after a
+ * restart. When the file fills up it is compacted to the newest MAX_ENTRIES messages.
+ *
+ * Record layout: [short idLength][id UTF-8][byte state][long updatedAt]. The length is written
+ * last, so a record torn by process death reads as the end of the journal.
+ */
+class DeliveryStatusJournal private constructor(context: Context) {
+
+    class Entry(val state: SmsOutbox.State, val updatedAt: Long)
+
+    private val file = File(context.filesDir, FILE_NAME)
+    private val index = LinkedHashMap<String, Entry>()
+    private var buffer: MappedByteBuffer
+    private var recordCount = 0
+
+    init {
+        buffer = map(file)
+        load()
+        if (recordCount > index.size * 2 && recordCount > MAX_ENTRIES) {
+            compact()
+        }
+    }
+
+    /**
+     * Latest known state of a message, or null if it was never journaled (or compacted away)
+     */
+    @Synchronized
+    fun getStatus(messageId: String): Entry? {
+        return index[messageId]
+    }
+
+    @Synchronized
+    fun record(messageId: String, state: SmsOutbox.State) {
+        val entry = Entry(state, System.currentTimeMillis())
+        val id = messageId.toByteArray(Charsets.UTF_8)
+        if (id.isEmpty() || id.size > Short.MAX_VALUE) {
+            Log.w(TAG, "Not journaling messageId of ${id.size} bytes")
+            return
+        }
+
+        index.remove(messageId)
+        index[messageId] = entry
+
+        if (buffer.remaining() < recordSize(id) + 2) {
+            // compact() rewrites the whole index, including this entry
+            compact()
+            return
+        }
+        append(buffer, id, entry)
+        recordCount++
+    }
+
+    private fun load() {
+        try {
+            while (buffer.remaining() >= 2) {
+                val start = buffer.position()
+                val idLength = buffer.short.toInt()
+                if (idLength <= 0 || buffer.remaining() < idLength + 9) {
+                    buffer.position(start)
+                    break
+                }
+
+                val id = ByteArray(idLength)
+                buffer.get(id)
+                val stateOrdinal = buffer.get().toInt()
+                val updatedAt = buffer.long
+
+                val states = SmsOutbox.State.values()
+                if (stateOrdinal !in states.indices) {
+                    buffer.position(start)
+                    break
+                }
+
+                val messageId = String(id, Charsets.UTF_8)
+                index.remove(messageId)
+                index[messageId] = Entry(states[stateOrdinal], updatedAt)
+                recordCount++
+            }
+            Log.d(TAG, "Loaded $recordCount records for ${index.size} messages")
+        } catch (e: Exception) {
+            Log.e(TAG, "Journal unreadable, starting over", e)
+            index.clear()
+            recordCount = 0
+            buffer = resetFile(file)
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the newest record of the newest MAX_ENTRIES messages
+     */
+    private fun compact() {
+        // The index is in insertion (= update) order, so the oldest messages come first
+        while (index.size > MAX_ENTRIES) {
+            val eldest = index.keys.iterator()
+            eldest.next()
+            eldest.remove()
+        }
+
+        val tempFile = File(file.parentFile, "$FILE_NAME.tmp")
+        try {
+            val tempBuffer = resetFile(tempFile)
+            for ((messageId, entry) in index) {
+                val id = messageId.toByteArray(Charsets.UTF_8)
+                if (tempBuffer.remaining() < recordSize(id) + 2) break
+                append(tempBuffer, id, entry)
+            }
+            tempBuffer.force()
+
+            if (!tempFile.renameTo(file)) {
+                throw IllegalStateException("Could not replace journal")
+            }
+            buffer = map(file)
+            recordCount = 0
+            // Skip over what was just written
+            load()
+            Log.d(TAG, "Compacted journal to ${index.size} messages")
+        } catch (e: Exception) {
+            Log.e(TAG, "Journal compaction failed", e)
+            tempFile.delete()
+            buffer = resetFile(file)
+            recordCount = 0
+        }
+    }
+
+    private fun append(target: MappedByteBuffer, id: ByteArray, entry: Entry) {
+        val start = target.position()
+        target.position(start + 2)
+        target.put(id)
+        target.put(entry.state.ordinal.toByte())
+        target.putLong(entry.updatedAt)
+        val end = target.position()
+        // Publish the record by writing its length last
+        target.putShort(start, id.size.toShort())
+        target.position(end)
+    }
+
+    private fun recordSize(id: ByteArray): Int = 2 + id.size + 1 + 8
+
+    private fun map(target: File): MappedByteBuffer {
+        RandomAccessFile(target, "rw").use { raf ->
+            if (raf.length() < CAPACITY_BYTES) {
+                raf.setLength(CAPACITY_BYTES.toLong())
+            }
+            return raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY_BYTES.toLong())
+        }
+    }
+
+    private fun resetFile(target: File): MappedByteBuffer {
+        target.delete()
+        return map(target)
+    }
+
+    companion object {
+        private const val TAG = "DeliveryStatusJournal"
+        private const val FILE_NAME = "delivery_status.journal"
+
+        private const val CAPACITY_BYTES = 512 * 1024
+        private const val MAX_ENTRIES = 4096
+
+        @Volatile
+        private var instance: DeliveryStatusJournal? = null
+
+        @JvmStatic
+        fun get(context: Context): DeliveryStatusJournal {
+            return instance ?: synchronized(this) {
+                instance ?: DeliveryStatusJournal(context.applicationContext).also { instance = it }
+            }
+        }
+    }
+}
@@ -1,14 +1,8 @@
 package com.googlemessages.app
 
-import android.Manifest
-import android.content.Context
-import android.content.pm.PackageManager
 import android.os.Build
-import android.telephony.SubscriptionInfo
 import android.telephony.SubscriptionManager
-import android.telephony.SmsManager
 import android.util.Log
-import androidx.core.app.ActivityCompat
 import com.facebook.react.bridge.*
 
 /**
@@ -16,6 +10,9 @@ import com.facebook.react.bridge.*
  */
 class DualSimManager(private val reactContext: ReactApplicationContext) : ReactContextBaseJavaModule(reactContext) {
     
+    private val ioExecutor = SmsIoExecutor.get()
+    private val subscriptions = SubscriptionCache.get(reactContext)
+    
     override fun getName(): String {
         return "DualSimManager"
     }
@@ -25,74 +22,82 @@ class DualSimManager(private val reactContext: ReactApplicationContext) : ReactC
      */
     @ReactMethod
     fun getSimCards(promise: Promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "getSimCards", reactContext, promise) {
+            getSimCardsInternal(promise)
+        }
+    }
+    
+    private fun getSimCardsInternal(promise: Promise) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) {
             promise.reject("NOT_SUPPORTED", "Dual SIM requires Android 5.1+")
             return
         }
         
         try {
-            // Check permission
-            if (ActivityCompat.checkSelfPermission(
-                    reactContext,
-                    Manifest.permission.READ_PHONE_STATE
-                ) != PackageManager.PERMISSION_GRANTED
-            ) {
+            val snapshot = subscriptions.getSnapshot()
+            if (snapshot == null) {
                 promise.reject("PERMISSION_DENIED", "READ_PHONE_STATE permission required")
                 return
             }
+            promise.resolve(toSimCardArray(snapshot))
             
-            val subscriptionManager = reactContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE) as? SubscriptionManager
-            if (subscriptionManager == null) {
-                promise.reject("ERROR", "SubscriptionManager not available")
-                return
+        } catch (e: Exception) {
+            Log.e(TAG, "Error getting SIM cards: ${e.message}", e)
+            promise.reject("ERROR", "Failed to get SIM cards: ${e.message}", e)
+        }
+    }
+    
+    /**
+     * SIM list with its version. simCards is left out when knownVersion is already current,
+     * so callers can poll cheaply and only rebuild their state on a change.
+     */
+    @ReactMethod
+    fun getSubscriptionSnapshot(knownVersion: Int, promise: Promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "getSubscriptionSnapshot", reactContext, promise) {
+            val snapshot = subscriptions.getSnapshot()
+            if (snapshot == null) {
+                promise.reject("PERMISSION_DENIED", "READ_PHONE_STATE permission required")
+                return@submit
             }
             
-            val simCards = WritableNativeArray()
-            val activeSubscriptions = subscriptionManager.activeSubscriptionInfoList
-            
-            if (activeSubscriptions != null && activeSubscriptions.isNotEmpty()) {
-                for (subInfo in activeSubscriptions) {
-                    val simCard = Arguments.createMap()
-                    
-                    // Subscription ID (used for sending SMS)
-                    simCard.putInt("subscriptionId", subInfo.subscriptionId)
-                    
-                    // Sim slot index (0 = SIM1, 1 = SIM2)
-                    simCard.putInt("slotIndex", subInfo.simSlotIndex)
-                    
-                    // Display name (carrier name or custom name)
-                    simCard.putString("displayName", subInfo.displayName?.toString() ?: "SIM ${subInfo.simSlotIndex + 1}")
-                    
-                    // Carrier name
-                    simCard.putString("carrierName", subInfo.carrierName?.toString() ?: "Unknown")
-                    
-                    // Phone number (may not always be available)
-                    simCard.putString("phoneNumber", subInfo.number ?: "")
-                    
-                    // Country ISO
-                    simCard.putString("countryIso", subInfo.countryIso ?: "")
-                    
-                    // Is default for voice/SMS/data
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                        val defaultSubId = SubscriptionManager.getDefaultSmsSubscriptionId()
-                        simCard.putBoolean("isDefaultSms", subInfo.subscriptionId == defaultSubId)
-                    }
-                    
-                    simCards.pushMap(simCard)
-                    
-                    Log.d(TAG, "SIM found: ${subInfo.displayName}, Slot: ${subInfo.simSlotIndex}, SubId: ${subInfo.subscriptionId}")
-                }
+            val result = Arguments.createMap()
+            result.putInt("version", snapshot.version)
+            result.putBoolean("changed", snapshot.version != knownVersion)
+            result.putBoolean("isDualSim", snapshot.isDualSim)
+            result.putInt("defaultSmsSubscriptionId", snapshot.defaultSmsSubscriptionId)
+            if (snapshot.version != knownVersion) {
+                result.putArray("simCards", toSimCardArray(snapshot))
             }
+            promise.resolve(result)
+        }
+    }
+    
+    private fun toSimCardArray(snapshot: SubscriptionCache.Snapshot): WritableArray {
+        val simCards = WritableNativeArray()
+        for (sim in snapshot.simCards) {
+            val simCard = Arguments.createMap()
             
-            promise.resolve(simCards)
+            // Subscription ID (used for sending SMS)
+            simCard.putInt("subscriptionId", sim.subscriptionId)
             
-        } catch (e: SecurityException) {
-            Log.e(TAG, "Permission denied: ${e.message}")
-            promise.reject("PERMISSION_DENIED", "Permission denied: ${e.message}", e)
-        } catch (e: Exception) {
-            Log.e(TAG, "Error getting SIM cards: ${e.message}", e)
-            promise.reject("ERROR", "Failed to get SIM cards: ${e.message}", e)
+            // Sim slot index (0 = SIM1, 1 = SIM2)
+            simCard.putInt("slotIndex", sim.slotIndex)
+            
+            simCard.putString("displayName", sim.displayName)
+            simCard.putString("carrierName", sim.carrierName)
+            
+            // Phone number (may not always be available)
+            simCard.putString("phoneNumber", sim.phoneNumber)
+            
+            simCard.putString("countryIso", sim.countryIso)
+            
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                simCard.putBoolean("isDefaultSms", sim.isDefaultSms)
+            }
+            
+            simCards.pushMap(simCard)
         }
+        return simCards
     }
     
     /**
@@ -106,10 +111,11 @@ class DualSimManager(private val reactContext: ReactApplicationContext) : ReactC
         }
         
         try {
-            val defaultSubId = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                SubscriptionManager.getDefaultSmsSubscriptionId()
-            } else {
-                -1
+            val snapshot = subscriptions.getSnapshot()
+            val defaultSubId = when {
+                snapshot != null -> snapshot.defaultSmsSubscriptionId
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.N -> SubscriptionManager.getDefaultSmsSubscriptionId()
+                else -> -1
             }
             promise.resolve(defaultSubId)
         } catch (e: Exception) {
@@ -123,27 +129,19 @@ class DualSimManager(private val reactContext: ReactApplicationContext) : ReactC
      */
     @ReactMethod
     fun isDualSimDevice(promise: Promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "isDualSimDevice", reactContext, promise) {
+            isDualSimDeviceInternal(promise)
+        }
+    }
+    
+    private fun isDualSimDeviceInternal(promise: Promise) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) {
             promise.resolve(false)
             return
         }
         
         try {
-            if (ActivityCompat.checkSelfPermission(
-                    reactContext,
-                    Manifest.permission.READ_PHONE_STATE
-                ) != PackageManager.PERMISSION_GRANTED
-            ) {
-                promise.resolve(false)
-                return
-            }
-            
-            val subscriptionManager = reactContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE) as? SubscriptionManager
-            val activeSubscriptions = subscriptionManager?.activeSubscriptionInfoList
-            
-            val isDual = activeSubscriptions != null && activeSubscriptions.size > 1
-            promise.resolve(isDual)
-            
+            promise.resolve(subscriptions.getSnapshot()?.isDualSim ?: false)
         } catch (e: Exception) {
             Log.e(TAG, "Error checking dual SIM: ${e.message}")
             promise.resolve(false)
@@ -151,21 +149,23 @@ class DualSimManager(private val reactContext: ReactApplicationContext) : ReactC
     }
     
     /**
-     * Get SmsManager for specific subscription
+     * Send SMS using specific SIM card. The message is queued in the outbox for that subscription;
+     * SmsOutbox.SUBSCRIPTION_AUTO lets the outbox pick the least loaded healthy SIM.
      */
-    private fun getSmsManagerForSubscription(subscriptionId: Int): SmsManager {
-        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1 && subscriptionId != -1) {
-            SmsManager.getSmsManagerForSubscriptionId(subscriptionId)
-        } else {
-            SmsManager.getDefault()
+    @ReactMethod
+    fun sendSmsWithSim(
+        phoneNumber: String,
+        message: String,
+        messageId: String,
+        subscriptionId: Int,
+        promise: Promise
+    ) {
+        ioExecutor.submit(SmsIoExecutor.Lane.WRITE, "sendSmsWithSim", reactContext, promise) {
+            sendSmsWithSimInternal(phoneNumber, message, messageId, subscriptionId, promise)
         }
     }
     
-    /**
-     * Send SMS using specific SIM card
-     */
-    @ReactMethod
-    fun sendSmsWithSim(
+    private fun sendSmsWithSimInternal(
         phoneNumber: String,
         message: String,
         messageId: String,
@@ -184,126 +184,24 @@ class DualSimManager(private val reactContext: ReactApplicationContext) : ReactC
                 return
             }
             
-            // Get SMS manager for the specific subscription
-            val smsManager = getSmsManagerForSubscription(subscriptionId)
-            
-            Log.d(TAG, "Sending SMS via subscription $subscriptionId to $phoneNumber on Android ${Build.VERSION.SDK_INT}")
-            
-            // Create pending intents with proper flags
-            // FLAG_IMMUTABLE is required for Android 12+ and recommended for Android 6.0+
-            // This works on Samsung devices with One UI 7.0 (Android 15)
-            val flags = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                // Use FLAG_IMMUTABLE for Android 6.0+ (when it was introduced)
-                // This is REQUIRED for Android 12, 13, 14, 15
-                android.app.PendingIntent.FLAG_IMMUTABLE or android.app.PendingIntent.FLAG_UPDATE_CURRENT
-            } else {
-                // Fallback for very old devices (Android < 6.0)
-                android.app.PendingIntent.FLAG_UPDATE_CURRENT
-            }
-            
-            Log.d(TAG, "Using PendingIntent flags: $flags")
-            
-            val sentIntent = try {
-                android.app.PendingIntent.getBroadcast(
-                    reactContext,
-                    messageId.hashCode(),
-                    android.content.Intent("com.googlemessages.app.SMS_SENT").apply {
-                        putExtra("messageId", messageId)
-                        putExtra("phoneNumber", phoneNumber)
-                        putExtra("subscriptionId", subscriptionId)
-                        setPackage(reactContext.packageName) // Explicit package for security
-                    },
-                    flags
-                )
-            } catch (e: Exception) {
-                Log.e(TAG, "Error creating sent PendingIntent: ${e.message}", e)
-                throw e
-            }
-            
-            val deliveredIntent = try {
-                android.app.PendingIntent.getBroadcast(
-                    reactContext,
-                    messageId.hashCode() + 1,
-                    android.content.Intent("com.googlemessages.app.SMS_DELIVERED").apply {
-                        putExtra("messageId", messageId)
-                        putExtra("phoneNumber", phoneNumber)
-                        putExtra("subscriptionId", subscriptionId)
-                        setPackage(reactContext.packageName) // Explicit package for security
-                    },
-                    flags
-                )
-            } catch (e: Exception) {
-                Log.e(TAG, "Error creating delivered PendingIntent: ${e.message}", e)
-                throw e
-            }
-            
-            // Check if message needs to be split
-            val parts = smsManager.divideMessage(message)
-            
-            try {
-                if (parts.size > 1) {
-                    val sentIntents = ArrayList<android.app.PendingIntent>()
-                    val deliveredIntents = ArrayList<android.app.PendingIntent>()
-                    
-                    for (i in parts.indices) {
-                        sentIntents.add(sentIntent)
-                        deliveredIntents.add(deliveredIntent)
-                    }
-                    
-                    smsManager.sendMultipartTextMessage(
-                        phoneNumber,
-                        null,
-                        parts,
-                        sentIntents,
-                        deliveredIntents
-                    )
-                    Log.d(TAG, "Multipart SMS sent successfully via subscription $subscriptionId")
-                } else {
-                    smsManager.sendTextMessage(
-                        phoneNumber,
-                        null,
-                        message,
-                        sentIntent,
-                        deliveredIntent
-                    )
-                    Log.d(TAG, "Single SMS sent successfully via subscription $subscriptionId")
-                }
-            } catch (e: Exception) {
-                // If sending with PendingIntents fails, try without them as fallback
-                Log.w(TAG, "Failed to send with PendingIntents, trying without: ${e.message}")
-                
-                if (parts.size > 1) {
-                    smsManager.sendMultipartTextMessage(
-                        phoneNumber,
-                        null,
-                        parts,
-                        null,
-                        null
-                    )
-                } else {
-                    smsManager.sendTextMessage(
-                        phoneNumber,
-                        null,
-                        message,
-                        null,
-                        null
-                    )
-                }
-                Log.d(TAG, "SMS sent successfully without PendingIntents (fallback) via subscription $subscriptionId")
+            if (!SmsOutbox.get(reactContext).enqueue(messageId, phoneNumber, message, subscriptionId)) {
+                promise.reject("DUPLICATE_MESSAGE", "A message with id $messageId was already queued")
+                return
             }
             
-            Log.d(TAG, "SMS sent successfully via subscription $subscriptionId")
+            Log.d(TAG, "SMS queued via subscription $subscriptionId to $phoneNumber")
             promise.resolve(true)
             
-        } catch (e: SecurityException) {
-            Log.e(TAG, "Permission denied: ${e.message}")
-            promise.reject("PERMISSION_DENIED", "SMS permission denied", e)
         } catch (e: Exception) {
-            Log.e(TAG, "Failed to send SMS: ${e.message}", e)
+            Log.e(TAG, "Failed to queue SMS: ${e.message}", e)
             promise.reject("SEND_FAILED", "Failed to send SMS: ${e.message}", e)
         }
     }
     
+    override fun onCatalystInstanceDestroy() {
+        ioExecutor.cancelAll(reactContext)
+    }
+    
     companion object {
         private const val TAG = "DualSimManager"
     }
@@ -1,11 +1,7 @@
 package com.googlemessages.app
 
-import android.app.PendingIntent
 import android.content.ContentValues
-import android.content.Context
-import android.content.Intent
 import android.net.Uri
-import android.os.Build
 import android.provider.Telephony
 import android.telephony.SmsManager
 import android.util.Log
@@ -17,15 +13,24 @@ import com.facebook.react.modules.core.DeviceEventManagerModule
  */
 class EnhancedSmsManager(private val reactContext: ReactApplicationContext) : ReactContextBaseJavaModule(reactContext) {
     
+    private val ioExecutor = SmsIoExecutor.get()
+    
     override fun getName(): String {
         return "EnhancedSmsManager"
     }
     
     /**
-     * Send SMS with delivery tracking
+     * Send SMS with delivery tracking. The message is queued in the outbox; sent / delivered
+     * status arrives through batched onSmsStatusBatch events.
      */
     @ReactMethod
     fun sendSMS(phoneNumber: String, message: String, messageId: String, promise: Promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.WRITE, "sendSMS", reactContext, promise) {
+            sendSMSInternal(phoneNumber, message, messageId, promise)
+        }
+    }
+    
+    private fun sendSMSInternal(phoneNumber: String, message: String, messageId: String, promise: Promise) {
         try {
             // Validate inputs
             if (phoneNumber.isBlank()) {
@@ -38,127 +43,68 @@ class EnhancedSmsManager(private val reactContext: ReactApplicationContext) : Re
                 return
             }
             
-            // Get SMS manager instance
-            val smsManager = SmsManager.getDefault()
-            
-            // Create pending intents for sent and delivered status
-            // For Android 12+ (API 31+), we MUST use FLAG_IMMUTABLE
-            // This is required for Android 12, 13, 14, 15 and beyond
-            val flags = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                // Use FLAG_IMMUTABLE for Android 6.0+ (when it was introduced)
-                PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-            } else {
-                // Fallback for very old devices
-                PendingIntent.FLAG_UPDATE_CURRENT
-            }
-            
-            Log.d(TAG, "Creating PendingIntent with flags: $flags for Android ${Build.VERSION.SDK_INT}")
-            
-            val sentIntent = try {
-                PendingIntent.getBroadcast(
-                    reactContext,
-                    messageId.hashCode(),
-                    Intent("com.googlemessages.app.SMS_SENT").apply {
-                        putExtra("messageId", messageId)
-                        putExtra("phoneNumber", phoneNumber)
-                        setPackage(reactContext.packageName) // Explicit package for security
-                    },
-                    flags
-                )
-            } catch (e: Exception) {
-                Log.e(TAG, "Error creating sent PendingIntent: ${e.message}")
-                throw e
-            }
-            
-            val deliveredIntent = try {
-                PendingIntent.getBroadcast(
-                    reactContext,
-                    messageId.hashCode() + 1,
-                    Intent("com.googlemessages.app.SMS_DELIVERED").apply {
-                        putExtra("messageId", messageId)
-                        putExtra("phoneNumber", phoneNumber)
-                        setPackage(reactContext.packageName) // Explicit package for security
-                    },
-                    flags
-                )
-            } catch (e: Exception) {
-                Log.e(TAG, "Error creating delivered PendingIntent: ${e.message}")
-                throw e
-            }
-            
-            // Check if message needs to be split
-            val parts = smsManager.divideMessage(message)
-            
-            try {
-                if (parts.size > 1) {
-                    // For long messages, send as multipart
-                    val sentIntents = ArrayList<PendingIntent>()
-                    val deliveredIntents = ArrayList<PendingIntent>()
-                    
-                    for (i in parts.indices) {
-                        sentIntents.add(sentIntent)
-                        deliveredIntents.add(deliveredIntent)
-                    }
-                    
-                    smsManager.sendMultipartTextMessage(
-                        phoneNumber,
-                        null,
-                        parts,
-                        sentIntents,
-                        deliveredIntents
-                    )
-                    Log.d(TAG, "Multipart SMS sent successfully")
-                } else {
-                    // Send single message
-                    smsManager.sendTextMessage(
-                        phoneNumber,
-                        null,
-                        message,
-                        sentIntent,
-                        deliveredIntent
-                    )
-                    Log.d(TAG, "Single SMS sent successfully")
-                }
-            } catch (e: Exception) {
-                // If sending with PendingIntents fails, try without them as fallback
-                Log.w(TAG, "Failed to send with PendingIntents, trying without: ${e.message}")
-                
-                if (parts.size > 1) {
-                    smsManager.sendMultipartTextMessage(
-                        phoneNumber,
-                        null,
-                        parts,
-                        null,
-                        null
-                    )
-                } else {
-                    smsManager.sendTextMessage(
-                        phoneNumber,
-                        null,
-                        message,
-                        null,
-                        null
-                    )
-                }
-                Log.d(TAG, "SMS sent successfully without PendingIntents (fallback)")
+            if (!SmsOutbox.get(reactContext).enqueue(messageId, phoneNumber, message, -1)) {
+                promise.reject("DUPLICATE_MESSAGE", "A message with id $messageId was already queued")
+                return
             }
             
-            Log.d(TAG, "SMS sent to $phoneNumber, messageId: $messageId")
-            Log.d(TAG, "PendingIntents created - sentIntent: ${sentIntent != null}, deliveredIntent: ${deliveredIntent != null}")
+            Log.d(TAG, "SMS queued for $phoneNumber, messageId: $messageId")
             promise.resolve(true)
             
-        } catch (e: SecurityException) {
-            Log.e(TAG, "Permission denied: ${e.message}")
-            promise.reject("PERMISSION_DENIED", "SMS permission denied. Please grant SMS permissions in Settings.", e)
-        } catch (e: IllegalArgumentException) {
-            Log.e(TAG, "Invalid argument: ${e.message}")
-            promise.reject("INVALID_ARGUMENT", "Invalid phone number or message format", e)
         } catch (e: Exception) {
-            Log.e(TAG, "Failed to send SMS: ${e.message}", e)
+            Log.e(TAG, "Failed to queue SMS: ${e.message}", e)
             promise.reject("SEND_FAILED", "Failed to send SMS: ${e.message}", e)
         }
     }
     
+    /**
+     * Send one message to many recipients, paced under the platform's outgoing SMS limit
+     * (see SmsBulkSender). options: operationId, subscriptionId (-1 default SIM,
+     * SmsOutbox.SUBSCRIPTION_AUTO to spread over SIMs), partsPerMinute and burst to slow
+     * the pacing below the platform limit. Progress arrives as "onSmsBulkProgress" events tagged with operationId.
+     * Resolves with the final counts once every message has been sent or has failed; rejects
+     * with DUPLICATE_OPERATION or PERSIST_FAILED if the job could not start.
+     */
+    @ReactMethod
+    fun sendBulk(recipients: ReadableArray, message: String, options: ReadableMap?, promise: Promise) {
+        if (message.isBlank()) {
+            promise.reject("INVALID_MESSAGE", "Message cannot be empty")
+            return
+        }
+        
+        // Copy on the calling thread; ReadableArray is not safe to hand to another thread
+        val numbers = (0 until recipients.size()).mapNotNull { recipients.getString(it) }
+        if (numbers.none { it.isNotBlank() }) {
+            promise.reject("INVALID_NUMBER", "No recipients")
+            return
+        }
+        
+        val operationId = options?.takeIf { it.hasKey("operationId") }?.getString("operationId")
+            ?: "bulk_${System.currentTimeMillis()}"
+        val bulkOptions = SmsBulkSender.Options(
+            subscriptionId = options?.takeIf { it.hasKey("subscriptionId") }?.getInt("subscriptionId") ?: -1,
+            partsPerMinute = options?.takeIf { it.hasKey("partsPerMinute") }?.getDouble("partsPerMinute") ?: 0.0,
+            burst = options?.takeIf { it.hasKey("burst") }?.getInt("burst") ?: 0
+        )
+        
+        SmsBulkSender.get(reactContext).start(operationId, numbers, message, bulkOptions) { result ->
+            if (result.hasKey("error")) {
+                promise.reject(result.getString("code"), result.getString("error"))
+            } else {
+                promise.resolve(result)
+            }
+        }
+    }
+    
+    /**
+     * Stop queuing the rest of a bulk send; messages already queued are still sent
+     */
+    @ReactMethod
+    fun cancelBulk(operationId: String, promise: Promise) {
+        SmsBulkSender.get(reactContext).cancel(operationId)
+        promise.resolve(true)
+    }
+    
     /**
      * Check if device can send SMS
      */
@@ -173,13 +119,18 @@ class EnhancedSmsManager(private val reactContext: ReactApplicationContext) : Re
     }
     
     /**
-     * Get SMS delivery status
+     * Get SMS delivery status from the outbox journal: queued, sending, sent, delivered or failed.
+     * Messages the outbox doesn't know about resolve as pending.
      */
     @ReactMethod
     fun getDeliveryStatus(messageId: String, promise: Promise) {
-        // This would need to be tracked in a local database or shared preferences
-        // For now, return pending
-        promise.resolve("pending")
+        try {
+            val entry = DeliveryStatusJournal.get(reactContext).getStatus(messageId)
+            promise.resolve(entry?.state?.name?.lowercase() ?: "pending")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to read delivery status: ${e.message}", e)
+            promise.reject("STATUS_FAILED", "Failed to read delivery status: ${e.message}", e)
+        }
     }
     
     /**
@@ -187,6 +138,12 @@ class EnhancedSmsManager(private val reactContext: ReactApplicationContext) : Re
      */
     @ReactMethod
     fun markConversationAsRead(phoneNumber: String, promise: Promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.WRITE, "markConversationAsRead", reactContext, promise) {
+            markConversationAsReadInternal(phoneNumber, promise)
+        }
+    }
+    
+    private fun markConversationAsReadInternal(phoneNumber: String, promise: Promise) {
         try {
             val contentResolver = reactContext.contentResolver
             val values = ContentValues()
@@ -221,6 +178,12 @@ class EnhancedSmsManager(private val reactContext: ReactApplicationContext) : Re
      */
     @ReactMethod
     fun deleteSmsMessage(messageId: String, promise: Promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.WRITE, "deleteSmsMessage", reactContext, promise) {
+            deleteSmsMessageInternal(messageId, promise)
+        }
+    }
+    
+    private fun deleteSmsMessageInternal(messageId: String, promise: Promise) {
         try {
             val contentResolver = reactContext.contentResolver
             
@@ -236,6 +199,7 @@ class EnhancedSmsManager(private val reactContext: ReactApplicationContext) : Re
             
             if (deleted > 0) {
                 Log.d(TAG, "Successfully deleted message with ID: $messageId")
+                ConversationSummaryStore.getInstance(reactContext).invalidate()
                 promise.resolve(true)
             } else {
                 Log.w(TAG, "No message found with ID: $messageId")
@@ -251,7 +215,105 @@ class EnhancedSmsManager(private val reactContext: ReactApplicationContext) : Re
         }
     }
     
+    /**
+     * Delete many messages by _id with one "_id IN (...)" delete, so the provider commits and
+     * notifies once for the whole operation instead of once per message. The ids are numeric
+     * and inlined as literals, which avoids SQLite's bound-argument limit; only operations
+     * above MAX_IDS_PER_DELETE are split.
+     * Progress is reported through "onSmsDeleteProgress" events tagged with operationId.
+     * Resolves with the number of rows deleted.
+     */
+    @ReactMethod
+    fun deleteMessages(messageIds: ReadableArray, operationId: String?, promise: Promise) {
+        // Copy on the calling thread; ReadableArray is not safe to hand to another thread
+        val ids = numericIds(messageIds)
+        ioExecutor.submit(SmsIoExecutor.Lane.BULK, "deleteMessages", reactContext, promise) {
+            deleteInChunks(ids, operationId, promise) { chunk ->
+                deleteWhereIn(Telephony.Sms.CONTENT_URI, Telephony.Sms._ID, chunk)
+            }
+        }
+    }
+    
+    /**
+     * Delete whole conversations (SMS and MMS) by thread_id like deleteMessages: one delete
+     * (and one notification) per provider. The provider drops the emptied threads itself.
+     * Resolves with the number of messages deleted.
+     */
+    @ReactMethod
+    fun deleteThreads(threadIds: ReadableArray, operationId: String?, promise: Promise) {
+        val ids = numericIds(threadIds)
+        ioExecutor.submit(SmsIoExecutor.Lane.BULK, "deleteThreads", reactContext, promise) {
+            deleteInChunks(ids, operationId, promise) { chunk ->
+                deleteWhereIn(Telephony.Sms.CONTENT_URI, Telephony.Sms.THREAD_ID, chunk) +
+                    deleteWhereIn(Telephony.Mms.CONTENT_URI, Telephony.Mms.THREAD_ID, chunk)
+            }
+        }
+    }
+    
+    /**
+     * Distinct ids that parse as numbers; anything else can't match a row
+     */
+    private fun numericIds(values: ReadableArray): List<Long> {
+        return (0 until values.size()).mapNotNull { values.getString(it)?.trim()?.toLongOrNull() }.distinct()
+    }
+    
+    private fun deleteInChunks(
+        ids: List<Long>,
+        operationId: String?,
+        promise: Promise,
+        deleteChunk: (List<Long>) -> Int
+    ) {
+        try {
+            var deleted = 0
+            var processed = 0
+            for (chunk in ids.chunked(MAX_IDS_PER_DELETE)) {
+                deleted += deleteChunk(chunk)
+                processed += chunk.size
+                emitDeleteProgress(operationId, processed, ids.size, deleted)
+            }
+            
+            Log.d(TAG, "Deleted $deleted rows for ${ids.size} ids")
+            if (deleted > 0) {
+                ConversationSummaryStore.getInstance(reactContext).invalidate()
+            }
+            promise.resolve(deleted)
+            
+        } catch (e: SecurityException) {
+            Log.e(TAG, "Permission denied for deleting messages: ${e.message}")
+            promise.reject("PERMISSION_DENIED", "SMS permission denied. Cannot delete messages.", e)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to delete messages: ${e.message}", e)
+            promise.reject("DELETE_FAILED", "Failed to delete messages: ${e.message}", e)
+        }
+    }
+    
+    private fun deleteWhereIn(uri: Uri, column: String, values: List<Long>): Int {
+        // Longs only, so inlining them can't change the statement
+        return reactContext.contentResolver.delete(uri, "$column IN (${values.joinToString(",")})", null)
+    }
+    
+    private fun emitDeleteProgress(operationId: String?, processed: Int, total: Int, deleted: Int) {
+        if (!reactContext.hasActiveCatalystInstance()) return
+        
+        val progress = Arguments.createMap().apply {
+            putString("operationId", operationId)
+            putInt("processed", processed)
+            putInt("total", total)
+            putInt("deleted", deleted)
+        }
+        reactContext
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
+            .emit("onSmsDeleteProgress", progress)
+    }
+    
+    override fun onCatalystInstanceDestroy() {
+        ioExecutor.cancelAll(reactContext)
+    }
+    
     companion object {
         private const val TAG = "EnhancedSmsManager"
+        
+        // Keeps one delete statement well under SQLite's 1 MB statement limit
+        private const val MAX_IDS_PER_DELETE = 20_000
     }
 }
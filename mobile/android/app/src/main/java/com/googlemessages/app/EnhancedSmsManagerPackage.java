@@ -15,6 +15,11 @@ public class EnhancedSmsManagerPackage implements ReactPackage {
         List<NativeModule> modules = new ArrayList<>();
         modules.add(new EnhancedSmsManagerModule(reactContext));
         modules.add(new SmsReadManagerModule(reactContext));
+        modules.add(new SmsConversationQueryModule(reactContext));
+        modules.add(new SmsSyncModule(reactContext));
+        modules.add(new ContactLookupModule(reactContext));
+        modules.add(new SmsSearchModule(reactContext));
+        modules.add(new AttachmentCacheModule(reactContext));
         return modules;
     }
 
@@ -49,6 +49,10 @@ class MainApplication : Application(), ReactApplication {
     }
     loadReactNative(this)
     ApplicationLifecycleDispatcher.onApplicationCreate(this)
+    // Commit inbound SMS the provider refused before the last restart
+    SmsInboxWriter.get(this).scheduleRetry()
+    // Resume bulk sends that were paced across a restart
+    SmsBulkSender.get(this)
   }
 
   override fun onConfigurationChanged(newConfig: Configuration) {
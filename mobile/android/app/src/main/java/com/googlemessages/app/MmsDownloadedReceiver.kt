@@ -0,0 +1,31 @@
+package com.googlemessages.app
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.util.Log
+
+/**
+ * BroadcastReceiver for MMS download results; the downloaded PDU is stored by MmsService
+ */
+class MmsDownloadedReceiver : BroadcastReceiver() {
+    override fun onReceive(context: Context, intent: Intent) {
+        Log.d(TAG, "MmsDownloadedReceiver received broadcast: ${intent.action}, ResultCode: $resultCode")
+        
+        // Parsing and storing a large PDU takes a while; keep the broadcast alive until done
+        val code = resultCode
+        val pendingResult = goAsync()
+        val appContext = context.applicationContext
+        SmsIoExecutor.get().execute(SmsIoExecutor.Lane.WRITE, "MmsDownloaded") {
+            try {
+                MmsService.onDownloaded(appContext, intent, code)
+            } finally {
+                pendingResult.finish()
+            }
+        }
+    }
+    
+    companion object {
+        private const val TAG = "MmsDownloadedReceiver"
+    }
+}
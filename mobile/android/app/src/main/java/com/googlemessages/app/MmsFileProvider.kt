@@ -0,0 +1,9 @@
+package com.googlemessages.app
+
+import androidx.core.content.FileProvider
+
+/**
+ * Serves MMS download and acknowledgement files to the platform's MMS service.
+ * A subclass so it can't clash with FileProvider declarations from libraries.
+ */
+class MmsFileProvider : FileProvider()
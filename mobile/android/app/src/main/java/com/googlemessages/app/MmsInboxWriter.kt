@@ -0,0 +1,332 @@
+package com.googlemessages.app
+
+import android.content.ContentUris
+import android.content.ContentValues
+import android.content.Context
+import android.net.Uri
+import android.provider.Telephony
+import android.telephony.TelephonyManager
+import android.util.Log
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStream
+
+/**
+ * Stores a downloaded M-Retrieve.conf in Telephony.Mms.
+ *
+ * The PDU file is parsed as a stream: the message row and its addresses are inserted as soon
+ * as the headers are read, then each part is copied straight from the file into its part
+ * row's output stream. Only text parts are held in memory, so attachment size doesn't matter.
+ *
+ * Notifications whose download failed are kept as M-Notification.ind rows (no parts) until a
+ * retry stores the message or they are older than MAX_PENDING_AGE_MS.
+ */
+class MmsInboxWriter(context: Context) {
+
+    class Attachment(val partId: Long, val contentType: String)
+
+    class PendingNotification(val contentLocation: String, val transactionId: String?, val subscriptionId: Int)
+
+    class StoredMms(
+        val messageId: Long,
+        val threadId: Long,
+        val sender: String,
+        val subject: String?,
+        val text: String?,
+        val partCount: Int,
+        val attachments: List<Attachment>,
+        val timestamp: Long
+    ) {
+        val hasMedia: Boolean
+            get() = attachments.isNotEmpty()
+    }
+
+    private val appContext = context.applicationContext
+    private val contentResolver = appContext.contentResolver
+    private val canonicalizer = PhoneNumberCanonicalizer.getInstance(appContext)
+
+    /**
+     * Persist the retrieve-conf in file. Returns null if the message was already stored.
+     */
+    fun persist(file: File, contentLocation: String, subscriptionId: Int): StoredMms? {
+        FileInputStream(file).use { stream ->
+            val reader = MmsPduReader(stream)
+            val headers = reader.readHeaders()
+            if (headers.messageType != MmsPduReader.MESSAGE_TYPE_RETRIEVE_CONF) {
+                throw MmsPduException("Not a retrieve-conf: message type 0x${Integer.toHexString(headers.messageType)}")
+            }
+            if (isStored(headers.messageId, contentLocation)) {
+                Log.d(TAG, "MMS ${headers.messageId} already stored")
+                return null
+            }
+
+            val sender = stripAddressType(headers.from) ?: UNKNOWN_SENDER
+            val threadId = Telephony.Threads.getOrCreateThreadId(appContext, threadRecipients(sender, headers))
+            // MMS dates are in seconds
+            val sentAt = if (headers.date > 0) headers.date * 1000 else System.currentTimeMillis()
+
+            val values = ContentValues().apply {
+                put(Telephony.Mms.THREAD_ID, threadId)
+                put(Telephony.Mms.DATE, System.currentTimeMillis() / 1000)
+                put(Telephony.Mms.DATE_SENT, sentAt / 1000)
+                put(Telephony.Mms.MESSAGE_BOX, Telephony.Mms.MESSAGE_BOX_INBOX)
+                put(Telephony.Mms.READ, 0)
+                put(Telephony.Mms.SEEN, 0)
+                put(Telephony.Mms.MESSAGE_TYPE, MmsPduReader.MESSAGE_TYPE_RETRIEVE_CONF)
+                put(Telephony.Mms.MMS_VERSION, headers.mmsVersion)
+                put(Telephony.Mms.MESSAGE_ID, headers.messageId)
+                put(Telephony.Mms.TRANSACTION_ID, headers.transactionId)
+                put(Telephony.Mms.CONTENT_LOCATION, contentLocation)
+                put(Telephony.Mms.CONTENT_TYPE, headers.contentType?.mimeType)
+                put(Telephony.Mms.MESSAGE_SIZE, file.length())
+                headers.subject?.let {
+                    put(Telephony.Mms.SUBJECT, it)
+                    put(Telephony.Mms.SUBJECT_CHARSET, headers.subjectCharset)
+                }
+                if (subscriptionId != -1) {
+                    put(Telephony.Mms.SUBSCRIPTION_ID, subscriptionId)
+                }
+            }
+
+            val messageUri = contentResolver.insert(Telephony.Mms.Inbox.CONTENT_URI, values)
+                ?: throw MmsPduException("Provider refused the MMS row")
+            val messageId = ContentUris.parseId(messageUri)
+
+            try {
+                insertAddresses(messageId, sender, headers)
+
+                val text = StringBuilder()
+                val attachments = ArrayList<Attachment>()
+                val partCount = reader.readParts { part, data ->
+                    val partText = insertPart(messageId, part, data, attachments)
+                    if (part.contentType.mimeType.equals(CONTENT_TYPE_TEXT, ignoreCase = true) && partText != null) {
+                        if (text.isNotEmpty()) text.append('\n')
+                        text.append(partText)
+                    }
+                }
+
+                Log.d(TAG, "Stored MMS $messageId in thread $threadId with $partCount parts")
+                return StoredMms(
+                    messageId, threadId, sender, headers.subject,
+                    if (text.isEmpty()) null else text.toString(),
+                    partCount, attachments, sentAt
+                )
+            } catch (e: Exception) {
+                // Don't leave a message with missing parts behind
+                contentResolver.delete(messageUri, null, null)
+                throw e
+            }
+        }
+    }
+
+    /**
+     * Store a notification whose download failed. Returns false if its message or an earlier
+     * copy of the notification is already stored.
+     */
+    fun persistNotification(headers: MmsHeaders, subscriptionId: Int): Boolean {
+        val contentLocation = headers.contentLocation ?: return false
+        val existing = "${Telephony.Mms.CONTENT_LOCATION} = ?"
+        contentResolver.query(Telephony.Mms.CONTENT_URI, arrayOf(Telephony.Mms._ID), existing, arrayOf(contentLocation), null)?.use {
+            if (it.count > 0) return false
+        }
+
+        val sender = stripAddressType(headers.from) ?: UNKNOWN_SENDER
+        val threadId = Telephony.Threads.getOrCreateThreadId(appContext, threadRecipients(sender, headers))
+        val values = ContentValues().apply {
+            put(Telephony.Mms.THREAD_ID, threadId)
+            put(Telephony.Mms.DATE, System.currentTimeMillis() / 1000)
+            put(Telephony.Mms.MESSAGE_BOX, Telephony.Mms.MESSAGE_BOX_INBOX)
+            put(Telephony.Mms.READ, 0)
+            put(Telephony.Mms.SEEN, 0)
+            put(Telephony.Mms.MESSAGE_TYPE, MmsPduReader.MESSAGE_TYPE_NOTIFICATION_IND)
+            put(Telephony.Mms.MMS_VERSION, headers.mmsVersion)
+            put(Telephony.Mms.TRANSACTION_ID, headers.transactionId)
+            put(Telephony.Mms.CONTENT_LOCATION, contentLocation)
+            put(Telephony.Mms.MESSAGE_SIZE, headers.messageSize)
+            put(Telephony.Mms.EXPIRY, headers.expiry)
+            headers.subject?.let {
+                put(Telephony.Mms.SUBJECT, it)
+                put(Telephony.Mms.SUBJECT_CHARSET, headers.subjectCharset)
+            }
+            if (subscriptionId != -1) {
+                put(Telephony.Mms.SUBSCRIPTION_ID, subscriptionId)
+            }
+        }
+
+        val messageUri = contentResolver.insert(Telephony.Mms.Inbox.CONTENT_URI, values)
+            ?: throw MmsPduException("Provider refused the notification row")
+        val messageId = ContentUris.parseId(messageUri)
+        try {
+            insertAddresses(messageId, sender, headers)
+        } catch (e: Exception) {
+            contentResolver.delete(messageUri, null, null)
+            throw e
+        }
+        Log.d(TAG, "Stored pending MMS notification $messageId for $contentLocation")
+        return true
+    }
+
+    /**
+     * Stored notifications to retry, oldest first. Ones older than MAX_PENDING_AGE_MS are
+     * deleted: the MMSC has dropped the message by then.
+     */
+    fun readPendingNotifications(): List<PendingNotification> {
+        val cutoff = (System.currentTimeMillis() - MAX_PENDING_AGE_MS) / 1000
+        val expired = contentResolver.delete(
+            Telephony.Mms.CONTENT_URI,
+            "$PENDING_SELECTION AND ${Telephony.Mms.DATE} < ?",
+            arrayOf(cutoff.toString())
+        )
+        if (expired > 0) Log.d(TAG, "Deleted $expired expired MMS notifications")
+
+        val projection = arrayOf(Telephony.Mms.CONTENT_LOCATION, Telephony.Mms.TRANSACTION_ID, Telephony.Mms.SUBSCRIPTION_ID)
+        val pending = ArrayList<PendingNotification>()
+        contentResolver.query(Telephony.Mms.CONTENT_URI, projection, PENDING_SELECTION, null, "${Telephony.Mms.DATE} ASC")?.use {
+            while (it.moveToNext()) {
+                val contentLocation = it.getString(0) ?: continue
+                val subscriptionId = if (it.isNull(2)) -1 else it.getInt(2)
+                pending.add(PendingNotification(contentLocation, it.getString(1), subscriptionId))
+            }
+        }
+        return pending
+    }
+
+    /**
+     * Remove the stored notification for a message that has now been downloaded. Returns
+     * whether there was one.
+     */
+    fun deletePendingNotification(contentLocation: String): Boolean {
+        return contentResolver.delete(
+            Telephony.Mms.CONTENT_URI,
+            "$PENDING_SELECTION AND ${Telephony.Mms.CONTENT_LOCATION} = ?",
+            arrayOf(contentLocation)
+        ) > 0
+    }
+
+    private fun insertAddresses(messageId: Long, sender: String, headers: MmsHeaders) {
+        val addresses = ArrayList<ContentValues>()
+        addresses.add(addressValues(sender, ADDRESS_TYPE_FROM))
+        headers.to.mapNotNull { stripAddressType(it) }.forEach { addresses.add(addressValues(it, ADDRESS_TYPE_TO)) }
+        headers.cc.mapNotNull { stripAddressType(it) }.forEach { addresses.add(addressValues(it, ADDRESS_TYPE_CC)) }
+
+        contentResolver.bulkInsert(Uri.parse("content://mms/$messageId/addr"), addresses.toTypedArray())
+    }
+
+    private fun addressValues(address: String, type: Int): ContentValues {
+        return ContentValues().apply {
+            put(Telephony.Mms.Addr.ADDRESS, address)
+            put(Telephony.Mms.Addr.TYPE, type)
+            put(Telephony.Mms.Addr.CHARSET, MmsPduReader.CHARSET_UTF8)
+        }
+    }
+
+    /**
+     * Insert one part. Text parts are stored inline and their text returned; anything else is
+     * streamed into the part's file, added to attachments, and null is returned.
+     */
+    private fun insertPart(messageId: Long, part: MmsPartHeaders, data: InputStream, attachments: MutableList<Attachment>): String? {
+        val contentType = part.contentType
+        val values = ContentValues().apply {
+            put(Telephony.Mms.Part.CONTENT_TYPE, contentType.mimeType)
+            contentType.name?.let { put(Telephony.Mms.Part.NAME, it) }
+            contentType.fileName?.let { put(Telephony.Mms.Part.FILENAME, it) }
+            if (contentType.charset != 0) put(Telephony.Mms.Part.CHARSET, contentType.charset)
+            part.contentId?.let { put(Telephony.Mms.Part.CONTENT_ID, "<$it>") }
+            part.contentLocation?.let { put(Telephony.Mms.Part.CONTENT_LOCATION, it) }
+        }
+
+        val partsUri = Uri.parse("content://mms/$messageId/part")
+        if (isInlineText(contentType.mimeType) && part.dataLength <= MAX_INLINE_TEXT_BYTES) {
+            val text = MmsPduReader.decode(data.readBytes(), contentType.charset)
+            values.put(Telephony.Mms.Part.TEXT, text)
+            contentResolver.insert(partsUri, values) ?: throw MmsPduException("Provider refused a text part")
+            return text
+        }
+
+        val partUri = contentResolver.insert(partsUri, values) ?: throw MmsPduException("Provider refused a part")
+        val output = contentResolver.openOutputStream(partUri) ?: throw MmsPduException("Cannot write part $partUri")
+        output.use { data.copyTo(it, COPY_BUFFER_SIZE) }
+        attachments.add(Attachment(ContentUris.parseId(partUri), contentType.mimeType))
+        return null
+    }
+
+    private fun isStored(messageId: String?, contentLocation: String): Boolean {
+        // A pending notification row shares the content location but isn't the message
+        val retrieved = "${Telephony.Mms.MESSAGE_TYPE} = ${MmsPduReader.MESSAGE_TYPE_RETRIEVE_CONF}"
+        val selection: String
+        val args: Array<String>
+        if (messageId != null) {
+            selection = "$retrieved AND (${Telephony.Mms.MESSAGE_ID} = ? OR ${Telephony.Mms.CONTENT_LOCATION} = ?)"
+            args = arrayOf(messageId, contentLocation)
+        } else {
+            selection = "$retrieved AND ${Telephony.Mms.CONTENT_LOCATION} = ?"
+            args = arrayOf(contentLocation)
+        }
+
+        contentResolver.query(Telephony.Mms.CONTENT_URI, arrayOf(Telephony.Mms._ID), selection, args, null)?.use {
+            return it.count > 0
+        }
+        return false
+    }
+
+    /**
+     * Everyone in the conversation except this device: the sender plus, for group messages,
+     * the other recipients
+     */
+    private fun threadRecipients(sender: String, headers: MmsHeaders): Set<String> {
+        val recipients = LinkedHashSet<String>()
+        recipients.add(sender)
+
+        val others = (headers.to + headers.cc).mapNotNull { stripAddressType(it) }
+        if (others.size > 1) {
+            val ownKey = ownNumber()?.let { canonicalizer.canonicalize(it) }
+            for (address in others) {
+                if (ownKey == null || canonicalizer.canonicalize(address) != ownKey) {
+                    recipients.add(address)
+                }
+            }
+        }
+        return recipients
+    }
+
+    private fun ownNumber(): String? {
+        return try {
+            val telephonyManager = appContext.getSystemService(Context.TELEPHONY_SERVICE) as TelephonyManager
+            @Suppress("DEPRECATION")
+            telephonyManager.line1Number?.takeIf { it.isNotEmpty() }
+        } catch (e: SecurityException) {
+            null
+        }
+    }
+
+    companion object {
+        private const val TAG = "MmsInboxWriter"
+        private const val UNKNOWN_SENDER = "Unknown"
+
+        private const val CONTENT_TYPE_TEXT = "text/plain"
+        private const val MAX_INLINE_TEXT_BYTES = 256 * 1024
+        private const val COPY_BUFFER_SIZE = 64 * 1024
+
+        // Carriers keep an undownloaded message for a few days
+        private const val MAX_PENDING_AGE_MS = 7 * 24 * 60 * 60 * 1000L
+        private val PENDING_SELECTION = "${Telephony.Mms.MESSAGE_TYPE} = ${MmsPduReader.MESSAGE_TYPE_NOTIFICATION_IND}"
+
+        // PduHeaders address types
+        private const val ADDRESS_TYPE_FROM = 0x89
+        private const val ADDRESS_TYPE_TO = 0x97
+        private const val ADDRESS_TYPE_CC = 0x82
+
+        private fun isInlineText(mimeType: String): Boolean {
+            return mimeType.startsWith("text/", ignoreCase = true) || mimeType.equals("application/smil", ignoreCase = true)
+        }
+
+        /**
+         * "+15551234567/TYPE=PLMN" -> "+15551234567"
+         */
+        fun stripAddressType(address: String?): String? {
+            if (address.isNullOrEmpty()) return null
+            val slash = address.indexOf("/TYPE=", ignoreCase = true)
+            return if (slash >= 0) address.substring(0, slash) else address
+        }
+    }
+}
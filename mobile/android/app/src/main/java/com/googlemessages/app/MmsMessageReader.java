@@ -0,0 +1,212 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the MMS of a thread for the message pages of SmsConversationQueryModule.
+ *
+ * Thread pages interleave SMS and MMS, ordered by (date, key) newest first. MMS dates are in
+ * seconds and MMS ids share no sequence with SMS ids, so an MMS row's date is scaled to ms and
+ * its key is _id - MMS_KEY_BASE: below every SMS _id, and still increasing with the MMS _id.
+ * A page cursor is the (date, key) of its last row whichever table it came from.
+ */
+class MmsMessageReader {
+    private static final String TAG = "MmsMessageReader";
+
+    static final long MMS_KEY_BASE = 1L << 40;
+
+    private static final Uri PARTS_URI = Uri.parse("content://mms/part");
+    private static final String CONTENT_TYPE_TEXT = "text/plain";
+    private static final String CONTENT_TYPE_SMIL = "application/smil";
+
+    // PduHeaders message types and address types
+    private static final int MESSAGE_TYPE_SEND_REQ = 0x80;
+    private static final int MESSAGE_TYPE_RETRIEVE_CONF = 0x84;
+    private static final int ADDRESS_TYPE_FROM = 0x89;
+    private static final int ADDRESS_TYPE_TO = 0x97;
+    private static final String INSERT_ADDRESS_TOKEN = "insert-address-token";
+
+    private static final String[] PROJECTION = new String[]{
+        Telephony.Mms._ID,
+        Telephony.Mms.THREAD_ID,
+        Telephony.Mms.DATE,
+        Telephony.Mms.MESSAGE_BOX,
+        Telephony.Mms.READ,
+        Telephony.Mms.SUBJECT,
+        Telephony.Mms.SUBSCRIPTION_ID
+    };
+
+    static final class Row {
+        final long id;
+        final long threadId;
+        final long date;
+        final boolean sent;
+        final boolean read;
+        final int subscriptionId;
+        final String subject;
+
+        String address;
+        final StringBuilder text = new StringBuilder();
+        final WritableArray attachments = Arguments.createArray();
+
+        Row(long id, long threadId, long date, boolean sent, boolean read, int subscriptionId, String subject) {
+            this.id = id;
+            this.threadId = threadId;
+            this.date = date;
+            this.sent = sent;
+            this.read = read;
+            this.subscriptionId = subscriptionId;
+            this.subject = subject;
+        }
+
+        long key() {
+            return id - MMS_KEY_BASE;
+        }
+    }
+
+    private final ContentResolver contentResolver;
+
+    MmsMessageReader(Context context) {
+        this.contentResolver = context.getContentResolver();
+    }
+
+    /**
+     * Up to limit received and sent MMS of a thread strictly older than (beforeDate, beforeKey),
+     * newest first, without their parts. beforeDate < 0 reads from the newest.
+     */
+    List<Row> readPage(String threadId, long beforeDate, long beforeKey, int limit) {
+        // Notification rows of undownloaded messages have no parts to show
+        String selection = Telephony.Mms.THREAD_ID + " = ? AND "
+            + Telephony.Mms.MESSAGE_BOX + " IN (" + Telephony.Mms.MESSAGE_BOX_INBOX + "," + Telephony.Mms.MESSAGE_BOX_SENT + ") AND "
+            + Telephony.Mms.MESSAGE_TYPE + " IN (" + MESSAGE_TYPE_SEND_REQ + "," + MESSAGE_TYPE_RETRIEVE_CONF + ")";
+        String[] selectionArgs = new String[]{threadId};
+        if (beforeDate >= 0) {
+            selection += " AND (" + Telephony.Mms.DATE + " * 1000 < ? OR ("
+                + Telephony.Mms.DATE + " * 1000 = ? AND " + Telephony.Mms._ID + " < ?))";
+            String date = String.valueOf(beforeDate);
+            selectionArgs = new String[]{threadId, date, date, String.valueOf(beforeKey + MMS_KEY_BASE)};
+        }
+        String sortOrder = Telephony.Mms.DATE + " DESC, " + Telephony.Mms._ID + " DESC LIMIT " + limit;
+
+        List<Row> rows = new ArrayList<>();
+        try (Cursor cursor = contentResolver.query(Telephony.Mms.CONTENT_URI, PROJECTION, selection, selectionArgs, sortOrder)) {
+            if (cursor == null) return rows;
+            int subscriptionColumn = cursor.getColumnIndex(Telephony.Mms.SUBSCRIPTION_ID);
+            while (cursor.moveToNext() && rows.size() < limit) {
+                rows.add(new Row(
+                    cursor.getLong(0),
+                    cursor.getLong(1),
+                    cursor.getLong(2) * 1000,
+                    cursor.getInt(3) == Telephony.Mms.MESSAGE_BOX_SENT,
+                    cursor.getInt(4) != 0,
+                    subscriptionColumn >= 0 && !cursor.isNull(subscriptionColumn) ? cursor.getInt(subscriptionColumn) : -1,
+                    cursor.getString(5)
+                ));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Fill in the text, attachments and address of rows: one query for all their parts, one
+     * per message for its address
+     */
+    void readContent(List<Row> rows) {
+        if (rows.isEmpty()) return;
+
+        Map<Long, Row> byId = new HashMap<>();
+        String[] ids = new String[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            byId.put(row.id, row);
+            ids[i] = String.valueOf(row.id);
+        }
+
+        String[] partProjection = new String[]{
+            Telephony.Mms.Part._ID,
+            Telephony.Mms.Part.MSG_ID,
+            Telephony.Mms.Part.CONTENT_TYPE,
+            Telephony.Mms.Part.TEXT
+        };
+        String selection = Telephony.Mms.Part.MSG_ID + " IN (" + ThreadSummaryReader.placeholders(ids.length) + ")";
+        try (Cursor cursor = contentResolver.query(PARTS_URI, partProjection, selection, ids, Telephony.Mms.Part._ID + " ASC")) {
+            while (cursor != null && cursor.moveToNext()) {
+                Row row = byId.get(cursor.getLong(1));
+                String contentType = cursor.getString(2);
+                if (row == null || contentType == null || contentType.equalsIgnoreCase(CONTENT_TYPE_SMIL)) continue;
+
+                if (contentType.equalsIgnoreCase(CONTENT_TYPE_TEXT)) {
+                    String text = cursor.getString(3);
+                    if (text != null && !text.isEmpty()) {
+                        if (row.text.length() > 0) row.text.append('\n');
+                        row.text.append(text);
+                    }
+                } else {
+                    WritableMap attachment = Arguments.createMap();
+                    attachment.putString("partId", String.valueOf(cursor.getLong(0)));
+                    attachment.putString("contentType", contentType);
+                    row.attachments.pushMap(attachment);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to read MMS parts: " + e.getMessage());
+        }
+
+        for (Row row : rows) {
+            row.address = readAddress(row.id, row.sent ? ADDRESS_TYPE_TO : ADDRESS_TYPE_FROM);
+        }
+    }
+
+    /**
+     * The sender of a received message, or the first recipient of a sent one
+     */
+    private String readAddress(long messageId, int type) {
+        Uri uri = Uri.parse("content://mms/" + messageId + "/addr");
+        String[] projection = new String[]{Telephony.Mms.Addr.ADDRESS};
+        String selection = Telephony.Mms.Addr.TYPE + " = " + type;
+        try (Cursor cursor = contentResolver.query(uri, projection, selection, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                String address = cursor.getString(0);
+                if (address != null && !address.isEmpty() && !INSERT_ADDRESS_TOKEN.equals(address)) {
+                    return MmsInboxWriter.Companion.stripAddressType(address);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to read address of MMS " + messageId + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * JS representation; same shape as an SMS row, with an "mms-" id and the parts as attachments
+     */
+    static WritableMap toMap(Row row) {
+        WritableMap message = Arguments.createMap();
+        message.putString("id", "mms-" + row.id);
+        message.putString("threadId", String.valueOf(row.threadId));
+        message.putString("address", row.address);
+        message.putString("body", row.text.length() > 0 ? row.text.toString() : (row.subject != null ? row.subject : ""));
+        message.putDouble("date", row.date);
+        message.putInt("type", row.sent ? Telephony.Sms.MESSAGE_TYPE_SENT : Telephony.Sms.MESSAGE_TYPE_INBOX);
+        message.putBoolean("read", row.read);
+        if (row.subscriptionId != -1) {
+            message.putInt("subscriptionId", row.subscriptionId);
+        }
+        message.putArray("attachments", row.attachments);
+        return message;
+    }
+}
@@ -0,0 +1,496 @@
+package com.googlemessages.app
+
+import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.charset.Charset
+
+class MmsPduException(message: String) : IOException(message)
+
+/**
+ * Headers of an MMS PDU that the receive pipeline uses
+ */
+class MmsHeaders {
+    var messageType = 0
+    var transactionId: String? = null
+    var messageId: String? = null
+    var mmsVersion = 0
+    var date = 0L
+    var from: String? = null
+    val to = ArrayList<String>()
+    val cc = ArrayList<String>()
+    var subject: String? = null
+    var subjectCharset = CHARSET_UTF8
+    var contentLocation: String? = null
+    var messageSize = 0L
+    var expiry = 0L
+    var contentType: MmsContentType? = null
+}
+
+class MmsContentType(val mimeType: String) {
+    var charset = 0
+    var name: String? = null
+    var fileName: String? = null
+    var start: String? = null
+    var type: String? = null
+}
+
+/**
+ * Headers of one body part; the data is handed out separately as a stream
+ */
+class MmsPartHeaders(val contentType: MmsContentType, val dataLength: Long) {
+    var contentId: String? = null
+    var contentLocation: String? = null
+}
+
+/**
+ * Streaming reader for the MMS encapsulation (OMA-MMS-ENC) and the WSP encodings it uses.
+ *
+ * Reads headers field by field and hands every body part to the caller as a bounded stream,
+ * so a retrieve-conf of any size is parsed with a fixed-size buffer. Only the fields the
+ * receive pipeline needs are decoded; everything else is skipped by its encoded length.
+ */
+class MmsPduReader(input: InputStream) {
+
+    private val input = if (input is BufferedInputStream) input else BufferedInputStream(input, BUFFER_SIZE)
+
+    // Bytes consumed so far; length-prefixed values are bounded against it
+    private var position = 0L
+
+    /**
+     * Read the message headers, stopping after Content-Type (always the last header) or at the end
+     */
+    fun readHeaders(): MmsHeaders {
+        val headers = MmsHeaders()
+        while (true) {
+            val field = input.read()
+            if (field < 0) break
+            position++
+
+            if (field and 0x80 == 0) {
+                // Application-header: the field byte starts its token-text name
+                readTextRest(field)
+                readText()
+                continue
+            }
+
+            when (field) {
+                FIELD_MESSAGE_TYPE -> headers.messageType = readByte()
+                FIELD_TRANSACTION_ID -> headers.transactionId = readText()
+                FIELD_MESSAGE_ID -> headers.messageId = readText()
+                FIELD_MMS_VERSION -> headers.mmsVersion = readByte() and 0x7F
+                FIELD_DATE -> headers.date = readLongInteger()
+                FIELD_FROM -> headers.from = readFrom()
+                FIELD_TO -> headers.to.add(readEncodedString())
+                FIELD_CC -> headers.cc.add(readEncodedString())
+                FIELD_SUBJECT -> {
+                    val subject = readEncodedStringWithCharset()
+                    headers.subject = subject.first
+                    headers.subjectCharset = subject.second
+                }
+                FIELD_CONTENT_LOCATION -> headers.contentLocation = readText()
+                FIELD_MESSAGE_SIZE -> headers.messageSize = readLongInteger()
+                FIELD_EXPIRY -> headers.expiry = readExpiry()
+                FIELD_CONTENT_TYPE -> {
+                    headers.contentType = readContentType()
+                    return headers
+                }
+                else -> skipValue()
+            }
+        }
+        return headers
+    }
+
+    /**
+     * Walk the multipart body that follows the headers. onPart gets each part's headers and a
+     * stream limited to its data; whatever it leaves unread is skipped.
+     */
+    fun readParts(onPart: (MmsPartHeaders, InputStream) -> Unit): Int {
+        val count = readUintvar().toInt()
+        for (i in 0 until count) {
+            val headersLength = readUintvar()
+            val dataLength = readUintvar()
+            val headersEnd = position + headersLength
+
+            val part = MmsPartHeaders(readContentType(), dataLength)
+            while (position < headersEnd) {
+                readPartHeader(part)
+            }
+            skipTo(headersEnd)
+
+            val data = PartInputStream(dataLength)
+            onPart(part, data)
+            data.skipRemaining()
+        }
+        return count
+    }
+
+    private fun readPartHeader(part: MmsPartHeaders) {
+        val field = readByte()
+        if (field and 0x80 == 0) {
+            // Textual header, e.g. "Content-ID: <image1>"
+            val name = readTextRest(field)
+            val value = readText()
+            when (name.lowercase()) {
+                "content-id" -> part.contentId = stripAngleBrackets(value)
+                "content-location" -> part.contentLocation = value
+            }
+            return
+        }
+
+        when (field and 0x7F) {
+            PART_CONTENT_LOCATION -> part.contentLocation = readText()
+            PART_CONTENT_ID -> part.contentId = stripAngleBrackets(readText())
+            else -> skipValue()
+        }
+    }
+
+    /**
+     * Content-type-value: a well-known type, a text type, or a length-prefixed type with parameters
+     */
+    private fun readContentType(): MmsContentType {
+        val first = peek()
+        if (first >= 0x80) {
+            return MmsContentType(wellKnownContentType(readByte() and 0x7F))
+        }
+        if (first >= 32) {
+            return MmsContentType(readText())
+        }
+
+        val end = readValueLength() + position
+        val media = when {
+            peek() >= 0x80 -> wellKnownContentType(readByte() and 0x7F)
+            peek() < 31 -> wellKnownContentType(readLongInteger().toInt())
+            else -> readText()
+        }
+        val contentType = MmsContentType(media)
+
+        while (position < end) {
+            if (peek() >= 0x80) {
+                when (readByte() and 0x7F) {
+                    PARAM_CHARSET -> contentType.charset = readIntegerValue().toInt()
+                    PARAM_NAME, PARAM_NAME_V14 -> contentType.name = readText()
+                    PARAM_FILENAME, PARAM_FILENAME_V14 -> contentType.fileName = readText()
+                    PARAM_START, PARAM_START_V14 -> contentType.start = stripAngleBrackets(readText())
+                    PARAM_TYPE -> contentType.type = if (peek() >= 0x80) {
+                        wellKnownContentType(readByte() and 0x7F)
+                    } else {
+                        readText()
+                    }
+                    else -> skipValue()
+                }
+            } else {
+                // Untyped-parameter: token-text name and an integer or text value
+                val name = readText()
+                val value = if (peek() >= 0x80 || peek() < 31) readIntegerValue().toString() else readText()
+                when (name.lowercase()) {
+                    "name" -> contentType.name = value
+                    "filename" -> contentType.fileName = value
+                    "start" -> contentType.start = stripAngleBrackets(value)
+                    "type" -> contentType.type = value
+                }
+            }
+        }
+        skipTo(end)
+        return contentType
+    }
+
+    /**
+     * From-value: Value-length (Address-present-token Encoded-string-value | Insert-address-token)
+     */
+    private fun readFrom(): String? {
+        val end = readValueLength() + position
+        var address: String? = null
+        if (readByte() == ADDRESS_PRESENT_TOKEN) {
+            address = readEncodedString()
+        }
+        skipTo(end)
+        return address
+    }
+
+    /**
+     * Expiry-value: Value-length (Absolute-token Date-value | Relative-token Delta-seconds-value)
+     */
+    private fun readExpiry(): Long {
+        val end = readValueLength() + position
+        readByte()
+        val value = readLongInteger()
+        skipTo(end)
+        return value
+    }
+
+    private fun readEncodedString(): String = readEncodedStringWithCharset().first
+
+    /**
+     * Encoded-string-value: Text-string, or Value-length Char-set Text-string
+     */
+    private fun readEncodedStringWithCharset(): Pair<String, Int> {
+        if (peek() >= 32) {
+            return Pair(readText(), CHARSET_UTF8)
+        }
+        val end = readValueLength() + position
+        val charset = readIntegerValue().toInt()
+        val bytes = readBytesUntilNul(end)
+        skipTo(end)
+        return Pair(decode(bytes, charset), charset)
+    }
+
+    private fun readIntegerValue(): Long {
+        return if (peek() >= 0x80) (readByte() and 0x7F).toLong() else readLongInteger()
+    }
+
+    /**
+     * Long-integer: Short-length followed by that many big-endian octets
+     */
+    private fun readLongInteger(): Long {
+        val length = readByte()
+        if (length > 8) throw MmsPduException("Long-integer of $length octets")
+        var value = 0L
+        for (i in 0 until length) {
+            value = (value shl 8) or readByte().toLong()
+        }
+        return value
+    }
+
+    private fun readValueLength(): Long {
+        val first = readByte()
+        return when {
+            first < 31 -> first.toLong()
+            first == 31 -> readUintvar()
+            else -> throw MmsPduException("Invalid value-length $first")
+        }
+    }
+
+    private fun readUintvar(): Long {
+        var value = 0L
+        for (i in 0 until 5) {
+            val b = readByte()
+            value = (value shl 7) or (b and 0x7F).toLong()
+            if (b and 0x80 == 0) return value
+        }
+        throw MmsPduException("uintvar longer than 5 octets")
+    }
+
+    private fun readText(): String {
+        return String(readBytesUntilNul(Long.MAX_VALUE), Charsets.UTF_8)
+    }
+
+    /**
+     * Rest of a text string whose first octet has already been read
+     */
+    private fun readTextRest(first: Int): String {
+        if (first == 0) return ""
+        return first.toChar() + readText()
+    }
+
+    private fun readBytesUntilNul(limit: Long): ByteArray {
+        val out = ByteArrayOutputStream(32)
+        var b = readByte()
+        // Quote (0x7F) and quoted-string (") markers are not part of the value
+        if (b == QUOTE || b == '"'.code) b = if (position < limit) readByte() else 0
+        while (b != 0) {
+            if (out.size() >= MAX_TEXT_LENGTH) throw MmsPduException("Text value too long")
+            out.write(b)
+            if (position >= limit) break
+            b = readByte()
+        }
+        return out.toByteArray()
+    }
+
+    /**
+     * Skip a header value of any type using the WSP length rules
+     */
+    private fun skipValue() {
+        val first = peek()
+        when {
+            first < 31 -> skip(readByte().toLong())
+            first == 31 -> {
+                readByte()
+                skip(readUintvar())
+            }
+            first < 128 -> readBytesUntilNul(Long.MAX_VALUE)
+            else -> readByte()
+        }
+    }
+
+    private fun readByte(): Int {
+        val b = input.read()
+        if (b < 0) throw EOFException("Truncated MMS PDU")
+        position++
+        return b
+    }
+
+    private fun peek(): Int {
+        input.mark(1)
+        val b = input.read()
+        input.reset()
+        if (b < 0) throw EOFException("Truncated MMS PDU")
+        return b
+    }
+
+    private fun skipTo(target: Long) {
+        if (target > position) skip(target - position)
+    }
+
+    private fun skip(count: Long) {
+        var remaining = count
+        while (remaining > 0) {
+            val skipped = input.skip(remaining)
+            if (skipped <= 0) {
+                readByte()
+                remaining--
+            } else {
+                position += skipped
+                remaining -= skipped
+            }
+        }
+    }
+
+    /**
+     * View of the next length bytes of the PDU
+     */
+    private inner class PartInputStream(private var remaining: Long) : InputStream() {
+        override fun read(): Int {
+            if (remaining <= 0) return -1
+            val b = input.read()
+            if (b < 0) throw EOFException("Truncated MMS part")
+            position++
+            remaining--
+            return b
+        }
+
+        override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+            if (remaining <= 0) return -1
+            val count = input.read(buffer, offset, minOf(length.toLong(), remaining).toInt())
+            if (count < 0) throw EOFException("Truncated MMS part")
+            position += count
+            remaining -= count
+            return count
+        }
+
+        override fun available(): Int = minOf(input.available().toLong(), remaining).toInt()
+
+        fun skipRemaining() {
+            skip(remaining)
+            remaining = 0
+        }
+    }
+
+    companion object {
+        const val MESSAGE_TYPE_NOTIFICATION_IND = 0x82
+        const val MESSAGE_TYPE_NOTIFYRESP_IND = 0x83
+        const val MESSAGE_TYPE_RETRIEVE_CONF = 0x84
+
+        const val CHARSET_UTF8 = 106
+
+        private const val BUFFER_SIZE = 16 * 1024
+        private const val MAX_TEXT_LENGTH = 8 * 1024
+        private const val QUOTE = 0x7F
+        private const val ADDRESS_PRESENT_TOKEN = 0x80
+
+        private const val FIELD_CC = 0x82
+        private const val FIELD_CONTENT_LOCATION = 0x83
+        private const val FIELD_CONTENT_TYPE = 0x84
+        private const val FIELD_DATE = 0x85
+        private const val FIELD_EXPIRY = 0x88
+        private const val FIELD_FROM = 0x89
+        private const val FIELD_MESSAGE_ID = 0x8B
+        private const val FIELD_MESSAGE_TYPE = 0x8C
+        private const val FIELD_MMS_VERSION = 0x8D
+        private const val FIELD_MESSAGE_SIZE = 0x8E
+        private const val FIELD_STATUS = 0x95
+        private const val FIELD_SUBJECT = 0x96
+        private const val FIELD_TO = 0x97
+        private const val FIELD_TRANSACTION_ID = 0x98
+
+        private const val PART_CONTENT_LOCATION = 0x0E
+        private const val PART_CONTENT_ID = 0x40
+
+        private const val PARAM_CHARSET = 0x01
+        private const val PARAM_NAME = 0x05
+        private const val PARAM_FILENAME = 0x06
+        private const val PARAM_TYPE = 0x09
+        private const val PARAM_START = 0x0A
+        private const val PARAM_NAME_V14 = 0x17
+        private const val PARAM_FILENAME_V14 = 0x18
+        private const val PARAM_START_V14 = 0x19
+
+        private const val STATUS_RETRIEVED = 0x81
+        private const val MMS_VERSION_1_2 = 0x92
+
+        /**
+         * Parse an M-Notification.ind as delivered in a WAP push
+         */
+        fun parseNotification(pdu: ByteArray): MmsHeaders {
+            val headers = MmsPduReader(ByteArrayInputStream(pdu)).readHeaders()
+            if (headers.messageType != MESSAGE_TYPE_NOTIFICATION_IND) {
+                throw MmsPduException("Not a notification: message type 0x${Integer.toHexString(headers.messageType)}")
+            }
+            if (headers.contentLocation.isNullOrEmpty()) {
+                throw MmsPduException("Notification without content location")
+            }
+            return headers
+        }
+
+        /**
+         * Encode the M-NotifyResp.ind that tells the MMSC the message was retrieved
+         */
+        fun buildNotifyResp(transactionId: String): ByteArray {
+            return ByteArrayOutputStream(transactionId.length + 8).apply {
+                write(FIELD_MESSAGE_TYPE)
+                write(MESSAGE_TYPE_NOTIFYRESP_IND)
+                write(FIELD_TRANSACTION_ID)
+                write(transactionId.toByteArray(Charsets.US_ASCII))
+                write(0)
+                write(FIELD_MMS_VERSION)
+                write(MMS_VERSION_1_2)
+                write(FIELD_STATUS)
+                write(STATUS_RETRIEVED)
+            }.toByteArray()
+        }
+
+        fun decode(bytes: ByteArray, charset: Int): String {
+            val name = when (charset) {
+                3 -> "US-ASCII"
+                4 -> "ISO-8859-1"
+                1000 -> "UTF-16BE"
+                1015 -> "UTF-16"
+                else -> "UTF-8"
+            }
+            return try {
+                String(bytes, Charset.forName(name))
+            } catch (e: Exception) {
+                String(bytes, Charsets.UTF_8)
+            }
+        }
+
+        private fun stripAngleBrackets(value: String): String {
+            return if (value.length >= 2 && value.startsWith("<") && value.endsWith(">")) {
+                value.substring(1, value.length - 1)
+            } else {
+                value
+            }
+        }
+
+        private fun wellKnownContentType(code: Int): String {
+            return when (code) {
+                0x02 -> "text/html"
+                0x03 -> "text/plain"
+                0x06 -> "text/x-vCalendar"
+                0x07 -> "text/x-vCard"
+                0x1D -> "image/gif"
+                0x1E -> "image/jpeg"
+                0x1F -> "image/tiff"
+                0x20 -> "image/png"
+                0x21 -> "image/vnd.wap.wbmp"
+                0x23 -> "application/vnd.wap.multipart.mixed"
+                0x26 -> "application/vnd.wap.multipart.alternative"
+                0x33 -> "application/vnd.wap.multipart.related"
+                else -> "application/octet-stream"
+            }
+        }
+    }
+}
@@ -3,30 +3,63 @@ package com.googlemessages.app
 import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
+import android.os.Build
 import android.provider.Telephony
+import android.telephony.SubscriptionManager
 import android.util.Log
 
 /**
- * BroadcastReceiver for receiving MMS messages
- * Required for the app to be eligible as default SMS app
+ * BroadcastReceiver for MMS WAP pushes.
+ * Parses the M-Notification.ind and hands the download to MmsService, then retries any
+ * notifications whose earlier download failed.
  */
 class MmsReceiver : BroadcastReceiver() {
     override fun onReceive(context: Context, intent: Intent) {
-        if (intent.action == Telephony.Sms.Intents.WAP_PUSH_DELIVER_ACTION) {
+        if (intent.action != Telephony.Sms.Intents.WAP_PUSH_DELIVER_ACTION) return
+        
+        val pdu = intent.getByteArrayExtra("data")
+        if (pdu == null) {
+            Log.w(TAG, "WAP push without data")
+            return
+        }
+        
+        try {
+            val notification = MmsPduReader.parseNotification(pdu)
+            Log.d(TAG, "MMS notification: ${notification.messageSize} bytes at ${notification.contentLocation}")
+            
+            MmsService.startDownload(context, notification, pdu, getSubscriptionId(intent))
+        } catch (e: MmsPduException) {
+            Log.w(TAG, "Ignoring WAP push: ${e.message}")
+        } catch (e: Exception) {
+            Log.e(TAG, "Error processing MMS", e)
+        }
+
+        // A push means the MMSC is reachable again
+        val pendingResult = goAsync()
+        val appContext = context.applicationContext
+        SmsIoExecutor.get().execute(SmsIoExecutor.Lane.BULK, "MmsRetryPending") {
             try {
-                Log.d(TAG, "MMS received")
-                
-                // MMS handling is more complex and typically requires
-                // parsing the WAP push message and downloading MMS content
-                // For basic default SMS app support, this receiver must exist
-                
-                // You can add custom MMS handling here if needed
+                MmsService.retryPending(appContext)
             } catch (e: Exception) {
-                Log.e(TAG, "Error processing MMS", e)
+                Log.e(TAG, "Error retrying pending MMS", e)
+            } finally {
+                pendingResult.finish()
             }
         }
     }
     
+    /**
+     * Subscription the push arrived on, or -1 if the intent doesn't say
+     */
+    private fun getSubscriptionId(intent: Intent): Int {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            val subId = intent.getIntExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, -1)
+            if (subId != -1) return subId
+        }
+        // Pre-R platforms use the "subscription" extra
+        return intent.getIntExtra("subscription", -1)
+    }
+    
     companion object {
         private const val TAG = "MmsReceiver"
     }
@@ -1,30 +1,302 @@
 package com.googlemessages.app
 
+import android.app.Activity
+import android.app.PendingIntent
 import android.app.Service
+import android.content.Context
 import android.content.Intent
+import android.os.Build
 import android.os.IBinder
+import android.telephony.SmsManager
 import android.util.Log
+import androidx.core.content.FileProvider
+import com.facebook.react.ReactApplication
+import com.facebook.react.bridge.Arguments
+import com.facebook.react.modules.core.DeviceEventManagerModule
+import java.io.File
 
 /**
- * Service for handling MMS operations
- * Required for the app to be eligible as default SMS app
+ * Downloads inbound MMS.
+ *
+ * MmsReceiver starts the service with ACTION_DOWNLOAD for every M-Notification.ind. The platform
+ * fetches the retrieve-conf into a FileProvider file and reports to MmsDownloadedReceiver,
+ * which streams the file into Telephony.Mms. The service stays started while downloads are
+ * in flight so the process isn't reclaimed in between.
+ *
+ * A notification whose download fails is stored as a pending M-Notification.ind row;
+ * retryPending restarts those downloads, and a later successful download replaces the row.
  */
 class MmsService : Service() {
     override fun onBind(intent: Intent?): IBinder? {
         return null
     }
-    
+
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
-        Log.d(TAG, "MmsService started")
-        
-        // Handle MMS operations here if needed
-        // For basic default SMS app support, this service must exist
-        
-        stopSelf(startId)
+        synchronized(lock) {
+            instance = this
+            lastStartId = startId
+        }
+
+        if (intent?.action != ACTION_DOWNLOAD) {
+            stopIfIdle()
+            return START_NOT_STICKY
+        }
+
+        val contentLocation = intent.getStringExtra(EXTRA_CONTENT_LOCATION)
+        val transactionId = intent.getStringExtra(EXTRA_TRANSACTION_ID)
+        val subscriptionId = intent.getIntExtra(EXTRA_SUBSCRIPTION_ID, -1)
+        val notification = intent.getByteArrayExtra(EXTRA_NOTIFICATION)
+        if (contentLocation == null) {
+            stopIfIdle()
+            return START_NOT_STICKY
+        }
+
+        synchronized(lock) {
+            if (!inFlight.add(contentLocation)) {
+                Log.d(TAG, "Download already in flight for $contentLocation")
+                return START_NOT_STICKY
+            }
+        }
+
+        try {
+            download(contentLocation, transactionId, subscriptionId, notification)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to start MMS download", e)
+            savePending(this, notification, subscriptionId)
+            onDownloadFinished(contentLocation)
+        }
         return START_NOT_STICKY
     }
-    
+
+    override fun onDestroy() {
+        synchronized(lock) {
+            if (instance === this) instance = null
+        }
+        super.onDestroy()
+    }
+
+    private fun download(contentLocation: String, transactionId: String?, subscriptionId: Int, notification: ByteArray?) {
+        deleteStaleFiles(this)
+
+        val file = File(mmsDirectory(this), "download-${System.nanoTime()}.pdu")
+        val contentUri = FileProvider.getUriForFile(this, fileAuthority(this), file)
+
+        val result = Intent(this, MmsDownloadedReceiver::class.java).apply {
+            action = ACTION_DOWNLOADED
+            putExtra(EXTRA_FILE, file.absolutePath)
+            putExtra(EXTRA_CONTENT_LOCATION, contentLocation)
+            putExtra(EXTRA_TRANSACTION_ID, transactionId)
+            putExtra(EXTRA_SUBSCRIPTION_ID, subscriptionId)
+            putExtra(EXTRA_NOTIFICATION, notification)
+        }
+        // The platform adds result extras (HTTP status), so the intent must be mutable on 12+
+        val flags = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            PendingIntent.FLAG_MUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
+        } else {
+            PendingIntent.FLAG_UPDATE_CURRENT
+        }
+        val downloadedIntent = PendingIntent.getBroadcast(this, contentLocation.hashCode(), result, flags)
+
+        SubscriptionCache.get(this).getSmsManager(subscriptionId).downloadMultimediaMessage(this, contentLocation, contentUri, null, downloadedIntent)
+        Log.d(TAG, "Downloading MMS from $contentLocation")
+    }
+
+    private fun stopIfIdle() {
+        synchronized(lock) {
+            if (inFlight.isEmpty()) {
+                stopSelf(lastStartId)
+            }
+        }
+    }
+
     companion object {
         private const val TAG = "MmsService"
+
+        const val ACTION_DOWNLOAD = "com.googlemessages.app.MMS_DOWNLOAD"
+        const val ACTION_DOWNLOADED = "com.googlemessages.app.MMS_DOWNLOADED"
+
+        const val EXTRA_CONTENT_LOCATION = "contentLocation"
+        const val EXTRA_TRANSACTION_ID = "transactionId"
+        const val EXTRA_SUBSCRIPTION_ID = "subscriptionId"
+        const val EXTRA_FILE = "file"
+        // Raw M-Notification.ind; absent when retrying a stored notification
+        const val EXTRA_NOTIFICATION = "notification"
+
+        // Downloads and acknowledgements the platform never reported back on
+        private const val STALE_FILE_AGE_MS = 60 * 60 * 1000L
+
+        private val lock = Any()
+        private val inFlight = HashSet<String>()
+        private var instance: MmsService? = null
+        private var lastStartId = 0
+
+        /**
+         * Queue the download of a notified MMS. pdu is the notification itself, kept so it can
+         * be stored if the download fails.
+         */
+        @JvmStatic
+        fun startDownload(context: Context, notification: MmsHeaders, pdu: ByteArray, subscriptionId: Int) {
+            startDownload(context, notification.contentLocation, notification.transactionId, subscriptionId, pdu)
+        }
+
+        /**
+         * Restart the downloads of notifications stored after a failed download. Runs off the
+         * main thread.
+         */
+        @JvmStatic
+        fun retryPending(context: Context) {
+            val pending = MmsInboxWriter(context).readPendingNotifications()
+            for (notification in pending) {
+                Log.d(TAG, "Retrying MMS download from ${notification.contentLocation}")
+                startDownload(context, notification.contentLocation, notification.transactionId, notification.subscriptionId, null)
+            }
+        }
+
+        private fun startDownload(context: Context, contentLocation: String?, transactionId: String?, subscriptionId: Int, pdu: ByteArray?) {
+            val intent = Intent(context, MmsService::class.java).apply {
+                action = ACTION_DOWNLOAD
+                putExtra(EXTRA_CONTENT_LOCATION, contentLocation)
+                putExtra(EXTRA_TRANSACTION_ID, transactionId)
+                putExtra(EXTRA_SUBSCRIPTION_ID, subscriptionId)
+                putExtra(EXTRA_NOTIFICATION, pdu)
+            }
+            context.startService(intent)
+        }
+
+        /**
+         * Handle a download result: store the message, acknowledge it and notify.
+         * Runs off the main thread.
+         */
+        @JvmStatic
+        fun onDownloaded(context: Context, intent: Intent, resultCode: Int) {
+            val contentLocation = intent.getStringExtra(EXTRA_CONTENT_LOCATION) ?: return
+            val path = intent.getStringExtra(EXTRA_FILE)
+            val file = if (path != null) File(path) else null
+            val subscriptionId = intent.getIntExtra(EXTRA_SUBSCRIPTION_ID, -1)
+            val notification = intent.getByteArrayExtra(EXTRA_NOTIFICATION)
+
+            try {
+                if (resultCode != Activity.RESULT_OK || file == null || !file.exists()) {
+                    val httpStatus = intent.getIntExtra(SmsManager.EXTRA_MMS_HTTP_STATUS, 0)
+                    Log.e(TAG, "MMS download failed: result=$resultCode, http=$httpStatus")
+                    savePending(context, notification, subscriptionId)
+                    return
+                }
+
+                val writer = MmsInboxWriter(context)
+                val stored = writer.persist(file, contentLocation, subscriptionId)
+
+                // A duplicate is usually the MMSC re-sending a notification it never saw
+                // acknowledged, so it is acknowledged too
+                intent.getStringExtra(EXTRA_TRANSACTION_ID)?.let {
+                    acknowledge(context, it, subscriptionId)
+                }
+                val replaced = writer.deletePendingNotification(contentLocation)
+                if (stored == null) {
+                    if (replaced) ConversationSummaryStore.getInstance(context).invalidate()
+                    return
+                }
+
+                ConversationSummaryStore.getInstance(context).invalidate()
+                SmsNotifier.get(context).onMessageReceived(stored.sender, preview(stored), stored.timestamp)
+                sendMmsToReactNative(context, stored)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error storing downloaded MMS", e)
+                savePending(context, notification, subscriptionId)
+            } finally {
+                file?.delete()
+                onDownloadFinished(contentLocation)
+            }
+        }
+
+        private fun onDownloadFinished(contentLocation: String) {
+            synchronized(lock) {
+                inFlight.remove(contentLocation)
+                if (inFlight.isEmpty()) {
+                    instance?.stopSelf(lastStartId)
+                }
+            }
+        }
+
+        /**
+         * Store the notification of a failed download so retryPending can fetch it later.
+         * Retries carry no notification; their row already exists.
+         */
+        private fun savePending(context: Context, notification: ByteArray?, subscriptionId: Int) {
+            if (notification == null) return
+            try {
+                val headers = MmsPduReader.parseNotification(notification)
+                if (MmsInboxWriter(context).persistNotification(headers, subscriptionId)) {
+                    ConversationSummaryStore.getInstance(context).invalidate()
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Could not store pending MMS notification", e)
+            }
+        }
+
+        /**
+         * Send M-NotifyResp.ind so the MMSC stops re-sending the notification
+         */
+        private fun acknowledge(context: Context, transactionId: String, subscriptionId: Int) {
+            try {
+                val file = File(mmsDirectory(context), "ack-${System.nanoTime()}.pdu")
+                file.writeBytes(MmsPduReader.buildNotifyResp(transactionId))
+                val contentUri = FileProvider.getUriForFile(context, fileAuthority(context), file)
+                SubscriptionCache.get(context).getSmsManager(subscriptionId).sendMultimediaMessage(context, contentUri, null, null, null)
+            } catch (e: Exception) {
+                Log.w(TAG, "Could not acknowledge MMS $transactionId: ${e.message}")
+            }
+        }
+
+        private fun preview(stored: MmsInboxWriter.StoredMms): String {
+            return when {
+                !stored.text.isNullOrEmpty() -> stored.text
+                !stored.subject.isNullOrEmpty() -> stored.subject
+                stored.hasMedia -> "Picture message"
+                else -> "Multimedia message"
+            }
+        }
+
+        private fun sendMmsToReactNative(context: Context, stored: MmsInboxWriter.StoredMms) {
+            try {
+                val params = Arguments.createMap().apply {
+                    putString("messageId", stored.messageId.toString())
+                    putString("threadId", stored.threadId.toString())
+                    putString("phoneNumber", stored.sender)
+                    putString("subject", stored.subject)
+                    putString("body", stored.text)
+                    putInt("partCount", stored.partCount)
+                    putArray("attachments", Arguments.createArray().apply {
+                        for (attachment in stored.attachments) {
+                            pushMap(Arguments.createMap().apply {
+                                putString("partId", attachment.partId.toString())
+                                putString("contentType", attachment.contentType)
+                            })
+                        }
+                    })
+                    putDouble("timestamp", stored.timestamp.toDouble())
+                }
+
+                val reactApp = context.applicationContext as? ReactApplication
+                reactApp?.reactNativeHost?.reactInstanceManager?.currentReactContext
+                    ?.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
+                    ?.emit("onMmsReceived", params)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to send MMS to React Native: ${e.message}")
+            }
+        }
+
+        private fun mmsDirectory(context: Context): File {
+            return File(context.cacheDir, "mms").apply { mkdirs() }
+        }
+
+        private fun fileAuthority(context: Context): String = "${context.packageName}.mms"
+
+        private fun deleteStaleFiles(context: Context) {
+            val cutoff = System.currentTimeMillis() - STALE_FILE_AGE_MS
+            mmsDirectory(context).listFiles()?.forEach { file ->
+                if (file.lastModified() < cutoff) file.delete()
+            }
+        }
     }
 }
@@ -0,0 +1,217 @@
+package com.googlemessages.app;
+
+import android.content.Context;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+
+import java.util.Locale;
+
+/**
+ * Turns raw SMS addresses into one canonical key, E.164 where possible.
+ *
+ * "+1 (555) 123-4567", "1-555-123-4567" and "555 123 4567" all become "+15551234567" for a
+ * device in the US. Alphanumeric senders and short codes are not phone numbers and are only
+ * trimmed. Works on a per-thread char buffer, so the only allocation is the returned String,
+ * and none at all when the input is already canonical.
+ */
+final class PhoneNumberCanonicalizer {
+    private static final int MAX_DIGITS = 20;
+    // Numbers shorter than this are short codes, not subscriber numbers
+    private static final int MIN_SUBSCRIBER_DIGITS = 7;
+
+    private static volatile PhoneNumberCanonicalizer instance;
+
+    private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_DIGITS + 1];
+        }
+    };
+
+    private final char[] countryCode;
+    private final boolean nanp;
+    // National trunk prefix dropped when adding the country code ('0' in most regions)
+    private final char trunkPrefix;
+
+    static PhoneNumberCanonicalizer getInstance(Context context) {
+        if (instance == null) {
+            synchronized (PhoneNumberCanonicalizer.class) {
+                if (instance == null) {
+                    instance = new PhoneNumberCanonicalizer(detectRegion(context));
+                }
+            }
+        }
+        return instance;
+    }
+
+    PhoneNumberCanonicalizer(String regionIso) {
+        String code = countryCodeFor(regionIso);
+        this.countryCode = code != null ? code.toCharArray() : null;
+        this.nanp = "1".equals(code);
+        this.trunkPrefix = trunkPrefixFor(regionIso);
+    }
+
+    /**
+     * Canonical key for a raw address
+     */
+    String canonicalize(String raw) {
+        if (raw == null) {
+            return "";
+        }
+
+        char[] digits = BUFFER.get();
+        int count = 0;
+        boolean plus = false;
+        boolean alreadyCanonical = raw.length() > 1 && raw.charAt(0) == '+';
+
+        for (int i = 0, length = raw.length(); i < length; i++) {
+            char c = raw.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (count == MAX_DIGITS) {
+                    return raw.trim();
+                }
+                digits[++count] = c;
+            } else if (c == '+' && count == 0 && !plus) {
+                plus = true;
+                if (i != 0) alreadyCanonical = false;
+            } else if (c == ' ' || c == '-' || c == '(' || c == ')' || c == '.' || c == '/') {
+                alreadyCanonical = false;
+            } else {
+                // Letters, '@', '*', '#': an alphanumeric sender, email gateway or service code
+                return raw.trim();
+            }
+        }
+
+        if (count == 0) {
+            return raw.trim();
+        }
+        if (plus) {
+            return alreadyCanonical ? raw : international(digits, 1, count);
+        }
+        if (count < MIN_SUBSCRIBER_DIGITS) {
+            return new String(digits, 1, count);
+        }
+
+        // International dialing prefixes: 00 almost everywhere, 011 in NANP
+        if (nanp && count > 3 && digits[1] == '0' && digits[2] == '1' && digits[3] == '1') {
+            return international(digits, 4, count);
+        }
+        if (!nanp && count > 2 && digits[1] == '0' && digits[2] == '0') {
+            return international(digits, 3, count);
+        }
+
+        if (countryCode == null) {
+            // Unknown region: the best stable key is the digits alone
+            return new String(digits, 1, count);
+        }
+
+        if (nanp) {
+            if (count == 11 && digits[1] == '1') {
+                return international(digits, 1, count);
+            }
+            if (count == 10) {
+                return withCountryCode(digits, 1, count);
+            }
+            return new String(digits, 1, count);
+        }
+
+        if (trunkPrefix != 0 && digits[1] == trunkPrefix) {
+            return withCountryCode(digits, 2, count);
+        }
+        if (count > countryCode.length + MIN_SUBSCRIBER_DIGITS && startsWithCountryCode(digits, count)) {
+            // Dialed with the country code but without '+'
+            return international(digits, 1, count);
+        }
+        return withCountryCode(digits, 1, count);
+    }
+
+    private boolean startsWithCountryCode(char[] digits, int count) {
+        for (int i = 0; i < countryCode.length; i++) {
+            if (i + 1 > count || digits[i + 1] != countryCode[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * "+" followed by digits[from..count]; digits[from - 1] is overwritten with '+'
+     */
+    private static String international(char[] digits, int from, int count) {
+        digits[from - 1] = '+';
+        return new String(digits, from - 1, count - from + 2);
+    }
+
+    private String withCountryCode(char[] digits, int from, int count) {
+        int nationalLength = count - from + 1;
+        if (nationalLength + countryCode.length > MAX_DIGITS) {
+            return new String(digits, from, nationalLength);
+        }
+        // Shift the national number right to make room for '+' and the country code
+        int offset = 1 + countryCode.length;
+        System.arraycopy(digits, from, digits, offset, nationalLength);
+        digits[0] = '+';
+        System.arraycopy(countryCode, 0, digits, 1, countryCode.length);
+        return new String(digits, 0, offset + nationalLength);
+    }
+
+    private static String detectRegion(Context context) {
+        try {
+            TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            if (telephonyManager != null) {
+                String region = telephonyManager.getSimCountryIso();
+                if (TextUtils.isEmpty(region)) {
+                    region = telephonyManager.getNetworkCountryIso();
+                }
+                if (!TextUtils.isEmpty(region)) {
+                    return region.toUpperCase(Locale.US);
+                }
+            }
+        } catch (Exception ignored) {
+            // Fall through to the locale
+        }
+        return Locale.getDefault().getCountry();
+    }
+
+    private static String countryCodeFor(String regionIso) {
+        if (regionIso == null) return null;
+        switch (regionIso.toUpperCase(Locale.US)) {
+            case "US": case "CA": case "PR": return "1";
+            case "GB": return "44";
+            case "IE": return "353";
+            case "DE": return "49";
+            case "FR": return "33";
+            case "ES": return "34";
+            case "IT": return "39";
+            case "NL": return "31";
+            case "TR": return "90";
+            case "IN": return "91";
+            case "PK": return "92";
+            case "BD": return "880";
+            case "CN": return "86";
+            case "JP": return "81";
+            case "KR": return "82";
+            case "AU": return "61";
+            case "NZ": return "64";
+            case "BR": return "55";
+            case "MX": return "52";
+            case "NG": return "234";
+            case "ZA": return "27";
+            case "EG": return "20";
+            case "AE": return "971";
+            case "SA": return "966";
+            default: return null;
+        }
+    }
+
+    private static char trunkPrefixFor(String regionIso) {
+        if (regionIso == null) return 0;
+        switch (regionIso.toUpperCase(Locale.US)) {
+            // No trunk prefix: the leading digit is part of the national number
+            case "US": case "CA": case "PR": case "ES": case "IT": case "MX":
+                return 0;
+            default:
+                return '0';
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.googlemessages.app
+
+import android.content.Context
+
+/**
+ * Hands out PendingIntent request codes that are unique across process restarts.
+ *
+ * Codes come from a monotonically increasing counter. The counter is persisted in blocks so
+ * only one preference write is needed per BLOCK_SIZE codes; after a restart allocation resumes
+ * at the next block, skipping whatever was left of the old one.
+ */
+class RequestCodeAllocator(context: Context) {
+
+    private val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+    private var next = prefs.getInt(KEY_RESERVED_UNTIL, FIRST_CODE)
+    private var reservedUntil = next
+
+    /**
+     * Allocate count consecutive request codes and return the first one
+     */
+    @Synchronized
+    fun allocate(count: Int): Int {
+        if (next.toLong() + count > Int.MAX_VALUE) {
+            // Wrap around; codes this old belong to long finished sends
+            next = FIRST_CODE
+            reservedUntil = FIRST_CODE
+        }
+
+        val first = next
+        next += count
+
+        if (next > reservedUntil) {
+            reservedUntil = if (next.toLong() + BLOCK_SIZE > Int.MAX_VALUE) Int.MAX_VALUE else next + BLOCK_SIZE
+            prefs.edit().putInt(KEY_RESERVED_UNTIL, reservedUntil).apply()
+        }
+        return first
+    }
+
+    companion object {
+        private const val PREFS_NAME = "sms_outbox"
+        private const val KEY_RESERVED_UNTIL = "request_code_reserved_until"
+        private const val FIRST_CODE = 1
+        private const val BLOCK_SIZE = 1024
+    }
+}
@@ -0,0 +1,441 @@
+package com.googlemessages.app
+
+import android.content.Context
+import android.os.Handler
+import android.os.HandlerThread
+import android.provider.Settings
+import android.telephony.SmsMessage
+import android.util.Log
+import com.facebook.react.ReactApplication
+import com.facebook.react.bridge.Arguments
+import com.facebook.react.bridge.WritableMap
+import com.facebook.react.modules.core.DeviceEventManagerModule
+
+/**
+ * Sends one body to many recipients through the outbox, paced to stay under the platform's
+ * outgoing SMS limit.
+ *
+ * Android counts every part an app sends and asks the user to confirm once an app exceeds
+ * sms_outgoing_check_max_count parts within sms_outgoing_check_interval_ms (30 per 30 minutes
+ * by default). Jobs share one token bucket sized from those settings, minus a reserve for
+ * messages the user sends by hand, and each message takes one token per part. Options can only
+ * slow the bucket below that budget, and while jobs are running a new job can't speed it up for
+ * them. Messages are handed to the outbox only when their tokens are available, so the outbox
+ * queue stays short.
+ *
+ * Progress is reported per job as an aggregated onSmsBulkProgress event at most once per
+ * PROGRESS_INTERVAL_MS. A job finishes once every message is sent or failed; delivery reports
+ * usually arrive later and are not waited for, so "delivered" is best-effort and counts only
+ * the reports that came in while the job was running.
+ *
+ * Jobs (recipients, body, options and how far they got) and the bucket's tokens are persisted
+ * in SmsBulkStore, with the bucket refilled by wall-clock time, so a restart neither loses the
+ * rest of a job nor starts with a full bucket. Persisted jobs resume when the sender is created
+ * (at app start, see MainApplication); their promises are gone, so they report through events
+ * only, and their counts cover the messages queued after the restart. SmsBulkService keeps the
+ * process in the foreground while jobs are running.
+ */
+class SmsBulkSender private constructor(context: Context) {
+
+    class Options(
+        val subscriptionId: Int,
+        /**
+         * Parts per minute; <= 0 or above the platform limit uses the limit
+         */
+        val partsPerMinute: Double,
+        /**
+         * Bucket size; <= 0 or above the platform limit uses the limit
+         */
+        val burst: Int
+    )
+
+    fun interface Callback {
+        fun onFinished(result: WritableMap)
+    }
+
+    private class Job(
+        val operationId: String,
+        val recipients: List<String>,
+        val body: String,
+        val partCount: Int,
+        val subscriptionId: Int,
+        /**
+         * Null for a job resumed after a restart
+         */
+        val callback: Callback?,
+        var next: Int = 0
+    ) {
+        // The first message queued after a resume, which may already be in the outbox
+        val resumedAt = if (callback == null) next else -1
+        var cancelled = false
+        var changed = false
+        // messageId -> latest state, for the messages handed to the outbox
+        val states = HashMap<String, SmsOutbox.State>()
+    }
+
+    /**
+     * Not thread-safe: used from the bulk thread only. Refills by wall-clock time so its state
+     * can be persisted; a clock set backwards only delays the refill.
+     */
+    private class TokenBucket(var capacity: Double, var refillPerMs: Double, var tokens: Double, var lastRefill: Long) {
+
+        /**
+         * Take count tokens. Returns 0 if they were taken, otherwise the ms until they will be.
+         */
+        fun take(count: Int): Long {
+            val now = System.currentTimeMillis()
+            tokens = minOf(capacity, tokens + maxOf(0L, now - lastRefill) * refillPerMs)
+            lastRefill = maxOf(lastRefill, now)
+
+            // A message longer than the bucket goes out once the bucket is full
+            val needed = minOf(count.toDouble(), capacity)
+            if (tokens >= needed) {
+                tokens -= needed
+                return 0
+            }
+            return Math.ceil((needed - tokens) / refillPerMs).toLong()
+        }
+    }
+
+    private val appContext = context.applicationContext
+    private val outbox = SmsOutbox.get(appContext)
+    private val canonicalizer = PhoneNumberCanonicalizer.getInstance(appContext)
+    private val store = SmsBulkStore(appContext)
+    private val handler: Handler
+    private var bucket: TokenBucket? = null
+
+    // Only touched on the bulk thread
+    private val jobs = LinkedHashMap<String, Job>()
+    private var progressScheduled = false
+
+    private val pumpRunnable = Runnable { pump() }
+    private val progressRunnable = Runnable {
+        progressScheduled = false
+        emitProgress()
+    }
+
+    init {
+        val thread = HandlerThread("SmsBulkSender")
+        thread.start()
+        handler = Handler(thread.looper)
+        handler.post { restore() }
+    }
+
+    /**
+     * Start a job. Duplicate recipients (by canonical number) are sent to once. The callback
+     * runs when every message has been sent or has failed, or the job was cancelled.
+     */
+    fun start(operationId: String, recipients: List<String>, body: String, options: Options, callback: Callback) {
+        handler.post {
+            if (jobs.containsKey(operationId)) {
+                callback.onFinished(errorMap(operationId, "DUPLICATE_OPERATION", "A bulk send with id $operationId is already running"))
+                return@post
+            }
+
+            val seen = HashSet<String>()
+            val unique = recipients.filter { it.isNotBlank() && seen.add(canonicalizer.canonicalize(it)) }
+            // Pure computation on the body; no telephony call
+            val partCount = maxOf(1, SmsMessage.calculateLength(body, false)[0])
+
+            // Only start a job that can be resumed after a restart
+            val persisted = try {
+                store.insert(SmsBulkStore.StoredJob(operationId, unique, body, partCount, options, 0, false))
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to persist bulk send $operationId: ${e.message}", e)
+                false
+            }
+            if (!persisted) {
+                callback.onFinished(errorMap(operationId, "PERSIST_FAILED", "Bulk send $operationId could not be saved"))
+                return@post
+            }
+
+            configureBucket(options)
+            addJob(Job(operationId, unique, body, partCount, options.subscriptionId, callback))
+            Log.d(TAG, "Bulk send $operationId: ${unique.size} recipients, $partCount parts each")
+            pump()
+            finishIfDone(jobs[operationId] ?: return@post)
+        }
+    }
+
+    /**
+     * Resume the jobs persisted by an earlier process; runs first on the bulk thread
+     */
+    private fun restore() {
+        try {
+            val unreadable = ArrayList<String>()
+            for (stored in store.loadJobs(unreadable)) {
+                configureBucket(stored.options)
+                addJob(Job(stored.operationId, stored.recipients, stored.body, stored.partCount, stored.options.subscriptionId, null, stored.next).apply {
+                    cancelled = stored.cancelled
+                })
+                Log.d(TAG, "Resuming bulk send ${stored.operationId} at ${stored.next} of ${stored.recipients.size}")
+            }
+            for (operationId in unreadable) {
+                Log.e(TAG, "Dropping bulk send $operationId that can't be resumed")
+                store.delete(operationId)
+                emitEvent(errorMap(operationId, "RESUME_FAILED", "Bulk send $operationId could not be resumed").apply {
+                    putBoolean("done", true)
+                })
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to restore bulk sends: ${e.message}", e)
+        }
+
+        if (jobs.isEmpty()) {
+            // Restarted by the system with nothing left to send
+            SmsBulkService.stop(appContext)
+            return
+        }
+        pump()
+        for (job in jobs.values.toList()) {
+            finishIfDone(job)
+        }
+    }
+
+    private fun addJob(job: Job) {
+        if (jobs.isEmpty()) {
+            SmsBulkService.start(appContext)
+        }
+        jobs[job.operationId] = job
+    }
+
+    /**
+     * Stop handing a job's remaining messages to the outbox. Messages already queued are still sent.
+     */
+    fun cancel(operationId: String) {
+        handler.post {
+            val job = jobs[operationId] ?: return@post
+            job.cancelled = true
+            job.changed = true
+            saveProgress(job)
+            Log.d(TAG, "Bulk send $operationId cancelled after ${job.next} of ${job.recipients.size}")
+            finishIfDone(job)
+            scheduleProgress()
+        }
+    }
+
+    /**
+     * Queue as many messages as the bucket allows, round-robin across jobs, then wait for tokens
+     */
+    private fun pump() {
+        handler.removeCallbacks(pumpRunnable)
+        val bucket = bucket ?: return
+
+        while (true) {
+            val pending = jobs.values.filter { !it.cancelled && it.next < it.recipients.size }
+            if (pending.isEmpty()) return
+
+            for (job in pending) {
+                val wait = bucket.take(job.partCount)
+                if (wait > 0) {
+                    handler.postDelayed(pumpRunnable, wait)
+                    return
+                }
+                saveBucket(bucket)
+                queueNext(job)
+            }
+        }
+    }
+
+    private fun queueNext(job: Job) {
+        val index = job.next++
+        val messageId = "bulk-${job.operationId}-$index"
+        val accepted = try {
+            outbox.enqueue(messageId, job.recipients[index], job.body, job.subscriptionId) { id, state, _ ->
+                handler.post { onStatus(job, id, state) }
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to queue $messageId: ${e.message}", e)
+            false
+        }
+        saveProgress(job)
+        if (accepted) {
+            job.states[messageId] = SmsOutbox.State.QUEUED
+        } else if (index != job.resumedAt) {
+            job.states[messageId] = SmsOutbox.State.FAILED
+        }
+        // else: queued by the previous process just before it died; the outbox still sends it
+        job.changed = true
+        if (!accepted) finishIfDone(job)
+        scheduleProgress()
+    }
+
+    private fun onStatus(job: Job, messageId: String, state: SmsOutbox.State) {
+        // A late delivery report for a finished job
+        if (jobs[job.operationId] !== job) return
+
+        job.states[messageId] = state
+        job.changed = true
+        finishIfDone(job)
+        scheduleProgress()
+    }
+
+    private fun finishIfDone(job: Job) {
+        if (jobs[job.operationId] !== job) return
+        val allQueued = job.cancelled || job.next >= job.recipients.size
+        if (!allQueued || job.states.values.any { it == SmsOutbox.State.QUEUED || it == SmsOutbox.State.SENDING }) {
+            return
+        }
+
+        jobs.remove(job.operationId)
+        try {
+            store.delete(job.operationId)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to delete bulk send ${job.operationId}: ${e.message}", e)
+        }
+        if (jobs.isEmpty()) {
+            SmsBulkService.stop(appContext)
+        }
+        emit(job, done = true)
+        job.callback?.onFinished(progressMap(job, done = true))
+        Log.d(TAG, "Bulk send ${job.operationId} finished")
+    }
+
+    private fun saveProgress(job: Job) {
+        try {
+            store.updateProgress(job.operationId, job.next, job.cancelled)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to persist progress of ${job.operationId}: ${e.message}", e)
+        }
+    }
+
+    private fun saveBucket(bucket: TokenBucket) {
+        try {
+            store.saveBucket(bucket.tokens, bucket.lastRefill)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to persist bulk bucket: ${e.message}", e)
+        }
+    }
+
+    private fun scheduleProgress() {
+        if (progressScheduled) return
+        progressScheduled = true
+        handler.postDelayed(progressRunnable, PROGRESS_INTERVAL_MS)
+    }
+
+    private fun emitProgress() {
+        for (job in jobs.values) {
+            if (job.changed) emit(job, done = false)
+        }
+    }
+
+    private fun emit(job: Job, done: Boolean) {
+        job.changed = false
+        emitEvent(progressMap(job, done))
+    }
+
+    private fun emitEvent(params: WritableMap) {
+        try {
+            val reactApp = appContext as? ReactApplication
+            reactApp?.reactNativeHost?.reactInstanceManager?.currentReactContext
+                ?.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
+                ?.emit(EVENT_NAME, params)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to send bulk progress: ${e.message}")
+        }
+    }
+
+    private fun errorMap(operationId: String, code: String, message: String): WritableMap {
+        return Arguments.createMap().apply {
+            putString("operationId", operationId)
+            putString("code", code)
+            putString("error", message)
+        }
+    }
+
+    private fun progressMap(job: Job, done: Boolean): WritableMap {
+        var sent = 0
+        var delivered = 0
+        var failed = 0
+        for (state in job.states.values) {
+            when (state) {
+                SmsOutbox.State.SENT -> sent++
+                SmsOutbox.State.DELIVERED -> {
+                    sent++
+                    delivered++
+                }
+                SmsOutbox.State.FAILED -> failed++
+                else -> {}
+            }
+        }
+
+        return Arguments.createMap().apply {
+            putString("operationId", job.operationId)
+            putInt("total", job.recipients.size)
+            putInt("queued", job.next)
+            putInt("sent", sent)
+            // Best-effort: reports that arrive after the job finished are not counted
+            putInt("delivered", delivered)
+            putInt("failed", failed)
+            putBoolean("cancelled", job.cancelled)
+            putBoolean("done", done)
+        }
+    }
+
+    /**
+     * Size the shared bucket from the platform's limit, or from the options where they are
+     * stricter. Called before the new job is added to jobs.
+     */
+    private fun configureBucket(options: Options) {
+        val resolver = appContext.contentResolver
+        val maxCount = Settings.Global.getInt(resolver, SETTING_MAX_COUNT, DEFAULT_MAX_COUNT)
+        val intervalMs = Settings.Global.getLong(resolver, SETTING_INTERVAL_MS, DEFAULT_INTERVAL_MS)
+        val budget = maxOf(1, maxCount - maxOf(1, maxCount / INTERACTIVE_RESERVE_DIVISOR))
+        val budgetPerMs = budget.toDouble() / intervalMs
+
+        var capacity = (if (options.burst > 0) minOf(options.burst, budget) else budget).toDouble()
+        var refillPerMs = if (options.partsPerMinute > 0) minOf(options.partsPerMinute / 60_000.0, budgetPerMs) else budgetPerMs
+
+        val current = bucket
+        if (current == null) {
+            // Tokens spent before a restart still count; only a first-ever bucket starts full
+            val saved = try {
+                store.loadBucket()
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to load bulk bucket: ${e.message}", e)
+                null
+            }
+            bucket = if (saved != null) {
+                TokenBucket(capacity, refillPerMs, minOf(capacity, saved.tokens), saved.lastRefill)
+            } else {
+                TokenBucket(capacity, refillPerMs, capacity, System.currentTimeMillis())
+            }
+        } else {
+            // Running jobs share the bucket; a new job may slow them down but not speed them up
+            if (jobs.isNotEmpty()) {
+                capacity = minOf(capacity, current.capacity)
+                refillPerMs = minOf(refillPerMs, current.refillPerMs)
+            }
+            // Tokens taken so far still count
+            current.capacity = capacity
+            current.refillPerMs = refillPerMs
+        }
+        Log.d(TAG, "Pacing bulk sends at ${refillPerMs * 60_000} parts/min, burst $capacity")
+    }
+
+    companion object {
+        private const val TAG = "SmsBulkSender"
+        private const val EVENT_NAME = "onSmsBulkProgress"
+
+        private const val PROGRESS_INTERVAL_MS = 1_000L
+
+        // SmsUsageMonitor's settings and defaults
+        private const val SETTING_MAX_COUNT = "sms_outgoing_check_max_count"
+        private const val SETTING_INTERVAL_MS = "sms_outgoing_check_interval_ms"
+        private const val DEFAULT_MAX_COUNT = 30
+        private const val DEFAULT_INTERVAL_MS = 30 * 60 * 1000L
+
+        // Keep a tenth of the limit for messages sent outside bulk jobs
+        private const val INTERACTIVE_RESERVE_DIVISOR = 10
+
+        @Volatile
+        private var instance: SmsBulkSender? = null
+
+        @JvmStatic
+        fun get(context: Context): SmsBulkSender {
+            return instance ?: synchronized(this) {
+                instance ?: SmsBulkSender(context).also { instance = it }
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.googlemessages.app
+
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.Service
+import android.content.Context
+import android.content.Intent
+import android.content.pm.ServiceInfo
+import android.os.Build
+import android.os.IBinder
+import android.util.Log
+import androidx.core.app.NotificationCompat
+
+/**
+ * Foreground service held while SmsBulkSender has jobs, so the process (and with it the pacing)
+ * isn't killed while a bulk send waits for tokens. If the system restarts it after the process
+ * died, SmsBulkSender resumes its persisted jobs.
+ */
+class SmsBulkService : Service() {
+    override fun onBind(intent: Intent?): IBinder? {
+        return null
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        val notification = NotificationCompat.Builder(this, CHANNEL_ID)
+            .setSmallIcon(android.R.drawable.sym_action_chat)
+            .setContentTitle("Sending messages")
+            .setContentText("Bulk messages are paced to stay within the carrier limit")
+            .setPriority(NotificationCompat.PRIORITY_LOW)
+            .setOngoing(true)
+            .build()
+
+        try {
+            createNotificationChannel()
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC)
+            } else {
+                startForeground(NOTIFICATION_ID, notification)
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Cannot run bulk sends in the foreground: ${e.message}")
+        }
+
+        // Loads and resumes persisted jobs; stops this service once none are left
+        SmsBulkSender.get(this)
+        return START_STICKY
+    }
+
+    /**
+     * The daily data sync allowance ran out; pacing continues for as long as the process lives
+     */
+    override fun onTimeout(startId: Int, fgsType: Int) {
+        Log.w(TAG, "Foreground time limit reached")
+        stopSelf()
+    }
+
+    private fun createNotificationChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            val channel = NotificationChannel(CHANNEL_ID, "Bulk sending", NotificationManager.IMPORTANCE_LOW).apply {
+                description = "Shown while bulk messages are being sent"
+            }
+            val notificationManager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+            notificationManager.createNotificationChannel(channel)
+        }
+    }
+
+    companion object {
+        private const val TAG = "SmsBulkService"
+        private const val CHANNEL_ID = "sms_bulk"
+        private const val NOTIFICATION_ID = 0x5b17
+
+        fun start(context: Context) {
+            val intent = Intent(context, SmsBulkService::class.java)
+            try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    context.startForegroundService(intent)
+                } else {
+                    context.startService(intent)
+                }
+            } catch (e: IllegalStateException) {
+                // Not allowed from the background; jobs are still persisted and resume on next start
+                Log.w(TAG, "Cannot start bulk send service: ${e.message}")
+            }
+        }
+
+        fun stop(context: Context) {
+            context.stopService(Intent(context, SmsBulkService::class.java))
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.googlemessages.app
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import org.json.JSONArray
+
+/**
+ * App-private SQLite store backing SmsBulkSender, so running jobs and the pacing bucket survive
+ * process death
+ */
+class SmsBulkStore(context: Context) : SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+
+    class StoredJob(
+        val operationId: String,
+        val recipients: List<String>,
+        val body: String,
+        val partCount: Int,
+        val options: SmsBulkSender.Options,
+        val next: Int,
+        val cancelled: Boolean
+    )
+
+    class BucketState(val tokens: Double, val lastRefill: Long)
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL(
+            """
+            CREATE TABLE $TABLE_JOBS (
+                $COLUMN_ID INTEGER PRIMARY KEY AUTOINCREMENT,
+                $COLUMN_OPERATION_ID TEXT NOT NULL UNIQUE,
+                $COLUMN_RECIPIENTS TEXT NOT NULL,
+                $COLUMN_BODY TEXT NOT NULL,
+                $COLUMN_PART_COUNT INTEGER NOT NULL,
+                $COLUMN_SUBSCRIPTION_ID INTEGER NOT NULL,
+                $COLUMN_PARTS_PER_MINUTE REAL NOT NULL,
+                $COLUMN_BURST INTEGER NOT NULL,
+                $COLUMN_NEXT INTEGER NOT NULL,
+                $COLUMN_CANCELLED INTEGER NOT NULL
+            )
+            """.trimIndent()
+        )
+        db.execSQL(
+            """
+            CREATE TABLE $TABLE_BUCKET (
+                $COLUMN_ID INTEGER PRIMARY KEY,
+                $COLUMN_TOKENS REAL NOT NULL,
+                $COLUMN_LAST_REFILL INTEGER NOT NULL
+            )
+            """.trimIndent()
+        )
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {}
+
+    /**
+     * Persist a new job. Returns false if the operationId already exists.
+     */
+    fun insert(job: StoredJob): Boolean {
+        val values = ContentValues().apply {
+            put(COLUMN_OPERATION_ID, job.operationId)
+            put(COLUMN_RECIPIENTS, JSONArray(job.recipients).toString())
+            put(COLUMN_BODY, job.body)
+            put(COLUMN_PART_COUNT, job.partCount)
+            put(COLUMN_SUBSCRIPTION_ID, job.options.subscriptionId)
+            put(COLUMN_PARTS_PER_MINUTE, job.options.partsPerMinute)
+            put(COLUMN_BURST, job.options.burst)
+            put(COLUMN_NEXT, job.next)
+            put(COLUMN_CANCELLED, if (job.cancelled) 1 else 0)
+        }
+        return writableDatabase.insertWithOnConflict(TABLE_JOBS, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1L
+    }
+
+    fun updateProgress(operationId: String, next: Int, cancelled: Boolean) {
+        val values = ContentValues().apply {
+            put(COLUMN_NEXT, next)
+            put(COLUMN_CANCELLED, if (cancelled) 1 else 0)
+        }
+        writableDatabase.update(TABLE_JOBS, values, "$COLUMN_OPERATION_ID = ?", arrayOf(operationId))
+    }
+
+    fun delete(operationId: String) {
+        writableDatabase.delete(TABLE_JOBS, "$COLUMN_OPERATION_ID = ?", arrayOf(operationId))
+    }
+
+    /**
+     * Every unfinished job, oldest first. Rows that can't be read are returned as their
+     * operationId in unreadable.
+     */
+    fun loadJobs(unreadable: MutableList<String>): List<StoredJob> {
+        val jobs = ArrayList<StoredJob>()
+        readableDatabase.query(
+            TABLE_JOBS,
+            arrayOf(
+                COLUMN_OPERATION_ID, COLUMN_RECIPIENTS, COLUMN_BODY, COLUMN_PART_COUNT, COLUMN_SUBSCRIPTION_ID,
+                COLUMN_PARTS_PER_MINUTE, COLUMN_BURST, COLUMN_NEXT, COLUMN_CANCELLED
+            ),
+            null,
+            null,
+            null,
+            null,
+            "$COLUMN_ID ASC"
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                val operationId = cursor.getString(0)
+                try {
+                    val array = JSONArray(cursor.getString(1))
+                    val recipients = (0 until array.length()).map { array.getString(it) }
+                    jobs.add(
+                        StoredJob(
+                            operationId = operationId,
+                            recipients = recipients,
+                            body = cursor.getString(2),
+                            partCount = cursor.getInt(3),
+                            options = SmsBulkSender.Options(cursor.getInt(4), cursor.getDouble(5), cursor.getInt(6)),
+                            next = cursor.getInt(7),
+                            cancelled = cursor.getInt(8) != 0
+                        )
+                    )
+                } catch (e: Exception) {
+                    unreadable.add(operationId)
+                }
+            }
+        }
+        return jobs
+    }
+
+    fun loadBucket(): BucketState? {
+        readableDatabase.query(TABLE_BUCKET, arrayOf(COLUMN_TOKENS, COLUMN_LAST_REFILL), null, null, null, null, null).use { cursor ->
+            return if (cursor.moveToFirst()) BucketState(cursor.getDouble(0), cursor.getLong(1)) else null
+        }
+    }
+
+    fun saveBucket(tokens: Double, lastRefill: Long) {
+        val values = ContentValues().apply {
+            put(COLUMN_ID, 0)
+            put(COLUMN_TOKENS, tokens)
+            put(COLUMN_LAST_REFILL, lastRefill)
+        }
+        writableDatabase.insertWithOnConflict(TABLE_BUCKET, null, values, SQLiteDatabase.CONFLICT_REPLACE)
+    }
+
+    companion object {
+        private const val DATABASE_NAME = "sms_bulk.db"
+        private const val DATABASE_VERSION = 1
+
+        private const val TABLE_JOBS = "jobs"
+        private const val TABLE_BUCKET = "bucket"
+        private const val COLUMN_ID = "_id"
+        private const val COLUMN_OPERATION_ID = "operation_id"
+        private const val COLUMN_RECIPIENTS = "recipients"
+        private const val COLUMN_BODY = "body"
+        private const val COLUMN_PART_COUNT = "part_count"
+        private const val COLUMN_SUBSCRIPTION_ID = "subscription_id"
+        private const val COLUMN_PARTS_PER_MINUTE = "parts_per_minute"
+        private const val COLUMN_BURST = "burst"
+        private const val COLUMN_NEXT = "next"
+        private const val COLUMN_CANCELLED = "cancelled"
+        private const val COLUMN_TOKENS = "tokens"
+        private const val COLUMN_LAST_REFILL = "last_refill"
+    }
+}
@@ -0,0 +1,394 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.Telephony;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.googlemessages.app.ThreadSummaryReader.ThreadRow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads conversation summaries and per-thread messages straight from the provider,
+ * one page at a time.
+ *
+ * Pages are keyed by (date, _id) of the last row of the previous page, so every page
+ * is a bounded index walk no matter how many messages are on the device.
+ */
+public class SmsConversationQueryModule extends ReactContextBaseJavaModule {
+    private static final String TAG = "SmsConversationQuery";
+
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 200;
+
+    static final String[] MESSAGE_PROJECTION = new String[]{
+        Telephony.Sms._ID,
+        Telephony.Sms.THREAD_ID,
+        Telephony.Sms.ADDRESS,
+        Telephony.Sms.BODY,
+        Telephony.Sms.DATE,
+        Telephony.Sms.TYPE,
+        Telephony.Sms.READ,
+        Telephony.Sms.SUBSCRIPTION_ID
+    };
+
+    private final ReactApplicationContext reactContext;
+    private final SmsIoExecutor ioExecutor = SmsIoExecutor.get();
+
+    public SmsConversationQueryModule(ReactApplicationContext reactContext) {
+        super(reactContext);
+        this.reactContext = reactContext;
+    }
+
+    @Override
+    public String getName() {
+        return "SmsConversationQuery";
+    }
+
+    /**
+     * Get one page of conversations, newest first.
+     * Pass beforeDate/beforeId from the previous page's nextCursor (or -1 for the first page).
+     */
+    @ReactMethod
+    public void getConversationsPage(final double beforeDate, final double beforeId, final int limit, final Promise promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "getConversationsPage", reactContext, promise,
+            () -> getConversationsPageInternal(beforeDate, beforeId, limit, promise));
+    }
+
+    private void getConversationsPageInternal(double beforeDate, double beforeId, int limit, Promise promise) {
+        int pageSize = limit > 0 ? Math.min(limit, MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE;
+        ContentResolver contentResolver = reactContext.getContentResolver();
+
+        String selection = Telephony.Threads.MESSAGE_COUNT + " > 0";
+        String[] selectionArgs = null;
+        if (beforeDate >= 0 && beforeId >= 0) {
+            // Keyset cursor: strictly older than the last row we returned
+            selection += " AND (" + Telephony.Threads.DATE + " < ? OR ("
+                + Telephony.Threads.DATE + " = ? AND " + Telephony.Threads._ID + " < ?))";
+            String date = String.valueOf((long) beforeDate);
+            selectionArgs = new String[]{date, date, String.valueOf((long) beforeId)};
+        }
+
+        // Fetch one extra row so we know whether another page exists
+        String sortOrder = Telephony.Threads.DATE + " DESC, " + Telephony.Threads._ID + " DESC LIMIT " + (pageSize + 1);
+
+        List<ThreadRow> rows;
+        boolean hasMore;
+        Cursor cursor = null;
+
+        try {
+            cursor = contentResolver.query(
+                ThreadSummaryReader.THREADS_URI,
+                ThreadSummaryReader.THREAD_PROJECTION,
+                selection,
+                selectionArgs,
+                sortOrder
+            );
+            // Some providers ignore the LIMIT suffix, so stop reading ourselves
+            rows = ThreadSummaryReader.readRows(cursor, pageSize + 1);
+            hasMore = rows.size() > pageSize;
+            if (hasMore) {
+                rows.remove(rows.size() - 1);
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException reading threads", e);
+            promise.reject("PERMISSION_DENIED", "READ_SMS permission required: " + e.getMessage(), e);
+            return;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read conversations page", e);
+            promise.reject("QUERY_FAILED", e.getMessage(), e);
+            return;
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+
+        try {
+            WritableArray conversations = new ThreadSummaryReader(reactContext).toWritableArray(rows);
+
+            WritableMap result = Arguments.createMap();
+            result.putArray("conversations", conversations);
+            result.putBoolean("hasMore", hasMore);
+
+            if (hasMore) {
+                ThreadRow last = rows.get(rows.size() - 1);
+                WritableMap nextCursor = Arguments.createMap();
+                nextCursor.putDouble("beforeDate", last.date);
+                nextCursor.putDouble("beforeId", last.threadId);
+                result.putMap("nextCursor", nextCursor);
+            } else {
+                result.putNull("nextCursor");
+            }
+
+            Log.d(TAG, "Returned " + rows.size() + " conversations, hasMore=" + hasMore);
+            promise.resolve(result);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to build conversations page", e);
+            promise.reject("QUERY_FAILED", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get one page of conversations from the materialized summary table, newest first.
+     * Same paging as getConversationsPage; rows also carry contactName and subscriptionId.
+     */
+    @ReactMethod
+    public void getConversationSummaries(final double beforeDate, final double beforeId, final int limit, final Promise promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "getConversationSummaries", reactContext, promise,
+            () -> getConversationSummariesInternal(beforeDate, beforeId, limit, promise));
+    }
+
+    private void getConversationSummariesInternal(double beforeDate, double beforeId, int limit, Promise promise) {
+        int pageSize = limit > 0 ? Math.min(limit, MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE;
+
+        try {
+            ConversationSummaryStore store = ConversationSummaryStore.getInstance(reactContext);
+            store.start();
+
+            List<ConversationSummaryStore.Summary> summaries = store.getPage((long) beforeDate, (long) beforeId, pageSize + 1);
+            boolean hasMore = summaries.size() > pageSize;
+            if (hasMore) {
+                summaries.remove(summaries.size() - 1);
+            }
+
+            WritableArray conversations = Arguments.createArray();
+            for (ConversationSummaryStore.Summary summary : summaries) {
+                WritableArray addresses = Arguments.createArray();
+                for (String address : summary.addresses) {
+                    addresses.pushString(address);
+                }
+
+                WritableMap conversation = Arguments.createMap();
+                conversation.putString("threadId", String.valueOf(summary.threadId));
+                conversation.putString("phoneNumber", summary.address);
+                conversation.putString("conversationKey", summary.conversationKey);
+                conversation.putArray("addresses", addresses);
+                conversation.putString("snippet", summary.snippet);
+                conversation.putDouble("date", summary.date);
+                conversation.putInt("messageCount", summary.messageCount);
+                conversation.putBoolean("read", summary.read);
+                conversation.putInt("unreadCount", summary.unreadCount);
+                conversation.putString("contactName", summary.contactName);
+                if (summary.subscriptionId != null) {
+                    conversation.putInt("subscriptionId", summary.subscriptionId);
+                }
+                conversations.pushMap(conversation);
+            }
+
+            WritableMap result = Arguments.createMap();
+            result.putArray("conversations", conversations);
+            result.putBoolean("hasMore", hasMore);
+
+            if (hasMore) {
+                ConversationSummaryStore.Summary last = summaries.get(summaries.size() - 1);
+                WritableMap nextCursor = Arguments.createMap();
+                nextCursor.putDouble("beforeDate", last.date);
+                nextCursor.putDouble("beforeId", last.threadId);
+                result.putMap("nextCursor", nextCursor);
+            } else {
+                result.putNull("nextCursor");
+            }
+
+            promise.resolve(result);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read conversation summaries", e);
+            promise.reject("QUERY_FAILED", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the thread_id of the conversation with an address, or null if there is none yet.
+     * Read-only (see ThreadIdResolver): opening a chat must not create an empty thread; the
+     * first message sent to the address creates it.
+     */
+    @ReactMethod
+    public void getThreadId(final String address, final Promise promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "getThreadId", reactContext, promise,
+            () -> getThreadIdInternal(address, promise));
+    }
+
+    private void getThreadIdInternal(String address, Promise promise) {
+        try {
+            Long threadId = ThreadIdResolver.getInstance(reactContext).resolve(address);
+            promise.resolve(threadId != null ? String.valueOf(threadId) : null);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to resolve thread_id for " + address, e);
+            promise.reject("THREAD_LOOKUP_FAILED", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get one page of messages in a thread, SMS and MMS interleaved, newest first.
+     * Pass beforeDate/beforeId from the previous page's nextCursor (or -1 for the newest page).
+     * MMS rows carry their parts as attachments; see MmsMessageReader for how the two are ordered.
+     */
+    @ReactMethod
+    public void getThreadMessages(final String threadId, final double beforeDate, final double beforeId,
+                                  final int limit, final Promise promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "getThreadMessages", reactContext, promise,
+            () -> getThreadMessagesInternal(threadId, beforeDate, beforeId, limit, promise));
+    }
+
+    private void getThreadMessagesInternal(String threadId, double beforeDate, double beforeId, int limit, Promise promise) {
+        int pageSize = limit > 0 ? Math.min(limit, MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE;
+        // The key of an MMS cursor is negative, so only the date says whether there is one
+        long cursorDate = beforeDate >= 0 ? (long) beforeDate : -1;
+        long cursorKey = (long) beforeId;
+
+        // Only received and sent messages are shown in the chat UI
+        String selection = Telephony.Sms.THREAD_ID + " = ? AND " + Telephony.Sms.TYPE + " IN ("
+            + Telephony.Sms.MESSAGE_TYPE_INBOX + "," + Telephony.Sms.MESSAGE_TYPE_SENT + ")";
+        String[] selectionArgs = new String[]{threadId};
+        if (cursorDate >= 0) {
+            selection += " AND (" + Telephony.Sms.DATE + " < ? OR ("
+                + Telephony.Sms.DATE + " = ? AND " + Telephony.Sms._ID + " < ?))";
+            String date = String.valueOf(cursorDate);
+            selectionArgs = new String[]{threadId, date, date, String.valueOf(cursorKey)};
+        }
+
+        String sortOrder = Telephony.Sms.DATE + " DESC, " + Telephony.Sms._ID + " DESC LIMIT " + (pageSize + 1);
+
+        Cursor cursor = null;
+        try {
+            cursor = reactContext.getContentResolver().query(
+                Telephony.Sms.CONTENT_URI,
+                MESSAGE_PROJECTION,
+                selection,
+                selectionArgs,
+                sortOrder
+            );
+
+            MmsMessageReader mmsReader = new MmsMessageReader(reactContext);
+            List<MmsMessageReader.Row> mmsRows = mmsReader.readPage(threadId, cursorDate, cursorKey, pageSize + 1);
+
+            // Merge the two newest-first lists by (date, key), reading one row past the page
+            WritableArray messages = Arguments.createArray();
+            List<MmsMessageReader.Row> pageMms = new ArrayList<>();
+            List<WritableMap> pageMessages = new ArrayList<>();
+            MessageColumns columns = cursor != null ? new MessageColumns(cursor) : null;
+            boolean smsAvailable = cursor != null && cursor.moveToNext();
+            int mmsIndex = 0;
+            boolean hasMore = false;
+            long lastDate = 0;
+            long lastKey = 0;
+
+            while (smsAvailable || mmsIndex < mmsRows.size()) {
+                if (pageMessages.size() == pageSize) {
+                    hasMore = true;
+                    break;
+                }
+
+                MmsMessageReader.Row mms = mmsIndex < mmsRows.size() ? mmsRows.get(mmsIndex) : null;
+                boolean takeSms = smsAvailable;
+                if (smsAvailable && mms != null) {
+                    long smsDate = cursor.getLong(columns.date);
+                    takeSms = smsDate > mms.date || (smsDate == mms.date && cursor.getLong(columns.id) > mms.key());
+                }
+
+                if (takeSms) {
+                    lastDate = cursor.getLong(columns.date);
+                    lastKey = cursor.getLong(columns.id);
+                    pageMessages.add(columns.toMap(cursor));
+                    smsAvailable = cursor.moveToNext();
+                } else {
+                    lastDate = mms.date;
+                    lastKey = mms.key();
+                    pageMms.add(mms);
+                    // Filled in once the page is known, so parts are read for this page only
+                    pageMessages.add(null);
+                    mmsIndex++;
+                }
+            }
+
+            mmsReader.readContent(pageMms);
+            int mmsPosition = 0;
+            for (WritableMap message : pageMessages) {
+                messages.pushMap(message != null ? message : MmsMessageReader.toMap(pageMms.get(mmsPosition++)));
+            }
+
+            WritableMap result = Arguments.createMap();
+            result.putArray("messages", messages);
+            result.putBoolean("hasMore", hasMore);
+
+            if (hasMore) {
+                WritableMap nextCursor = Arguments.createMap();
+                nextCursor.putDouble("beforeDate", lastDate);
+                nextCursor.putDouble("beforeId", lastKey);
+                result.putMap("nextCursor", nextCursor);
+            } else {
+                result.putNull("nextCursor");
+            }
+
+            Log.d(TAG, "Returned " + pageMessages.size() + " messages (" + pageMms.size() + " MMS) for thread "
+                + threadId + ", hasMore=" + hasMore);
+            promise.resolve(result);
+
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException reading thread messages", e);
+            promise.reject("PERMISSION_DENIED", "READ_SMS permission required: " + e.getMessage(), e);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read thread messages", e);
+            promise.reject("QUERY_FAILED", e.getMessage(), e);
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        ioExecutor.cancelAll(reactContext);
+    }
+
+    /**
+     * Column indexes of MESSAGE_PROJECTION, resolved once per cursor
+     */
+    static class MessageColumns {
+        final int id;
+        final int threadId;
+        final int address;
+        final int body;
+        final int date;
+        final int type;
+        final int read;
+        final int subscriptionId;
+
+        MessageColumns(Cursor cursor) {
+            id = cursor.getColumnIndexOrThrow(Telephony.Sms._ID);
+            threadId = cursor.getColumnIndexOrThrow(Telephony.Sms.THREAD_ID);
+            address = cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS);
+            body = cursor.getColumnIndexOrThrow(Telephony.Sms.BODY);
+            date = cursor.getColumnIndexOrThrow(Telephony.Sms.DATE);
+            type = cursor.getColumnIndexOrThrow(Telephony.Sms.TYPE);
+            read = cursor.getColumnIndexOrThrow(Telephony.Sms.READ);
+            subscriptionId = cursor.getColumnIndex(Telephony.Sms.SUBSCRIPTION_ID);
+        }
+
+        WritableMap toMap(Cursor cursor) {
+            WritableMap message = Arguments.createMap();
+            message.putString("id", String.valueOf(cursor.getLong(id)));
+            message.putString("threadId", String.valueOf(cursor.getLong(threadId)));
+            message.putString("address", cursor.getString(address));
+            message.putString("body", cursor.getString(body));
+            message.putDouble("date", cursor.getLong(date));
+            message.putInt("type", cursor.getInt(type));
+            message.putBoolean("read", cursor.getInt(read) != 0);
+            if (subscriptionId >= 0) {
+                message.putInt("subscriptionId", cursor.getInt(subscriptionId));
+            }
+            return message;
+        }
+    }
+}
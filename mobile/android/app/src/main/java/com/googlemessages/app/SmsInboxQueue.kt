@@ -0,0 +1,115 @@
+package com.googlemessages.app
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import android.provider.Telephony
+
+/**
+ * App-private SQLite queue of inbox rows the provider refused, so an inbound SMS survives until
+ * SmsInboxWriter manages to commit it (see SmsInboxWriter.retryPending)
+ */
+class SmsInboxQueue(context: Context) : SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+
+    class PendingRow(val id: Long, val values: ContentValues)
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL(
+            """
+            CREATE TABLE $TABLE_PENDING (
+                $COLUMN_ID INTEGER PRIMARY KEY AUTOINCREMENT,
+                $COLUMN_ADDRESS TEXT NOT NULL,
+                $COLUMN_BODY TEXT NOT NULL,
+                $COLUMN_DATE INTEGER NOT NULL,
+                $COLUMN_DATE_SENT INTEGER NOT NULL,
+                $COLUMN_SERVICE_CENTER TEXT,
+                $COLUMN_SUBSCRIPTION_ID INTEGER
+            )
+            """.trimIndent()
+        )
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {}
+
+    /**
+     * Queue the inbox rows of one broadcast in a single transaction
+     */
+    fun add(rows: List<ContentValues>) {
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            for (row in rows) {
+                val values = ContentValues().apply {
+                    put(COLUMN_ADDRESS, row.getAsString(Telephony.Sms.ADDRESS))
+                    put(COLUMN_BODY, row.getAsString(Telephony.Sms.BODY))
+                    put(COLUMN_DATE, row.getAsLong(Telephony.Sms.DATE))
+                    put(COLUMN_DATE_SENT, row.getAsLong(Telephony.Sms.DATE_SENT))
+                    put(COLUMN_SERVICE_CENTER, row.getAsString(Telephony.Sms.SERVICE_CENTER))
+                    put(COLUMN_SUBSCRIPTION_ID, row.getAsInteger(Telephony.Sms.SUBSCRIPTION_ID))
+                }
+                db.insertOrThrow(TABLE_PENDING, null, values)
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    /**
+     * Up to limit queued rows as inbox ContentValues, oldest first
+     */
+    fun load(limit: Int): List<PendingRow> {
+        val rows = ArrayList<PendingRow>()
+        readableDatabase.query(
+            TABLE_PENDING,
+            arrayOf(COLUMN_ID, COLUMN_ADDRESS, COLUMN_BODY, COLUMN_DATE, COLUMN_DATE_SENT, COLUMN_SERVICE_CENTER, COLUMN_SUBSCRIPTION_ID),
+            null,
+            null,
+            null,
+            null,
+            "$COLUMN_ID ASC",
+            limit.toString()
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                val values = ContentValues().apply {
+                    put(Telephony.Sms.ADDRESS, cursor.getString(1))
+                    put(Telephony.Sms.BODY, cursor.getString(2))
+                    put(Telephony.Sms.DATE, cursor.getLong(3))
+                    put(Telephony.Sms.DATE_SENT, cursor.getLong(4))
+                    put(Telephony.Sms.READ, 0)
+                    put(Telephony.Sms.SEEN, 0)
+                    put(Telephony.Sms.SERVICE_CENTER, cursor.getString(5))
+                    if (!cursor.isNull(6)) {
+                        put(Telephony.Sms.SUBSCRIPTION_ID, cursor.getInt(6))
+                    }
+                }
+                rows.add(PendingRow(cursor.getLong(0), values))
+            }
+        }
+        return rows
+    }
+
+    fun delete(ids: List<Long>) {
+        if (ids.isEmpty()) return
+        writableDatabase.delete(
+            TABLE_PENDING,
+            "$COLUMN_ID IN (${ThreadSummaryReader.placeholders(ids.size)})",
+            ids.map { it.toString() }.toTypedArray()
+        )
+    }
+
+    companion object {
+        private const val DATABASE_NAME = "sms_inbox_queue.db"
+        private const val DATABASE_VERSION = 1
+
+        private const val TABLE_PENDING = "pending"
+        private const val COLUMN_ID = "_id"
+        private const val COLUMN_ADDRESS = "address"
+        private const val COLUMN_BODY = "body"
+        private const val COLUMN_DATE = "date"
+        private const val COLUMN_DATE_SENT = "date_sent"
+        private const val COLUMN_SERVICE_CENTER = "service_center"
+        private const val COLUMN_SUBSCRIPTION_ID = "subscription_id"
+    }
+}
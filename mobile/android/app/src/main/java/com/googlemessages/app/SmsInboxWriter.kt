@@ -0,0 +1,172 @@
+package com.googlemessages.app
+
+import android.content.ContentProviderOperation
+import android.content.ContentValues
+import android.content.Context
+import android.database.ContentObserver
+import android.provider.Telephony
+import android.util.Log
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Stores inbound SMS in the provider's inbox when this app is the default SMS app (the platform
+ * only does that itself for other default apps).
+ *
+ * persist() writes one broadcast's rows with a single applyBatch call: one IPC round trip. The
+ * SMS provider doesn't override applyBatch, so each insert still commits and notifies observers
+ * on its own. Rows the provider refuses go to SmsInboxQueue, so the receiver can always finish
+ * its broadcast; retryPending() commits them later. It runs before the next inbound batch, on
+ * app start, and on the next change to the SMS provider while rows are queued.
+ */
+class SmsInboxWriter private constructor(context: Context) {
+
+    private val appContext = context.applicationContext
+    private val queue = SmsInboxQueue(appContext)
+    private val retryScheduled = AtomicBoolean(false)
+
+    // Unknown until the queue has been read once
+    @Volatile
+    private var mayHavePending = true
+
+    // Registered while rows are queued: a provider change means it accepts writes again
+    private var observer: ContentObserver? = null
+
+    /**
+     * Whether inbound messages have to be persisted by us
+     */
+    fun isDefaultSmsApp(): Boolean {
+        return Telephony.Sms.getDefaultSmsPackage(appContext) == appContext.packageName
+    }
+
+    /**
+     * Insert one broadcast's inbox rows, after any rows still queued from earlier broadcasts.
+     * If the provider fails they are queued for retryPending() instead. Returns false only if
+     * they could be neither committed nor queued.
+     */
+    fun persist(values: List<ContentValues>): Boolean {
+        if (values.isEmpty()) return true
+
+        if (mayHavePending) {
+            retryPending()
+        }
+        if (!mayHavePending && insert(values)) {
+            Log.d(TAG, "Committed ${values.size} inbound messages in one batch")
+            return true
+        }
+
+        return try {
+            queue.add(values)
+            mayHavePending = true
+            watchProvider()
+            Log.w(TAG, "Queued ${values.size} inbound messages for retry")
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to queue inbound messages: ${e.message}", e)
+            false
+        }
+    }
+
+    /**
+     * Commit queued rows, oldest first. Stops at the first batch the provider refuses.
+     * Call on an SmsIoExecutor WRITE worker.
+     */
+    fun retryPending() {
+        synchronized(this) {
+            try {
+                while (true) {
+                    val pending = queue.load(RETRY_BATCH_SIZE)
+                    if (pending.isEmpty()) {
+                        mayHavePending = false
+                        unwatchProvider()
+                        return
+                    }
+                    if (!insert(pending.map { it.values })) {
+                        return
+                    }
+                    queue.delete(pending.map { it.id })
+                    Log.d(TAG, "Committed ${pending.size} queued inbound messages")
+                    ConversationSummaryStore.getInstance(appContext).invalidate()
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to retry queued inbound messages: ${e.message}", e)
+            }
+        }
+    }
+
+    /**
+     * One applyBatch call; true only if every row was inserted. After a partial failure the
+     * whole batch is queued again and some rows may be stored twice; that is preferred over
+     * losing a message.
+     */
+    private fun insert(values: List<ContentValues>): Boolean {
+        val operations = ArrayList<ContentProviderOperation>(values.size)
+        for (row in values) {
+            operations.add(
+                ContentProviderOperation.newInsert(Telephony.Sms.Inbox.CONTENT_URI)
+                    .withValues(row)
+                    .build()
+            )
+        }
+
+        return try {
+            val results = appContext.contentResolver.applyBatch(Telephony.Sms.Inbox.CONTENT_URI.authority!!, operations)
+            if (results.all { it.uri != null }) {
+                true
+            } else {
+                Log.e(TAG, "Inbox insert returned no row")
+                false
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Inbox insert failed: ${e.message}", e)
+            false
+        }
+    }
+
+    @Synchronized
+    private fun watchProvider() {
+        if (observer != null) return
+        val contentObserver = object : ContentObserver(null) {
+            override fun onChange(selfChange: Boolean) {
+                scheduleRetry()
+            }
+        }
+        appContext.contentResolver.registerContentObserver(Telephony.Sms.CONTENT_URI, true, contentObserver)
+        observer = contentObserver
+    }
+
+    @Synchronized
+    private fun unwatchProvider() {
+        val contentObserver = observer ?: return
+        appContext.contentResolver.unregisterContentObserver(contentObserver)
+        observer = null
+    }
+
+    /**
+     * Retry on a WRITE worker; changes arriving while one is pending are coalesced
+     */
+    fun scheduleRetry() {
+        if (!retryScheduled.compareAndSet(false, true)) return
+        SmsIoExecutor.get().execute(SmsIoExecutor.Lane.WRITE, "SmsInboxRetry") {
+            retryScheduled.set(false)
+            if (mayHavePending) {
+                retryPending()
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "SmsInboxWriter"
+
+        private const val RETRY_BATCH_SIZE = 100
+
+        @Volatile
+        private var instance: SmsInboxWriter? = null
+
+        @JvmStatic
+        fun get(context: Context): SmsInboxWriter {
+            return instance ?: synchronized(this) {
+                instance ?: SmsInboxWriter(context).also { instance = it }
+            }
+        }
+    }
+}
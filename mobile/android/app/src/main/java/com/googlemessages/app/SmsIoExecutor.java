@@ -0,0 +1,334 @@
+package com.googlemessages.app;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared, bounded executor for provider and telephony work done by the native SMS modules.
+ *
+ * React Native runs every @ReactMethod on a single native-modules thread, so a slow provider
+ * update used to block unrelated calls. Modules now hand their work to this executor instead:
+ * - INTERACTIVE: reads the UI is waiting on (conversation list, unread counts, SIM info)
+ * - WRITE: provider updates and sends; at most WRITE_LIMIT at a time
+ * - BULK: background / bulk work (verification, bulk deletes, exports); at most one at a time
+ *
+ * WRITE and BULK together never hold more than WORKER_COUNT - 1 workers, so one worker is
+ * always free for INTERACTIVE reads. Tasks over their lane's limit wait in a backlog.
+ *
+ * Every submitted task gets a Handle; cancelling it before the task starts rejects its promise
+ * with "CANCELLED", e.g. when a newer request supersedes it. Queued tasks whose React instance
+ * has gone away are cancelled the same way (see cancelAll). Running tasks are never interrupted.
+ */
+class SmsIoExecutor {
+    private static final String TAG = "SmsIoExecutor";
+
+    private static final int WORKER_COUNT = 3;
+    private static final int WRITE_LIMIT = 2;
+    private static final int BULK_LIMIT = 1;
+    private static final int BACKGROUND_LIMIT = WORKER_COUNT - 1;
+    private static final long SLOW_WAIT_MS = 100;
+
+    enum Lane {
+        INTERACTIVE,
+        WRITE,
+        BULK
+    }
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    interface Handle {
+        /**
+         * Cancel the task if it hasn't started; its promise is rejected with CANCELLED.
+         * Returns false if it has already started or finished.
+         */
+        boolean cancel();
+    }
+
+    private static SmsIoExecutor instance;
+
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LaneStats[] stats = new LaneStats[Lane.values().length];
+
+    // Guarded by this: admitted (queued in the pool or running) tasks per lane, and the tasks
+    // waiting for their lane to have room
+    private final int[] admitted = new int[Lane.values().length];
+    private final ArrayDeque<QueuedTask> writeBacklog = new ArrayDeque<>();
+    private final ArrayDeque<QueuedTask> bulkBacklog = new ArrayDeque<>();
+
+    static synchronized SmsIoExecutor get() {
+        if (instance == null) {
+            instance = new SmsIoExecutor();
+        }
+        return instance;
+    }
+
+    private SmsIoExecutor() {
+        for (Lane lane : Lane.values()) {
+            stats[lane.ordinal()] = new LaneStats();
+        }
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SmsIo-" + count.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        };
+
+        pool = new ThreadPoolExecutor(
+            WORKER_COUNT,
+            WORKER_COUNT,
+            30,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            threadFactory
+        );
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a task for a @ReactMethod. The task is responsible for resolving or rejecting the
+     * promise; uncaught exceptions reject it with IO_TASK_FAILED.
+     */
+    Handle submit(Lane lane, String name, ReactApplicationContext owner, Promise promise, Task task) {
+        QueuedTask queued = new QueuedTask(lane, name, owner, promise, task, sequence.incrementAndGet());
+        if (admit(queued)) {
+            pool.execute(queued);
+        }
+        return queued;
+    }
+
+    /**
+     * Run internal work that has no promise attached
+     */
+    Handle execute(Lane lane, String name, Runnable runnable) {
+        return submit(lane, name, null, null, runnable::run);
+    }
+
+    /**
+     * Cancel every task submitted for a React instance that is going away and hasn't started.
+     * Tasks submitted with execute() (no owner) always run.
+     */
+    void cancelAll(ReactApplicationContext owner) {
+        List<QueuedTask> owned = new ArrayList<>();
+        for (Runnable runnable : pool.getQueue()) {
+            QueuedTask queued = (QueuedTask) runnable;
+            if (queued.owner == owner) owned.add(queued);
+        }
+        synchronized (this) {
+            for (QueuedTask queued : writeBacklog) {
+                if (queued.owner == owner) owned.add(queued);
+            }
+            for (QueuedTask queued : bulkBacklog) {
+                if (queued.owner == owner) owned.add(queued);
+            }
+        }
+
+        int cancelled = 0;
+        for (QueuedTask queued : owned) {
+            if (queued.cancel()) cancelled++;
+        }
+        if (cancelled > 0) {
+            Log.d(TAG, "Cancelled " + cancelled + " queued tasks");
+        }
+    }
+
+    /**
+     * Queue-wait metrics per lane
+     */
+    WritableMap getStats() {
+        WritableMap result = Arguments.createMap();
+        for (Lane lane : Lane.values()) {
+            LaneStats laneStats = stats[lane.ordinal()];
+            WritableMap map = Arguments.createMap();
+            long count = laneStats.count.get();
+            map.putDouble("tasks", count);
+            map.putDouble("cancelled", laneStats.cancelled.get());
+            map.putDouble("avgWaitMs", count > 0 ? (double) laneStats.totalWaitMs.get() / count : 0);
+            map.putDouble("maxWaitMs", laneStats.maxWaitMs.get());
+            result.putMap(lane.name().toLowerCase(), map);
+        }
+        synchronized (this) {
+            result.putInt("backlog", writeBacklog.size() + bulkBacklog.size());
+        }
+        result.putInt("queued", pool.getQueue().size());
+        result.putInt("active", pool.getActiveCount());
+        return result;
+    }
+
+    /**
+     * Take a slot in the task's lane, or park it in the lane's backlog. Returns whether it
+     * should be handed to the pool now.
+     */
+    private synchronized boolean admit(QueuedTask queued) {
+        if (queued.lane == Lane.INTERACTIVE) {
+            return true;
+        }
+        if (hasRoom(queued.lane)) {
+            admitted[queued.lane.ordinal()]++;
+            queued.admitted = true;
+            return true;
+        }
+        backlogOf(queued.lane).add(queued);
+        return false;
+    }
+
+    private boolean hasRoom(Lane lane) {
+        int limit = lane == Lane.WRITE ? WRITE_LIMIT : BULK_LIMIT;
+        int background = admitted[Lane.WRITE.ordinal()] + admitted[Lane.BULK.ordinal()];
+        return admitted[lane.ordinal()] < limit && background < BACKGROUND_LIMIT;
+    }
+
+    private ArrayDeque<QueuedTask> backlogOf(Lane lane) {
+        return lane == Lane.WRITE ? writeBacklog : bulkBacklog;
+    }
+
+    /**
+     * A task that held a slot finished or was cancelled: admit whatever now fits, writes first
+     */
+    private void release(Lane lane) {
+        List<QueuedTask> ready = new ArrayList<>();
+        synchronized (this) {
+            admitted[lane.ordinal()]--;
+            for (Lane next : new Lane[]{Lane.WRITE, Lane.BULK}) {
+                ArrayDeque<QueuedTask> backlog = backlogOf(next);
+                while (!backlog.isEmpty() && hasRoom(next)) {
+                    QueuedTask queued = backlog.poll();
+                    admitted[next.ordinal()]++;
+                    queued.admitted = true;
+                    ready.add(queued);
+                }
+            }
+        }
+        for (QueuedTask queued : ready) {
+            pool.execute(queued);
+        }
+    }
+
+    private static class LaneStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong cancelled = new AtomicLong();
+        final AtomicLong totalWaitMs = new AtomicLong();
+        final AtomicLong maxWaitMs = new AtomicLong();
+
+        void record(long waitMs) {
+            count.incrementAndGet();
+            totalWaitMs.addAndGet(waitMs);
+            long max;
+            do {
+                max = maxWaitMs.get();
+            } while (waitMs > max && !maxWaitMs.compareAndSet(max, waitMs));
+        }
+    }
+
+    private class QueuedTask implements Runnable, Comparable<QueuedTask>, Handle {
+        final Lane lane;
+        final String name;
+        final ReactApplicationContext owner;
+        final Promise promise;
+        final Task task;
+        final long seq;
+        final long enqueuedAt = SystemClock.elapsedRealtime();
+        // Set under the executor's lock once the task holds a slot in its lane
+        boolean admitted = false;
+        // Exactly one of run() and cancel() claims the task
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        QueuedTask(Lane lane, String name, ReactApplicationContext owner, Promise promise, Task task, long seq) {
+            this.lane = lane;
+            this.name = name;
+            this.owner = owner;
+            this.promise = promise;
+            this.task = task;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(QueuedTask other) {
+            // Higher-priority lane first, FIFO within a lane
+            int byLane = Integer.compare(lane.ordinal(), other.lane.ordinal());
+            return byLane != 0 ? byLane : Long.compare(seq, other.seq);
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                // Cancelled while queued in the pool; cancel() released the slot
+                return;
+            }
+            try {
+                // The JS side that would receive this promise is gone
+                if (owner != null && !owner.hasActiveCatalystInstance()) {
+                    reject("the React instance went away");
+                    return;
+                }
+
+                long waitMs = SystemClock.elapsedRealtime() - enqueuedAt;
+                stats[lane.ordinal()].record(waitMs);
+                if (waitMs > SLOW_WAIT_MS) {
+                    Log.w(TAG, name + " waited " + waitMs + "ms in " + lane + " lane");
+                }
+
+                task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Task " + name + " failed", e);
+                if (promise != null) {
+                    promise.reject("IO_TASK_FAILED", e.getMessage(), e);
+                }
+            } finally {
+                if (lane != Lane.INTERACTIVE) {
+                    release(lane);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            boolean held;
+            synchronized (SmsIoExecutor.this) {
+                held = admitted;
+                if (!held && lane != Lane.INTERACTIVE) {
+                    backlogOf(lane).remove(this);
+                }
+            }
+            pool.remove(this);
+            if (held) {
+                release(lane);
+            }
+            reject("it was cancelled");
+            return true;
+        }
+
+        private void reject(String reason) {
+            stats[lane.ordinal()].cancelled.incrementAndGet();
+            if (promise != null) {
+                promise.reject("CANCELLED", name + " did not run because " + reason);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.googlemessages.app
+
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.PendingIntent
+import android.content.Context
+import android.content.Intent
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
+import android.util.Log
+import androidx.core.app.NotificationCompat
+import androidx.core.app.NotificationManagerCompat
+import androidx.core.app.Person
+
+/**
+ * One MessagingStyle notification per conversation for incoming SMS.
+ *
+ * Each conversation keeps its recent messages, so a new message is appended to the existing
+ * notification instead of replacing it. Messages arriving within COALESCE_MS are posted as one
+ * update, and sound/vibration fire at most once per REALERT_WINDOW_MS per conversation.
+ * The channel is created once per process.
+ */
+class SmsNotifier private constructor(context: Context) {
+
+    private class ConversationState(val sender: String) {
+        val messages = ArrayDeque<NotificationCompat.MessagingStyle.Message>()
+        var lastAlertAt = 0L
+        var updatePending = false
+    }
+
+    private val appContext = context.applicationContext
+    private val handler: Handler
+    private val canonicalizer = PhoneNumberCanonicalizer.getInstance(appContext)
+
+    // Only touched on the notifier thread
+    private val conversations = HashMap<String, ConversationState>()
+
+    init {
+        val thread = HandlerThread("SmsNotifier")
+        thread.start()
+        handler = Handler(thread.looper)
+        createNotificationChannel()
+    }
+
+    /**
+     * Add an incoming message to its conversation's notification
+     */
+    fun onMessageReceived(sender: String, body: String, timestamp: Long) {
+        val key = canonicalizer.canonicalize(sender)
+        handler.post {
+            val state = conversations.getOrPut(key) { ConversationState(sender) }
+            state.messages.addLast(NotificationCompat.MessagingStyle.Message(body, timestamp, null as Person?))
+            while (state.messages.size > MAX_HISTORY) {
+                state.messages.removeFirst()
+            }
+
+            // Coalesce a burst into one notification update
+            if (!state.updatePending) {
+                state.updatePending = true
+                handler.postDelayed({ post(key, state) }, COALESCE_MS)
+            }
+        }
+    }
+
+    /**
+     * Dismiss a conversation's notification and forget its history, e.g. once it has been read
+     */
+    fun clear(address: String) {
+        val key = canonicalizer.canonicalize(address)
+        handler.post {
+            conversations.remove(key)
+            NotificationManagerCompat.from(appContext).cancel(notificationId(key))
+        }
+    }
+
+    private fun post(key: String, state: ConversationState) {
+        state.updatePending = false
+        if (conversations[key] !== state || state.messages.isEmpty()) return
+
+        try {
+            val displayName = ContactNameCache.getInstance(appContext).lookup(state.sender)?.name ?: state.sender
+            val sender = Person.Builder().setName(displayName).setKey(key).build()
+
+            val style = NotificationCompat.MessagingStyle(Person.Builder().setName("Me").build())
+            for (message in state.messages) {
+                style.addMessage(message.text, message.timestamp, sender)
+            }
+
+            val now = SystemClock.elapsedRealtime()
+            val alert = state.lastAlertAt == 0L || now - state.lastAlertAt >= REALERT_WINDOW_MS
+            if (alert) {
+                state.lastAlertAt = now
+            }
+
+            val latest = state.messages.last()
+            val builder = NotificationCompat.Builder(appContext, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.sym_action_chat)
+                .setContentTitle(displayName)
+                .setContentText(latest.text)
+                .setStyle(style)
+                .setNumber(state.messages.size)
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setCategory(NotificationCompat.CATEGORY_MESSAGE)
+                .setAutoCancel(true)
+                .setShowWhen(true)
+                .setWhen(latest.timestamp)
+                // Updates inside the throttle window are silent
+                .setOnlyAlertOnce(!alert)
+                .setSilent(!alert)
+
+            if (alert) {
+                builder.setVibrate(longArrayOf(0, 250, 250, 250))
+                    .setSound(android.provider.Settings.System.DEFAULT_NOTIFICATION_URI)
+                    .setLights(0xFF0000FF.toInt(), 1000, 500)
+            }
+
+            createContentIntent(key, state.sender)?.let { builder.setContentIntent(it) }
+
+            NotificationManagerCompat.from(appContext).notify(notificationId(key), builder.build())
+            Log.d(TAG, "Notification updated for $key (${state.messages.size} messages, alert=$alert)")
+        } catch (e: SecurityException) {
+            Log.e(TAG, "Notification permission missing: ${e.message}")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to show notification: ${e.message}")
+        }
+    }
+
+    private fun createContentIntent(key: String, sender: String): PendingIntent? {
+        val intent = Intent(appContext, MainActivity::class.java).apply {
+            flags = Intent.FLAG_ACTIVITY_NEW_TASK or Intent.FLAG_ACTIVITY_CLEAR_TASK
+            putExtra("phoneNumber", sender)
+            setPackage(appContext.packageName) // Explicit package for security
+        }
+
+        // FLAG_IMMUTABLE is required for Android 12+ and available since Android 6.0
+        val flags = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
+        } else {
+            PendingIntent.FLAG_UPDATE_CURRENT
+        }
+
+        return try {
+            PendingIntent.getActivity(appContext, notificationId(key), intent, flags)
+        } catch (e: Exception) {
+            Log.e(TAG, "Error creating PendingIntent for notification: ${e.message}", e)
+            null
+        }
+    }
+
+    private fun notificationId(key: String): Int = key.hashCode()
+
+    /**
+     * Create notification channel (required for Android 8.0+)
+     */
+    private fun createNotificationChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            val channel = NotificationChannel(
+                CHANNEL_ID,
+                "SMS Messages",
+                NotificationManager.IMPORTANCE_HIGH
+            ).apply {
+                description = "Notifications for incoming SMS messages"
+                enableVibration(true)
+                vibrationPattern = longArrayOf(0, 250, 250, 250)
+                enableLights(true)
+                lightColor = 0xFF0000FF.toInt() // Blue
+                setShowBadge(true)
+            }
+
+            val notificationManager = appContext.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+            notificationManager.createNotificationChannel(channel)
+        }
+    }
+
+    companion object {
+        private const val TAG = "SmsNotifier"
+        private const val CHANNEL_ID = "sms_messages"
+
+        private const val MAX_HISTORY = 8
+        private const val COALESCE_MS = 300L
+        private const val REALERT_WINDOW_MS = 10_000L
+
+        @Volatile
+        private var instance: SmsNotifier? = null
+
+        @JvmStatic
+        fun get(context: Context): SmsNotifier {
+            return instance ?: synchronized(this) {
+                instance ?: SmsNotifier(context).also { instance = it }
+            }
+        }
+    }
+}
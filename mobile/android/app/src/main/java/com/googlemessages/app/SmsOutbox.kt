@@ -0,0 +1,542 @@
+package com.googlemessages.app
+
+import android.app.Activity
+import android.app.PendingIntent
+import android.content.Context
+import android.content.Intent
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
+import android.telephony.SmsManager
+import android.util.Log
+import com.facebook.react.bridge.Arguments
+import com.facebook.react.bridge.Promise
+
+/**
+ * Single outbound send queue behind every send API (EnhancedSmsManager, DualSimManager, SmsOutbox).
+ *
+ * Messages are persisted before they are accepted, kept in a FIFO per subscription and drained
+ * by one worker thread with a bounded number of in-flight sends per subscription. Each message
+ * moves through QUEUED -> SENDING -> SENT -> DELIVERED, or FAILED from any non-terminal state.
+ * Sent/delivered broadcasts arrive through SmsSentReceiver / SmsDeliveredReceiver, and status
+ * changes reach JS as batched onSmsStatusBatch events (see SmsStatusEventBatcher).
+ * Messages queued with SUBSCRIPTION_AUTO are assigned a SIM by SubscriptionRouter.
+ */
+class SmsOutbox private constructor(context: Context) {
+
+    enum class State {
+        QUEUED,
+        SENDING,
+        SENT,
+        DELIVERED,
+        FAILED
+    }
+
+    /**
+     * Receives the sent, delivered and failed transitions of messages queued with it, in place of
+     * onSmsStatusBatch events. Called on the outbox thread.
+     */
+    fun interface StatusListener {
+        fun onStatus(messageId: String, state: State, error: String?)
+    }
+
+    class OutboxMessage(
+        val messageId: String,
+        val address: String,
+        val body: String,
+        val subscriptionId: Int,
+        var state: State,
+        val createdAt: Long
+    ) {
+        /**
+         * One entry per SMS part: PART_PENDING, PART_SENT or PART_DELIVERED. Null until dispatched.
+         */
+        var parts: CharArray? = null
+
+        /**
+         * Pending sent or delivery fallback, cancelled when the real result arrives
+         */
+        var timeout: TimingWheel.Timeout? = null
+
+        /**
+         * elapsedRealtime of the dispatch, 0 if it happened before a restart
+         */
+        var dispatchedAt = 0L
+
+        /**
+         * Whether the message counts against its subscription's in-flight limit
+         */
+        var holdsSlot = false
+
+        /**
+         * Not persisted: messages restored after a restart report through events again
+         */
+        var listener: StatusListener? = null
+    }
+
+    private val appContext = context.applicationContext
+    private val store = SmsOutboxStore(appContext)
+    private val requestCodes = RequestCodeAllocator(appContext)
+    private val journal = DeliveryStatusJournal.get(appContext)
+    private val subscriptions = SubscriptionCache.get(appContext)
+    private val router = SubscriptionRouter(appContext)
+    private val handler: Handler
+    private val timeouts: TimingWheel
+    private val statusEvents: SmsStatusEventBatcher
+
+    // Everything below is only touched on the outbox thread
+    private val queues = LinkedHashMap<Int, ArrayDeque<OutboxMessage>>()
+    private val inFlight = HashMap<Int, Int>()
+    private val active = HashMap<String, OutboxMessage>()
+    // Last split per subscription, so the same body sent to many recipients is divided once
+    private val lastSplit = HashMap<Int, Pair<String, ArrayList<String>>>()
+
+    init {
+        val thread = HandlerThread("SmsOutbox")
+        thread.start()
+        handler = Handler(thread.looper)
+        timeouts = TimingWheel(handler)
+        statusEvents = SmsStatusEventBatcher(appContext, handler)
+        handler.post { restore() }
+    }
+
+    /**
+     * Persist a message and queue it for sending. Returns false if the messageId is already known,
+     * unless that message FAILED: then it is queued again (a retry).
+     * With SUBSCRIPTION_AUTO the SIM is chosen now and stored with the message.
+     */
+    fun enqueue(messageId: String, address: String, body: String, subscriptionId: Int, listener: StatusListener? = null): Boolean {
+        val resolvedId = if (subscriptionId == SUBSCRIPTION_AUTO) router.choose(address) else subscriptionId
+        val message = OutboxMessage(messageId, address, body, resolvedId, State.QUEUED, System.currentTimeMillis())
+        message.listener = listener
+        if (!store.insert(message) && !store.requeueFailed(message)) {
+            Log.w(TAG, "Duplicate messageId $messageId, not queued")
+            return false
+        }
+        journal.record(messageId, State.QUEUED)
+        router.onQueued(resolvedId)
+
+        handler.post {
+            queues.getOrPut(resolvedId) { ArrayDeque() }.addLast(message)
+            drain()
+        }
+        return true
+    }
+
+    /**
+     * Result of the sent PendingIntent for one part of a message
+     */
+    fun onSentResult(messageId: String, partIndex: Int, resultCode: Int) {
+        handler.post { handleSentResult(messageId, partIndex, resultCode) }
+    }
+
+    /**
+     * Result of the delivery PendingIntent for one part of a message
+     */
+    fun onDeliveredResult(messageId: String, partIndex: Int, resultCode: Int) {
+        handler.post { handleDeliveredResult(messageId, partIndex, resultCode) }
+    }
+
+    /**
+     * Queue depth and in-flight count per subscription
+     */
+    fun getStats(promise: Promise) {
+        handler.post {
+            val stats = Arguments.createMap()
+            val subscriptions = Arguments.createMap()
+            val subIds = LinkedHashSet<Int>().apply {
+                addAll(queues.keys)
+                addAll(inFlight.keys)
+            }
+            for (subId in subIds) {
+                val entry = Arguments.createMap()
+                entry.putInt("queued", queues[subId]?.size ?: 0)
+                entry.putInt("inFlight", inFlight[subId] ?: 0)
+                router.getHealth(subId)?.let { health ->
+                    entry.putDouble("latencyMs", health.getValue("latencyMs"))
+                    entry.putDouble("failureRate", health.getValue("failureRate"))
+                }
+                subscriptions.putMap(subId.toString(), entry)
+            }
+            stats.putMap("subscriptions", subscriptions)
+            stats.putInt("awaitingResult", active.size)
+            promise.resolve(stats)
+        }
+    }
+
+    /**
+     * Reload unfinished messages after process start. QUEUED messages are queued again in their
+     * original order; SENDING / SENT ones were already handed to the radio, so only their
+     * timeouts are re-armed. The result PendingIntents outlive the process, so a SENDING message
+     * can still get its sent broadcast; if it doesn't, it FAILED (see scheduleSentTimeout).
+     */
+    private fun restore() {
+        try {
+            store.pruneFinished(System.currentTimeMillis() - FINISHED_RETENTION_MS)
+
+            val pending = store.loadPending()
+            for (message in pending) {
+                when (message.state) {
+                    State.QUEUED -> {
+                        queues.getOrPut(message.subscriptionId) { ArrayDeque() }.addLast(message)
+                        router.onQueued(message.subscriptionId)
+                    }
+                    State.SENDING -> {
+                        active[message.messageId] = message
+                        router.onQueued(message.subscriptionId)
+                        acquireSlot(message)
+                        scheduleSentTimeout(message, SENT_TIMEOUT_MS)
+                    }
+                    State.SENT -> {
+                        // Past its delivery window the message is no longer tracked
+                        if (System.currentTimeMillis() - message.createdAt < SENT_TIMEOUT_MS + DELIVERY_TIMEOUT_MS) {
+                            active[message.messageId] = message
+                            scheduleDeliveryTimeout(message)
+                        }
+                    }
+                    else -> {}
+                }
+            }
+
+            if (pending.isNotEmpty()) {
+                Log.d(TAG, "Restored ${pending.size} unfinished messages")
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to restore outbox: ${e.message}", e)
+        }
+        drain()
+    }
+
+    private fun drain() {
+        for ((subscriptionId, queue) in queues) {
+            while (queue.isNotEmpty() && (inFlight[subscriptionId] ?: 0) < MAX_IN_FLIGHT_PER_SUBSCRIPTION) {
+                dispatch(queue.removeFirst())
+            }
+        }
+    }
+
+    private fun dispatch(message: OutboxMessage) {
+        updateState(message, State.SENDING, null)
+        active[message.messageId] = message
+        acquireSlot(message)
+        message.dispatchedAt = SystemClock.elapsedRealtime()
+
+        try {
+            val smsManager = subscriptions.getSmsManager(message.subscriptionId)
+            val parts = divideMessage(smsManager, message)
+            message.parts = CharArray(parts.size) { PART_PENDING }
+            store.updateParts(message.messageId, message.parts!!)
+
+            // One sent and one delivered intent per part, each with its own request code,
+            // so every part reports separately
+            val firstCode = requestCodes.allocate(parts.size * 2)
+            val sentIntents = ArrayList<PendingIntent>(parts.size)
+            val deliveredIntents = ArrayList<PendingIntent>(parts.size)
+            for (i in parts.indices) {
+                sentIntents.add(createResultIntent(SMS_SENT_ACTION, message, i, parts.size, firstCode + i * 2))
+                deliveredIntents.add(createResultIntent(SMS_DELIVERED_ACTION, message, i, parts.size, firstCode + i * 2 + 1))
+            }
+
+            var withResults = true
+            try {
+                if (parts.size > 1) {
+                    smsManager.sendMultipartTextMessage(message.address, null, parts, sentIntents, deliveredIntents)
+                } else {
+                    smsManager.sendTextMessage(message.address, null, message.body, sentIntents[0], deliveredIntents[0])
+                }
+            } catch (e: SecurityException) {
+                throw e
+            } catch (e: Exception) {
+                // If sending with PendingIntents fails, try without them; the timeouts settle the state
+                Log.w(TAG, "Failed to send with PendingIntents, trying without: ${e.message}")
+                if (parts.size > 1) {
+                    smsManager.sendMultipartTextMessage(message.address, null, parts, null, null)
+                } else {
+                    smsManager.sendTextMessage(message.address, null, message.body, null, null)
+                }
+                withResults = false
+            }
+
+            Log.d(TAG, "Dispatched ${message.messageId} (${parts.size} parts) via subscription ${message.subscriptionId}")
+            if (withResults) {
+                scheduleSentTimeout(message, SENT_TIMEOUT_MS)
+            } else {
+                // No result will ever arrive; don't hold a slot for it while the radio retries
+                releaseSlot(message)
+                scheduleSentTimeout(message, UNTRACKED_SENT_TIMEOUT_MS)
+            }
+        } catch (e: SecurityException) {
+            Log.e(TAG, "Permission denied: ${e.message}")
+            fail(message, "SMS permission denied. Please grant SMS permissions in Settings.")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to send SMS: ${e.message}", e)
+            fail(message, "Failed to send SMS: ${e.message}")
+        }
+    }
+
+    private fun handleSentResult(messageId: String, partIndex: Int, resultCode: Int) {
+        val message = active[messageId]
+        val error = sentError(resultCode)
+
+        if (message == null) {
+            // Already finished (e.g. a late part after a failure) or pruned
+            Log.w(TAG, "Sent result for unknown message $messageId part $partIndex")
+            return
+        }
+
+        if (error != null) {
+            router.onSentResult(message.subscriptionId, resultCode, -1)
+            fail(message, error)
+            return
+        }
+
+        if (!markPart(message, partIndex, PART_SENT)) {
+            return
+        }
+
+        // Sent only once every part has been accepted by the radio
+        if (message.state == State.SENDING && allPartsAtLeast(message, PART_SENT)) {
+            val latency = if (message.dispatchedAt > 0) SystemClock.elapsedRealtime() - message.dispatchedAt else -1
+            router.onSentResult(message.subscriptionId, resultCode, latency)
+            cancelTimeout(message)
+            markSent(message)
+        }
+    }
+
+    private fun handleDeliveredResult(messageId: String, partIndex: Int, resultCode: Int) {
+        val delivered = resultCode == Activity.RESULT_OK
+        val message = active[messageId]
+        if (message == null) {
+            Log.w(TAG, "Delivery result for unknown message $messageId part $partIndex")
+            return
+        }
+
+        if (delivered) {
+            // Delivered only once every part has a delivery report
+            if (!markPart(message, partIndex, PART_DELIVERED) || !allPartsAtLeast(message, PART_DELIVERED)) {
+                return
+            }
+        }
+        active.remove(messageId)
+        cancelTimeout(message)
+        // Still holds its slot if the delivery report beat the sent broadcast
+        releaseSlot(message)
+        updateState(message, if (delivered) State.DELIVERED else State.FAILED, if (delivered) null else "Not delivered")
+
+        if (delivered) {
+            emitStatus(message, "delivered", "delivered", null)
+        } else {
+            emitStatus(message, "delivered", "not_delivered", "Message not delivered to recipient")
+        }
+        drain()
+    }
+
+    private fun markSent(message: OutboxMessage) {
+        updateState(message, State.SENT, null)
+        releaseSlot(message)
+        emitStatus(message, "sent", "sent", null)
+        scheduleDeliveryTimeout(message)
+        // The platform writes the sent row; refresh the conversation list once it lands
+        ConversationSummaryStore.getInstance(appContext).invalidate()
+        drain()
+    }
+
+    private fun fail(message: OutboxMessage, error: String) {
+        cancelTimeout(message)
+        releaseSlot(message)
+        active.remove(message.messageId)
+        updateState(message, State.FAILED, error)
+        emitStatus(message, "sent", "failed", error)
+        drain()
+    }
+
+    /**
+     * Advance one part. Returns false if the part is unknown or already at (or past) that state.
+     */
+    private fun markPart(message: OutboxMessage, partIndex: Int, partState: Char): Boolean {
+        val parts = message.parts
+        if (parts == null || partIndex !in parts.indices) {
+            // Dispatched before parts were tracked; treat the message as a single unit
+            return true
+        }
+        if (parts[partIndex] >= partState) {
+            Log.d(TAG, "Duplicate result for ${message.messageId} part $partIndex")
+            return false
+        }
+
+        parts[partIndex] = partState
+        try {
+            store.updateParts(message.messageId, parts)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to persist parts for ${message.messageId}", e)
+        }
+        return true
+    }
+
+    private fun allPartsAtLeast(message: OutboxMessage, partState: Char): Boolean {
+        val parts = message.parts ?: return true
+        return parts.all { it >= partState }
+    }
+
+    /**
+     * Some devices never deliver the sent broadcast; assume sent so the queue keeps moving.
+     * The platform keeps retrying a send for a while before it reports a result, so the
+     * fallback only fires once that horizon has passed; earlier, the slot would be handed to
+     * the next message while this one is still being retried. Sends without result intents
+     * hold no slot and use a short delay instead.
+     *
+     * A message dispatched before a restart is never assumed sent: the process may have died
+     * before the radio took it, so without a sent broadcast it FAILED and can be queued again.
+     */
+    private fun scheduleSentTimeout(message: OutboxMessage, delayMs: Long) {
+        cancelTimeout(message)
+        message.timeout = timeouts.schedule(delayMs) {
+            message.timeout = null
+            if (message.state != State.SENDING) {
+                return@schedule
+            }
+            if (message.dispatchedAt == 0L) {
+                Log.w(TAG, "No sent result for ${message.messageId} dispatched before restart")
+                fail(message, "Send result lost after restart. Please try again.")
+            } else {
+                Log.w(TAG, "Sent timeout for ${message.messageId} - assuming sent")
+                markSent(message)
+            }
+        }
+    }
+
+    /**
+     * Stop waiting for a delivery report. Many carriers never send one, so no report says
+     * nothing about delivery: the message stays SENT (delivery unknown) and is only dropped
+     * from tracking. A report that arrives later is ignored.
+     */
+    private fun scheduleDeliveryTimeout(message: OutboxMessage) {
+        cancelTimeout(message)
+        message.timeout = timeouts.schedule(DELIVERY_TIMEOUT_MS) {
+            message.timeout = null
+            if (message.state == State.SENT) {
+                Log.w(TAG, "No delivery report for ${message.messageId}, leaving it sent")
+                active.remove(message.messageId)
+            }
+        }
+    }
+
+    private fun cancelTimeout(message: OutboxMessage) {
+        message.timeout?.cancel()
+        message.timeout = null
+    }
+
+    private fun divideMessage(smsManager: SmsManager, message: OutboxMessage): ArrayList<String> {
+        val cached = lastSplit[message.subscriptionId]
+        if (cached != null && cached.first == message.body) {
+            return cached.second
+        }
+        val parts = smsManager.divideMessage(message.body)
+        lastSplit[message.subscriptionId] = Pair(message.body, parts)
+        return parts
+    }
+
+    private fun updateState(message: OutboxMessage, state: State, error: String?) {
+        message.state = state
+        journal.record(message.messageId, state)
+        try {
+            store.updateState(message.messageId, state, error)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to persist state $state for ${message.messageId}", e)
+        }
+    }
+
+    private fun acquireSlot(message: OutboxMessage) {
+        inFlight[message.subscriptionId] = (inFlight[message.subscriptionId] ?: 0) + 1
+        message.holdsSlot = true
+    }
+
+    private fun releaseSlot(message: OutboxMessage) {
+        if (!message.holdsSlot) return
+        message.holdsSlot = false
+        val subscriptionId = message.subscriptionId
+        val count = (inFlight[subscriptionId] ?: 0) - 1
+        if (count > 0) inFlight[subscriptionId] = count else inFlight.remove(subscriptionId)
+        router.onFinished(subscriptionId)
+    }
+
+    private fun createResultIntent(action: String, message: OutboxMessage, partIndex: Int, partCount: Int, requestCode: Int): PendingIntent {
+        // FLAG_IMMUTABLE is required for Android 12+ and available since Android 6.0
+        val flags = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
+        } else {
+            PendingIntent.FLAG_UPDATE_CURRENT
+        }
+
+        return PendingIntent.getBroadcast(
+            appContext,
+            requestCode,
+            Intent(action).apply {
+                putExtra("messageId", message.messageId)
+                putExtra("phoneNumber", message.address)
+                putExtra("subscriptionId", message.subscriptionId)
+                putExtra("partIndex", partIndex)
+                putExtra("partCount", partCount)
+                setPackage(appContext.packageName) // Explicit package for security
+            },
+            flags
+        )
+    }
+
+    private fun sentError(resultCode: Int): String? {
+        return when (resultCode) {
+            Activity.RESULT_OK -> null
+            SmsManager.RESULT_ERROR_GENERIC_FAILURE -> "Generic failure. Please try again."
+            SmsManager.RESULT_ERROR_NO_SERVICE -> "No cellular service. Check your connection."
+            SmsManager.RESULT_ERROR_NULL_PDU -> "Invalid message format."
+            SmsManager.RESULT_ERROR_RADIO_OFF -> "Airplane mode is on. Turn off airplane mode."
+            else -> "Unknown error ($resultCode)"
+        }
+    }
+
+    private fun emitStatus(message: OutboxMessage, event: String, status: String, error: String?) {
+        val listener = message.listener
+        if (listener != null) {
+            listener.onStatus(message.messageId, message.state, error)
+        } else {
+            statusEvents.add(event, message.messageId, message.address, status, error)
+        }
+    }
+
+    companion object {
+        private const val TAG = "SmsOutbox"
+
+        const val SMS_SENT_ACTION = "com.googlemessages.app.SMS_SENT"
+        const val SMS_DELIVERED_ACTION = "com.googlemessages.app.SMS_DELIVERED"
+
+        /**
+         * Let the outbox pick the SIM (see SubscriptionRouter); -1 is the default SMS SIM
+         */
+        const val SUBSCRIPTION_AUTO = -2
+
+        // Ordered so that a later state compares greater
+        private const val PART_PENDING = '0'
+        private const val PART_SENT = '1'
+        private const val PART_DELIVERED = '2'
+
+        private const val MAX_IN_FLIGHT_PER_SUBSCRIPTION = 4
+        // SMSDispatcher retries a failed send up to 3 times, 2s apart, and each attempt can
+        // wait up to a minute for the radio; wait out all four attempts
+        private const val SENT_TIMEOUT_MS = 4 * (60_000L + 2_000L)
+        // Sent without result intents: nothing will report back, the send call succeeding is all we learn
+        private const val UNTRACKED_SENT_TIMEOUT_MS = 5_000L
+        private const val DELIVERY_TIMEOUT_MS = 60_000L
+        private const val FINISHED_RETENTION_MS = 7 * 24 * 60 * 60 * 1000L
+
+        @Volatile
+        private var instance: SmsOutbox? = null
+
+        @JvmStatic
+        fun get(context: Context): SmsOutbox {
+            return instance ?: synchronized(this) {
+                instance ?: SmsOutbox(context).also { instance = it }
+            }
+        }
+    }
+}
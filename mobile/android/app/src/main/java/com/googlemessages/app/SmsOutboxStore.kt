@@ -0,0 +1,160 @@
+package com.googlemessages.app
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+
+/**
+ * App-private SQLite store backing the outbox, so queued and in-flight messages
+ * survive process death
+ */
+class SmsOutboxStore(context: Context) : SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL(
+            """
+            CREATE TABLE $TABLE_OUTBOX (
+                $COLUMN_ID INTEGER PRIMARY KEY AUTOINCREMENT,
+                $COLUMN_MESSAGE_ID TEXT NOT NULL UNIQUE,
+                $COLUMN_ADDRESS TEXT NOT NULL,
+                $COLUMN_BODY TEXT NOT NULL,
+                $COLUMN_SUBSCRIPTION_ID INTEGER NOT NULL,
+                $COLUMN_STATE TEXT NOT NULL,
+                $COLUMN_ERROR TEXT,
+                $COLUMN_PART_STATE TEXT,
+                $COLUMN_CREATED_AT INTEGER NOT NULL,
+                $COLUMN_UPDATED_AT INTEGER NOT NULL
+            )
+            """.trimIndent()
+        )
+        db.execSQL("CREATE INDEX idx_outbox_state ON $TABLE_OUTBOX ($COLUMN_STATE, $COLUMN_ID)")
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE $TABLE_OUTBOX ADD COLUMN $COLUMN_PART_STATE TEXT")
+        }
+    }
+
+    /**
+     * Persist a new message in QUEUED state. Returns false if the messageId already exists.
+     */
+    fun insert(message: SmsOutbox.OutboxMessage): Boolean {
+        val now = System.currentTimeMillis()
+        val values = ContentValues().apply {
+            put(COLUMN_MESSAGE_ID, message.messageId)
+            put(COLUMN_ADDRESS, message.address)
+            put(COLUMN_BODY, message.body)
+            put(COLUMN_SUBSCRIPTION_ID, message.subscriptionId)
+            put(COLUMN_STATE, message.state.name)
+            put(COLUMN_CREATED_AT, message.createdAt)
+            put(COLUMN_UPDATED_AT, now)
+        }
+        return writableDatabase.insertWithOnConflict(TABLE_OUTBOX, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1L
+    }
+
+    /**
+     * Queue a FAILED message again under the same messageId with the new content.
+     * Returns false if the messageId is unknown or not FAILED.
+     */
+    fun requeueFailed(message: SmsOutbox.OutboxMessage): Boolean {
+        val values = ContentValues().apply {
+            put(COLUMN_ADDRESS, message.address)
+            put(COLUMN_BODY, message.body)
+            put(COLUMN_SUBSCRIPTION_ID, message.subscriptionId)
+            put(COLUMN_STATE, message.state.name)
+            putNull(COLUMN_ERROR)
+            putNull(COLUMN_PART_STATE)
+            put(COLUMN_CREATED_AT, message.createdAt)
+            put(COLUMN_UPDATED_AT, System.currentTimeMillis())
+        }
+        return writableDatabase.update(
+            TABLE_OUTBOX,
+            values,
+            "$COLUMN_MESSAGE_ID = ? AND $COLUMN_STATE = ?",
+            arrayOf(message.messageId, SmsOutbox.State.FAILED.name)
+        ) > 0
+    }
+
+    fun updateState(messageId: String, state: SmsOutbox.State, error: String?) {
+        val values = ContentValues().apply {
+            put(COLUMN_STATE, state.name)
+            put(COLUMN_ERROR, error)
+            put(COLUMN_UPDATED_AT, System.currentTimeMillis())
+        }
+        writableDatabase.update(TABLE_OUTBOX, values, "$COLUMN_MESSAGE_ID = ?", arrayOf(messageId))
+    }
+
+    /**
+     * Persist per-part progress of a multipart message (see SmsOutbox.OutboxMessage.parts)
+     */
+    fun updateParts(messageId: String, parts: CharArray) {
+        val values = ContentValues().apply {
+            put(COLUMN_PART_STATE, String(parts))
+            put(COLUMN_UPDATED_AT, System.currentTimeMillis())
+        }
+        writableDatabase.update(TABLE_OUTBOX, values, "$COLUMN_MESSAGE_ID = ?", arrayOf(messageId))
+    }
+
+    /**
+     * Load every message that has not reached a terminal state, oldest first
+     */
+    fun loadPending(): List<SmsOutbox.OutboxMessage> {
+        val messages = ArrayList<SmsOutbox.OutboxMessage>()
+        readableDatabase.query(
+            TABLE_OUTBOX,
+            arrayOf(COLUMN_MESSAGE_ID, COLUMN_ADDRESS, COLUMN_BODY, COLUMN_SUBSCRIPTION_ID, COLUMN_STATE, COLUMN_CREATED_AT, COLUMN_PART_STATE),
+            "$COLUMN_STATE IN (?, ?, ?)",
+            arrayOf(SmsOutbox.State.QUEUED.name, SmsOutbox.State.SENDING.name, SmsOutbox.State.SENT.name),
+            null,
+            null,
+            "$COLUMN_ID ASC"
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                messages.add(
+                    SmsOutbox.OutboxMessage(
+                        messageId = cursor.getString(0),
+                        address = cursor.getString(1),
+                        body = cursor.getString(2),
+                        subscriptionId = cursor.getInt(3),
+                        state = SmsOutbox.State.valueOf(cursor.getString(4)),
+                        createdAt = cursor.getLong(5)
+                    ).apply {
+                        parts = cursor.getString(6)?.toCharArray()
+                    }
+                )
+            }
+        }
+        return messages
+    }
+
+    /**
+     * Remove messages last touched before the cutoff that are terminal, or SENT and no longer
+     * waiting for a delivery report
+     */
+    fun pruneFinished(olderThan: Long): Int {
+        return writableDatabase.delete(
+            TABLE_OUTBOX,
+            "$COLUMN_STATE IN (?, ?, ?) AND $COLUMN_UPDATED_AT < ?",
+            arrayOf(SmsOutbox.State.SENT.name, SmsOutbox.State.DELIVERED.name, SmsOutbox.State.FAILED.name, olderThan.toString())
+        )
+    }
+
+    companion object {
+        private const val DATABASE_NAME = "sms_outbox.db"
+        private const val DATABASE_VERSION = 2
+
+        private const val TABLE_OUTBOX = "outbox"
+        private const val COLUMN_ID = "_id"
+        private const val COLUMN_MESSAGE_ID = "message_id"
+        private const val COLUMN_ADDRESS = "address"
+        private const val COLUMN_BODY = "body"
+        private const val COLUMN_SUBSCRIPTION_ID = "subscription_id"
+        private const val COLUMN_STATE = "state"
+        private const val COLUMN_ERROR = "error"
+        private const val COLUMN_PART_STATE = "part_state"
+        private const val COLUMN_CREATED_AT = "created_at"
+        private const val COLUMN_UPDATED_AT = "updated_at"
+    }
+}
@@ -2,24 +2,42 @@ package com.googlemessages.app;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Telephony;
 import android.util.Log;
 
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SmsReadManagerModule extends ReactContextBaseJavaModule {
     private static final String TAG = "SmsReadManager";
+    // Give up on verification if the provider never reports the change
+    private static final long VERIFY_TIMEOUT_MS = 10_000;
     private final ReactApplicationContext reactContext;
+    private final ThreadIdResolver threadIdResolver;
+    private final SmsIoExecutor ioExecutor = SmsIoExecutor.get();
+    private volatile boolean verifyReads = BuildConfig.DEBUG;
+    private final Handler timeoutHandler = new Handler(Looper.getMainLooper());
 
     public SmsReadManagerModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        this.threadIdResolver = ThreadIdResolver.getInstance(reactContext);
     }
 
     @Override
@@ -27,12 +45,27 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
         return "SmsReadManager";
     }
 
+    /**
+     * Enable or disable the post-update verification query (on by default in debug builds)
+     */
+    @ReactMethod
+    public void setReadVerificationEnabled(boolean enabled) {
+        verifyReads = enabled;
+    }
+
     /**
      * Mark all messages from a specific phone number as read
      * Requires the app to be the default SMS app on Android 4.4+
+     *
+     * Runs in the WRITE lane of the shared I/O executor and resolves as soon as the update commits.
      */
     @ReactMethod
-    public void markConversationAsRead(String phoneNumber, Promise promise) {
+    public void markConversationAsRead(final String phoneNumber, final Promise promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.WRITE, "markConversationAsRead", reactContext, promise,
+            () -> markConversationAsReadInternal(phoneNumber, promise));
+    }
+
+    private void markConversationAsReadInternal(String phoneNumber, Promise promise) {
         try {
             Log.d(TAG, "Starting markConversationAsRead for: " + phoneNumber);
             
@@ -41,9 +74,6 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
                 String defaultSmsPackage = Telephony.Sms.getDefaultSmsPackage(reactContext);
                 String ourPackage = reactContext.getPackageName();
                 
-                Log.d(TAG, "Default SMS app: " + defaultSmsPackage);
-                Log.d(TAG, "Our package: " + ourPackage);
-                
                 if (!ourPackage.equals(defaultSmsPackage)) {
                     String errorMsg = "App is not the default SMS app. Cannot mark messages as read. Current default: " + defaultSmsPackage;
                     Log.e(TAG, errorMsg);
@@ -52,22 +82,18 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
                 }
             }
             
+            // Reading the conversation dismisses its notification
+            SmsNotifier.get(reactContext).clear(phoneNumber);
+            
             ContentResolver contentResolver = reactContext.getContentResolver();
             
             // Use proper Telephony.Sms.Inbox URI
             Uri uri = Telephony.Sms.Inbox.CONTENT_URI;
             
-            // Normalize phone number (remove spaces, dashes, parentheses)
-            String normalizedNumber = phoneNumber.replaceAll("[\\s\\-()]", "");
-            Log.d(TAG, "Normalized number: " + normalizedNumber);
-            
-            Cursor cursor = null;
-            int markedCount = 0;
-            
             try {
                 // STEP 1: Get the thread_id for this phone number
                 // thread_id is more reliable than address for marking conversations
-                Long threadId = getThreadIdForPhoneNumber(phoneNumber, normalizedNumber);
+                Long threadId = getThreadIdForPhoneNumber(phoneNumber);
                 
                 if (threadId == null) {
                     Log.w(TAG, "No thread found for phone number: " + phoneNumber);
@@ -77,41 +103,14 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
                 
                 Log.d(TAG, "Found thread_id: " + threadId + " for " + phoneNumber);
                 
-                // STEP 2: Count unread messages in this thread
-                String selection = "thread_id = ? AND read = ?";
-                String[] selectionArgs = new String[]{String.valueOf(threadId), "0"};
-                
-                cursor = contentResolver.query(
-                    uri,
-                    new String[]{"_id", "address", "read", "thread_id"},
-                    selection,
-                    selectionArgs,
-                    null
-                );
-                
-                if (cursor != null) {
-                    int totalUnread = cursor.getCount();
-                    Log.d(TAG, "Found " + totalUnread + " unread messages in thread " + threadId);
-                    
-                    if (totalUnread == 0) {
-                        Log.d(TAG, "No unread messages to mark as read");
-                        cursor.close();
-                        promise.resolve(0);
-                        return;
-                    }
-                    
-                    cursor.close();
-                    cursor = null;
-                }
-                
-                // STEP 3: Mark all messages in thread as read using thread_id
+                // STEP 2: Mark unread messages in thread as read using thread_id.
+                // The update's row count doubles as the unread count, so no separate count query.
                 ContentValues values = new ContentValues();
                 values.put(Telephony.Sms.Inbox.READ, 1); // 1 = read
                 values.put(Telephony.Sms.Inbox.SEEN, 1); // Also mark as seen
                 
-                // Update by thread_id - more reliable than address
-                selection = "thread_id = ?";
-                selectionArgs = new String[]{String.valueOf(threadId)};
+                String selection = "thread_id = ? AND read = ?";
+                String[] selectionArgs = new String[]{String.valueOf(threadId), "0"};
                 
                 int updatedRows = contentResolver.update(
                     uri,
@@ -120,40 +119,31 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
                     selectionArgs
                 );
                 
+                if (updatedRows == 0) {
+                    Log.d(TAG, "No unread messages to mark as read");
+                    promise.resolve(0);
+                    return;
+                }
+                
                 Log.d(TAG, "✅ Successfully marked " + updatedRows + " messages as read in thread " + threadId);
-                markedCount = updatedRows;
+                ConversationSummaryStore.getInstance(reactContext).onThreadRead(threadId);
+                
+                // Verify once the provider has dispatched the change, off the promise path
+                if (verifyReads) {
+                    verifyOnNextChange(threadId);
+                }
                 
                 // ALWAYS notify the system that SMS database changed (all Android versions)
                 contentResolver.notifyChange(uri, null);
                 Log.d(TAG, "Notified system of SMS database change");
                 
+                promise.resolve(updatedRows);
+                
             } catch (SecurityException e) {
                 Log.e(TAG, "SecurityException - App is not default SMS app", e);
                 promise.reject("SECURITY_ERROR", "Cannot mark as read: App must be set as default SMS app. " + e.getMessage());
-                return;
-            } catch (Exception e) {
-                Log.e(TAG, "Error marking messages as read", e);
-                throw e;
-            } finally {
-                if (cursor != null && !cursor.isClosed()) {
-                    cursor.close();
-                }
-            }
-            
-            // Wait for database to update
-            try {
-                Thread.sleep(300);
-            } catch (InterruptedException e) {
-                Log.w(TAG, "Sleep interrupted", e);
-            }
-            
-            // Verify the changes
-            if (markedCount > 0) {
-                verifyReadStatusByThreadId(getThreadIdForPhoneNumber(phoneNumber, normalizedNumber));
             }
             
-            promise.resolve(markedCount);
-            
         } catch (Exception e) {
             Log.e(TAG, "Failed to mark conversation as read", e);
             promise.reject("MARK_AS_READ_FAILED", e.getMessage(), e);
@@ -161,43 +151,38 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
     }
     
     /**
-     * Get thread_id for a phone number
-     * Returns null if no thread found
+     * Run verifyReadStatusByThreadId in the background after the next provider change
+     * notification, instead of sleeping for a fixed time. The observer is unregistered after
+     * VERIFY_TIMEOUT_MS if no change arrives.
      */
-    private Long getThreadIdForPhoneNumber(String phoneNumber, String normalizedNumber) {
-        ContentResolver contentResolver = reactContext.getContentResolver();
-        Uri uri = Telephony.Sms.CONTENT_URI;
-        
-        String selection = "address = ? OR address = ?";
-        String[] selectionArgs = new String[]{phoneNumber, normalizedNumber};
-        
-        Cursor cursor = null;
-        try {
-            cursor = contentResolver.query(
-                uri,
-                new String[]{"thread_id"},
-                selection,
-                selectionArgs,
-                "date DESC LIMIT 1"
-            );
-            
-            if (cursor != null && cursor.moveToFirst()) {
-                int threadIdIndex = cursor.getColumnIndex("thread_id");
-                if (threadIdIndex >= 0) {
-                    long threadId = cursor.getLong(threadIdIndex);
-                    cursor.close();
-                    return threadId;
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting thread_id for phone number", e);
-        } finally {
-            if (cursor != null && !cursor.isClosed()) {
-                cursor.close();
+    private void verifyOnNextChange(final long threadId) {
+        final ContentResolver contentResolver = reactContext.getContentResolver();
+        // Set by whichever comes first, the change or the timeout
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (!done.compareAndSet(false, true)) return;
+                contentResolver.unregisterContentObserver(this);
+                ioExecutor.execute(SmsIoExecutor.Lane.BULK, "verifyReadStatus",
+                    () -> verifyReadStatusByThreadId(threadId));
             }
-        }
-        
-        return null;
+        };
+        contentResolver.registerContentObserver(Telephony.Sms.CONTENT_URI, true, observer);
+
+        timeoutHandler.postDelayed(() -> {
+            if (!done.compareAndSet(false, true)) return;
+            contentResolver.unregisterContentObserver(observer);
+            Log.w(TAG, "Skipped read verification for thread " + threadId + ": no provider change within " + VERIFY_TIMEOUT_MS + "ms");
+        }, VERIFY_TIMEOUT_MS);
+    }
+
+    /**
+     * Get thread_id for a phone number (cached, see ThreadIdResolver)
+     * Returns null if no thread found
+     */
+    private Long getThreadIdForPhoneNumber(String phoneNumber) {
+        return threadIdResolver.resolve(phoneNumber);
     }
 
     /**
@@ -242,7 +227,12 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
      * Mark a specific message as read by ID
      */
     @ReactMethod
-    public void markMessageAsReadById(String messageId, Promise promise) {
+    public void markMessageAsReadById(final String messageId, final Promise promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.WRITE, "markMessageAsReadById", reactContext, promise,
+            () -> markMessageAsReadByIdInternal(messageId, promise));
+    }
+
+    private void markMessageAsReadByIdInternal(String messageId, Promise promise) {
         try {
             Log.d(TAG, "Marking message as read by ID: " + messageId);
             
@@ -297,15 +287,18 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
      * Get unread message count for a phone number
      */
     @ReactMethod
-    public void getUnreadCount(String phoneNumber, Promise promise) {
+    public void getUnreadCount(final String phoneNumber, final Promise promise) {
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "getUnreadCount", reactContext, promise,
+            () -> getUnreadCountInternal(phoneNumber, promise));
+    }
+
+    private void getUnreadCountInternal(String phoneNumber, Promise promise) {
         try {
             ContentResolver contentResolver = reactContext.getContentResolver();
             Uri uri = Telephony.Sms.Inbox.CONTENT_URI;
             
-            String normalizedNumber = phoneNumber.replaceAll("[\\s\\-()]", "");
-            
             // Get thread_id for more reliable querying
-            Long threadId = getThreadIdForPhoneNumber(phoneNumber, normalizedNumber);
+            Long threadId = getThreadIdForPhoneNumber(phoneNumber);
             
             int unreadCount = 0;
             
@@ -336,4 +329,52 @@ public class SmsReadManagerModule extends ReactContextBaseJavaModule {
             promise.reject("GET_UNREAD_COUNT_FAILED", e.getMessage(), e);
         }
     }
+
+    /**
+     * Get unread counts for many conversations at once, as a thread_id -> count map.
+     * Pass null to get every thread with unread messages, or an array of thread_ids to filter.
+     */
+    @ReactMethod
+    public void getUnreadCounts(ReadableArray threadIds, final Promise promise) {
+        List<String> ids = null;
+        if (threadIds != null) {
+            ids = new ArrayList<>(threadIds.size());
+            for (int i = 0; i < threadIds.size(); i++) {
+                ids.add(threadIds.getString(i));
+            }
+        }
+
+        final List<String> filter = ids;
+        ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "getUnreadCounts", reactContext, promise,
+            () -> getUnreadCountsInternal(filter, promise));
+    }
+
+    private void getUnreadCountsInternal(List<String> filter, Promise promise) {
+        try {
+            if (filter != null && filter.isEmpty()) {
+                promise.resolve(Arguments.createMap());
+                return;
+            }
+
+            Map<Long, Integer> counts = new ThreadSummaryReader(reactContext)
+                .countUnreadByThread(filter);
+
+            WritableMap result = Arguments.createMap();
+            for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+                result.putInt(String.valueOf(entry.getKey()), entry.getValue());
+            }
+
+            Log.d(TAG, "Unread counts for " + counts.size() + " threads");
+            promise.resolve(result);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get unread counts", e);
+            promise.reject("GET_UNREAD_COUNTS_FAILED", e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        ioExecutor.cancelAll(reactContext);
+    }
 }
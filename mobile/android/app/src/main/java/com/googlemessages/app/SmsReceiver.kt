@@ -1,16 +1,13 @@
 package com.googlemessages.app
 
-import android.app.NotificationChannel
-import android.app.NotificationManager
-import android.app.PendingIntent
 import android.content.BroadcastReceiver
+import android.content.ContentValues
 import android.content.Context
 import android.content.Intent
 import android.os.Build
 import android.provider.Telephony
+import android.telephony.SubscriptionManager
 import android.util.Log
-import androidx.core.app.NotificationCompat
-import androidx.core.app.NotificationManagerCompat
 import com.facebook.react.ReactApplication
 import com.facebook.react.bridge.Arguments
 import com.facebook.react.bridge.WritableMap
@@ -19,171 +16,132 @@ import com.facebook.react.modules.core.DeviceEventManagerModule
 /**
  * BroadcastReceiver for receiving SMS messages
  * Required for the app to be eligible as default SMS app
+ *
+ * Work happens off the main thread: the broadcast is kept alive with goAsync() and handled
+ * on the shared SMS I/O executor. It is always finished, so it never runs into an ANR. As the
+ * default SMS app the message is committed to the inbox first; if the provider refuses it,
+ * SmsInboxWriter keeps it in its own durable queue and commits it later.
  */
 class SmsReceiver : BroadcastReceiver() {
+    
+    /**
+     * One logical message, reassembled from the PDUs of a single sender
+     */
+    private class InboundMessage(val sender: String, val timestamp: Long, val serviceCenter: String?) {
+        val body = StringBuilder()
+    }
+    
     override fun onReceive(context: Context, intent: Intent) {
-        if (intent.action == Telephony.Sms.Intents.SMS_DELIVER_ACTION) {
+        if (intent.action != Telephony.Sms.Intents.SMS_DELIVER_ACTION) {
+            return
+        }
+        
+        // Released once the message is stored (if we are the default SMS app) and dispatched
+        val pendingResult = goAsync()
+        val appContext = context.applicationContext
+        SmsIoExecutor.get().execute(SmsIoExecutor.Lane.WRITE, "SmsReceiver") {
             try {
-                val messages = Telephony.Sms.Intents.getMessagesFromIntent(intent)
-                
-                for (message in messages) {
-                    val sender = message.displayOriginatingAddress
-                    val body = message.messageBody
-                    val timestamp = message.timestampMillis
-                    
-                    Log.d(TAG, "SMS received from: $sender, Body: $body")
-                    
-                    // Send to React Native
-                    sendMessageToReactNative(context, sender, body, timestamp)
-                    
-                    // Show notification
-                    showNotification(context, sender, body)
-                }
+                handleSmsDeliver(appContext, intent)
             } catch (e: Exception) {
                 Log.e(TAG, "Error processing SMS", e)
+            } finally {
+                pendingResult.finish()
             }
         }
     }
     
-    /**
-     * Send received SMS to React Native
-     */
-    private fun sendMessageToReactNative(context: Context, sender: String, body: String, timestamp: Long) {
-        try {
-            val params = Arguments.createMap()
-            params.putString("phoneNumber", sender)
-            params.putString("body", body)
-            params.putDouble("timestamp", timestamp.toDouble())
-            params.putString("type", "received")
+    private fun handleSmsDeliver(context: Context, intent: Intent) {
+        val messages = reassemble(intent)
+        
+        // As the default SMS app nobody else stores the message
+        val inboxWriter = SmsInboxWriter.get(context)
+        if (inboxWriter.isDefaultSmsApp()) {
+            val subscriptionId = getSubscriptionId(intent)
+            if (inboxWriter.persist(messages.map { toInboxValues(it, subscriptionId) })) {
+                ConversationSummaryStore.getInstance(context).invalidate()
+            } else {
+                Log.e(TAG, "Inbound SMS could be neither stored nor queued")
+            }
+        }
+        
+        for (message in messages) {
+            val body = message.body.toString()
+            Log.d(TAG, "SMS received from: ${message.sender}, ${body.length} chars")
             
-            val reactApp = context.applicationContext as? ReactApplication
-            reactApp?.reactNativeHost?.reactInstanceManager?.currentReactContext
-                ?.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
-                ?.emit("onSmsReceived", params)
-                
-            Log.d(TAG, "Sent SMS to React Native")
-        } catch (e: Exception) {
-            Log.e(TAG, "Failed to send SMS to React Native: ${e.message}")
+            // Send to React Native
+            sendMessageToReactNative(context, message.sender, body, message.timestamp)
+            
+            // Show notification (aggregated per conversation)
+            SmsNotifier.get(context).onMessageReceived(message.sender, body, message.timestamp)
         }
     }
     
     /**
-     * Show notification for received SMS
+     * Concatenate the PDUs of a multipart SMS into one message per originating address
      */
-    private fun showNotification(context: Context, sender: String, body: String) {
-        try {
-            createNotificationChannel(context)
-            
-            // Create intent to open the app
-            val intent = Intent(context, MainActivity::class.java).apply {
-                flags = Intent.FLAG_ACTIVITY_NEW_TASK or Intent.FLAG_ACTIVITY_CLEAR_TASK
-                putExtra("phoneNumber", sender)
-                setPackage(context.packageName) // Explicit package for security
-            }
-            
-            // Use FLAG_IMMUTABLE for Android 6.0+ (when it was introduced)
-            // This is REQUIRED for Android 12, 13, 14, 15 (Samsung One UI 7.0)
-            val flags = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-            } else {
-                PendingIntent.FLAG_UPDATE_CURRENT
+    private fun reassemble(intent: Intent): Collection<InboundMessage> {
+        val messages = LinkedHashMap<String, InboundMessage>()
+        for (part in Telephony.Sms.Intents.getMessagesFromIntent(intent)) {
+            if (part == null) continue
+            val sender = part.displayOriginatingAddress ?: continue
+            val message = messages.getOrPut(sender) {
+                InboundMessage(sender, part.timestampMillis, part.serviceCenterAddress)
             }
-            
-            val pendingIntent = try {
-                PendingIntent.getActivity(
-                    context,
-                    sender.hashCode(),
-                    intent,
-                    flags
-                )
-            } catch (e: Exception) {
-                Log.e(TAG, "Error creating PendingIntent for notification: ${e.message}", e)
-                null
-            }
-            
-            // Get contact name if available
-            val displayName = getContactName(context, sender) ?: sender
-            
-            val notificationBuilder = NotificationCompat.Builder(context, CHANNEL_ID)
-                .setSmallIcon(android.R.drawable.sym_action_chat) // Better SMS icon
-                .setContentTitle(displayName)
-                .setContentText(body)
-                .setStyle(NotificationCompat.BigTextStyle()
-                    .bigText(body)
-                    .setBigContentTitle(displayName))
-                .setPriority(NotificationCompat.PRIORITY_HIGH)
-                .setCategory(NotificationCompat.CATEGORY_MESSAGE)
-                .setAutoCancel(true)
-                .setVibrate(longArrayOf(0, 250, 250, 250)) // Vibration pattern
-                .setSound(android.provider.Settings.System.DEFAULT_NOTIFICATION_URI)
-                .setLights(0xFF0000FF.toInt(), 1000, 500) // Blue LED
-                .setShowWhen(true)
-                .setWhen(System.currentTimeMillis())
-            
-            // Only set content intent if PendingIntent was created successfully
-            if (pendingIntent != null) {
-                notificationBuilder.setContentIntent(pendingIntent)
+            message.body.append(part.messageBody ?: "")
+        }
+        return messages.values
+    }
+    
+    private fun toInboxValues(message: InboundMessage, subscriptionId: Int): ContentValues {
+        return ContentValues().apply {
+            put(Telephony.Sms.ADDRESS, message.sender)
+            put(Telephony.Sms.BODY, message.body.toString())
+            put(Telephony.Sms.DATE, System.currentTimeMillis())
+            put(Telephony.Sms.DATE_SENT, message.timestamp)
+            put(Telephony.Sms.READ, 0)
+            put(Telephony.Sms.SEEN, 0)
+            put(Telephony.Sms.SERVICE_CENTER, message.serviceCenter)
+            if (subscriptionId != -1) {
+                put(Telephony.Sms.SUBSCRIPTION_ID, subscriptionId)
             }
-            
-            val notification = notificationBuilder.build()
-            
-            NotificationManagerCompat.from(context)
-                .notify(sender.hashCode(), notification)
-                
-            Log.d(TAG, "Notification shown")
-        } catch (e: Exception) {
-            Log.e(TAG, "Failed to show notification: ${e.message}")
         }
     }
     
     /**
-     * Get contact name from phone number
+     * Subscription the message arrived on, or -1 if the intent doesn't say
      */
-    private fun getContactName(context: Context, phoneNumber: String): String? {
-        try {
-            val uri = android.provider.ContactsContract.PhoneLookup.CONTENT_FILTER_URI
-            val contentUri = android.net.Uri.withAppendedPath(uri, android.net.Uri.encode(phoneNumber))
-            val projection = arrayOf(android.provider.ContactsContract.PhoneLookup.DISPLAY_NAME)
-            
-            context.contentResolver.query(contentUri, projection, null, null, null)?.use { cursor ->
-                if (cursor.moveToFirst()) {
-                    val nameIndex = cursor.getColumnIndex(android.provider.ContactsContract.PhoneLookup.DISPLAY_NAME)
-                    if (nameIndex >= 0) {
-                        return cursor.getString(nameIndex)
-                    }
-                }
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "Error getting contact name: ${e.message}")
+    private fun getSubscriptionId(intent: Intent): Int {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            val subId = intent.getIntExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, -1)
+            if (subId != -1) return subId
         }
-        return null
+        // Pre-R platforms use the "subscription" extra
+        return intent.getIntExtra("subscription", -1)
     }
     
     /**
-     * Create notification channel (required for Android 8.0+)
+     * Send received SMS to React Native
      */
-    private fun createNotificationChannel(context: Context) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            val channel = NotificationChannel(
-                CHANNEL_ID,
-                "SMS Messages",
-                NotificationManager.IMPORTANCE_HIGH
-            ).apply {
-                description = "Notifications for incoming SMS messages"
-                enableVibration(true)
-                vibrationPattern = longArrayOf(0, 250, 250, 250)
-                enableLights(true)
-                lightColor = 0xFF0000FF.toInt() // Blue
-                setShowBadge(true)
-            }
+    private fun sendMessageToReactNative(context: Context, sender: String, body: String, timestamp: Long) {
+        try {
+            val params = Arguments.createMap()
+            params.putString("phoneNumber", sender)
+            params.putString("body", body)
+            params.putDouble("timestamp", timestamp.toDouble())
+            params.putString("type", "received")
             
-            val notificationManager = context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
-            notificationManager.createNotificationChannel(channel)
+            val reactApp = context.applicationContext as? ReactApplication
+            reactApp?.reactNativeHost?.reactInstanceManager?.currentReactContext
+                ?.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
+                ?.emit("onSmsReceived", params)
+                
+            Log.d(TAG, "Sent SMS to React Native")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to send SMS to React Native: ${e.message}")
         }
     }
     
     companion object {
         private const val TAG = "SmsReceiver"
-        private const val CHANNEL_ID = "sms_messages"
     }
 }
@@ -0,0 +1,730 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * App-private full-text index over SMS bodies and addresses.
+ *
+ * The index mirrors the provider incrementally: new rows (by _id above the indexed maximum)
+ * are added in batches. Rows named by the observer's change URIs are checked for deletion
+ * directly; the full diff against the provider only runs when the row counts still disagree,
+ * and at most once per FULL_DIFF_INTERVAL_MS. Rows
+ * indexed in a transient state (draft, outbox, queued or failed) are tracked in a side table
+ * and re-read until they settle, so a message moving from outbox to sent updates its type.
+ * Work runs on a dedicated thread, triggered by a debounced ContentObserver.
+ *
+ * Uses FTS5 (bm25 ranking) where the platform SQLite has it and falls back to FTS4, where
+ * matches are ranked in Java from matchinfo() with the same BM25 formula and column weights.
+ * FTS4 only ranks the newest FTS4_MAX_CANDIDATES matches, so an older message can be missing
+ * from its results for a very common term.
+ */
+class SmsSearchIndex extends SQLiteOpenHelper {
+    private static final String TAG = "SmsSearchIndex";
+
+    private static final String DATABASE_NAME = "sms_search.db";
+    // 2: tracks rows with a transient type
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_FTS = "messages_fts";
+    private static final String TABLE_META = "meta";
+    private static final String TABLE_UNSETTLED = "unsettled";
+    private static final String META_MAX_ID = "max_id";
+    private static final String META_FTS_VERSION = "fts_version";
+
+    private static final int INDEX_BATCH_SIZE = 500;
+    private static final long REINDEX_DELAY_MS = 1000;
+    private static final long FULL_DIFF_INTERVAL_MS = 10 * 60 * 1000;
+
+    // Body matches count twice as much as address matches (bm25 weights 1.0 and 0.5)
+    private static final double[] COLUMN_WEIGHTS = {1.0, 0.5};
+    private static final double BM25_K1 = 1.2;
+
+    // FTS4: matches scored in Java (newest first), and the length of a snippet in tokens
+    private static final int FTS4_MAX_CANDIDATES = 1000;
+    private static final int SNIPPET_TOKENS = 12;
+    // Roughly what the unicode61 tokenizer treats as a token
+    private static final Pattern TOKEN = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private static final String[] INDEX_PROJECTION = new String[]{
+        Telephony.Sms._ID, Telephony.Sms.THREAD_ID, Telephony.Sms.ADDRESS,
+        Telephony.Sms.BODY, Telephony.Sms.DATE, Telephony.Sms.TYPE
+    };
+
+    static final String HIGHLIGHT_START = "<b>";
+    static final String HIGHLIGHT_END = "</b>";
+
+    private static SmsSearchIndex instance;
+
+    private final ContentResolver contentResolver;
+    private final Handler handler;
+    private final Runnable syncRunnable = this::sync;
+    private boolean started = false;
+
+    // Only touched on the index thread: message ids from change URIs, checked on the next sync
+    private final Set<Long> changedIds = new HashSet<>();
+    private long lastFullDiff = 0;
+
+    // Resolved once the database is open; 5 or 4
+    private volatile int ftsVersion;
+
+    static synchronized SmsSearchIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new SmsSearchIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SmsSearchIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.contentResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread("SmsSearchIndex");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_META + " (key TEXT PRIMARY KEY, value INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_UNSETTLED + " (id INTEGER PRIMARY KEY)");
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + TABLE_FTS + " USING fts5("
+                + "body, address, thread_id UNINDEXED, date UNINDEXED, type UNINDEXED, "
+                + "tokenize = 'unicode61 remove_diacritics 2')");
+            putMeta(db, META_FTS_VERSION, 5);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "FTS5 unavailable, using FTS4", e);
+            db.execSQL("CREATE VIRTUAL TABLE " + TABLE_FTS + " USING fts4("
+                + "body, address, thread_id, date, type, "
+                + "notindexed=thread_id, notindexed=date, notindexed=type, tokenize=unicode61)");
+            putMeta(db, META_FTS_VERSION, 4);
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_META);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_UNSETTLED);
+        onCreate(db);
+    }
+
+    /**
+     * Start keeping the index in sync with the provider (idempotent)
+     */
+    synchronized void start() {
+        if (started) return;
+        started = true;
+
+        handler.post(syncRunnable);
+        try {
+            contentResolver.registerContentObserver(Telephony.Sms.CONTENT_URI, true, new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onChange(selfChange, null);
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    long id = parseMessageId(uri);
+                    if (id >= 0) changedIds.add(id);
+                    // Debounce: bulk writes notify once per row
+                    handler.removeCallbacks(syncRunnable);
+                    handler.postDelayed(syncRunnable, REINDEX_DELAY_MS);
+                }
+            });
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot observe SMS provider, index will only update on restart", e);
+        }
+    }
+
+    /**
+     * Ranked matches for a user query. offset pages through the ranking.
+     * Returns an empty list for queries without searchable terms.
+     */
+    List<SearchResult> search(String query, int limit, int offset) {
+        SQLiteDatabase db = getReadableDatabase();
+        int version = getFtsVersion(db);
+
+        String match = toMatchExpression(query, version == 5);
+        if (match == null) {
+            return new ArrayList<>();
+        }
+
+        if (version != 5) {
+            return searchFts4(db, query, match, limit, offset);
+        }
+
+        String sql = "SELECT rowid, thread_id, address, date, type, "
+            + "snippet(" + TABLE_FTS + ", 0, ?, ?, '…', 12) "
+            + "FROM " + TABLE_FTS + " WHERE " + TABLE_FTS + " MATCH ? "
+            + "ORDER BY bm25(" + TABLE_FTS + ", 1.0, 0.5), date DESC LIMIT ? OFFSET ?";
+        return readResults(db.rawQuery(sql, new String[]{
+            HIGHLIGHT_START, HIGHLIGHT_END, match, String.valueOf(limit), String.valueOf(offset)
+        }));
+    }
+
+    /**
+     * FTS4 has no ranking function, so the newest FTS4_MAX_CANDIDATES matches are scored here
+     * from matchinfo(). The requested page is then read by docid, which doesn't run the
+     * full-text query again, and its snippets are built in Java.
+     */
+    private List<SearchResult> searchFts4(SQLiteDatabase db, String query, String match, int limit, int offset) {
+        List<RankedMatch> ranked = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT docid, CAST(date AS INTEGER), matchinfo(" + TABLE_FTS + ", 'pcnalx') "
+            + "FROM " + TABLE_FTS + " WHERE " + TABLE_FTS + " MATCH ? ORDER BY docid DESC LIMIT ?",
+            new String[]{match, String.valueOf(FTS4_MAX_CANDIDATES)});
+        try {
+            while (cursor.moveToNext()) {
+                ranked.add(new RankedMatch(cursor.getLong(0), cursor.getLong(1), bm25(cursor.getBlob(2))));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Best score first, newest first among equals
+        Collections.sort(ranked, (a, b) -> {
+            int byScore = Double.compare(b.score, a.score);
+            return byScore != 0 ? byScore : Long.compare(b.date, a.date);
+        });
+
+        int end = Math.min(ranked.size(), offset + limit);
+        if (offset >= end) {
+            return new ArrayList<>();
+        }
+        List<RankedMatch> page = ranked.subList(offset, end);
+
+        String[] args = new String[page.size()];
+        for (int i = 0; i < page.size(); i++) {
+            args[i] = String.valueOf(page.get(i).id);
+        }
+        // The body takes the snippet's place until it is highlighted below
+        List<SearchResult> rows = readResults(db.rawQuery("SELECT docid, thread_id, address, date, type, body "
+            + "FROM " + TABLE_FTS + " WHERE docid IN (" + ThreadSummaryReader.placeholders(page.size()) + ")", args));
+
+        // Back into ranked order
+        List<String> terms = toTerms(query);
+        Map<Long, SearchResult> byId = new HashMap<>();
+        for (SearchResult row : rows) {
+            row.snippet = snippet(row.snippet, terms);
+            byId.put(row.id, row);
+        }
+        List<SearchResult> results = new ArrayList<>(page.size());
+        for (RankedMatch entry : page) {
+            SearchResult row = byId.get(entry.id);
+            if (row != null) results.add(row);
+        }
+        return results;
+    }
+
+    /**
+     * The case- and accent-folded tokens of a query; the last one matches as a prefix
+     */
+    static List<String> toTerms(String query) {
+        List<String> terms = new ArrayList<>();
+        Matcher matcher = TOKEN.matcher(query);
+        while (matcher.find()) {
+            terms.add(fold(matcher.group()));
+        }
+        return terms;
+    }
+
+    /**
+     * Up to SNIPPET_TOKENS tokens of a body around its first matching token, with matching
+     * tokens wrapped in HIGHLIGHT_START / HIGHLIGHT_END; like FTS snippet() with '…' ellipses
+     */
+    static String snippet(String body, List<String> terms) {
+        if (body == null) return "";
+
+        List<int[]> tokens = new ArrayList<>();
+        Matcher matcher = TOKEN.matcher(body);
+        while (matcher.find()) {
+            tokens.add(new int[]{matcher.start(), matcher.end()});
+        }
+        if (tokens.isEmpty()) return body;
+
+        boolean[] hits = new boolean[tokens.size()];
+        int first = -1;
+        for (int i = 0; i < tokens.size(); i++) {
+            hits[i] = matchesTerm(fold(body.substring(tokens.get(i)[0], tokens.get(i)[1])), terms);
+            if (hits[i] && first < 0) first = i;
+        }
+
+        // A little context before the first hit
+        int start = first < 0 ? 0 : Math.max(0, Math.min(first - SNIPPET_TOKENS / 4, tokens.size() - SNIPPET_TOKENS));
+        int end = Math.min(tokens.size(), start + SNIPPET_TOKENS);
+
+        StringBuilder snippet = new StringBuilder();
+        int from = 0;
+        if (start > 0) {
+            snippet.append('…');
+            from = tokens.get(start)[0];
+        }
+        for (int i = start; i < end; i++) {
+            int[] token = tokens.get(i);
+            snippet.append(body, from, token[0]);
+            if (hits[i]) snippet.append(HIGHLIGHT_START);
+            snippet.append(body, token[0], token[1]);
+            if (hits[i]) snippet.append(HIGHLIGHT_END);
+            from = token[1];
+        }
+        if (end < tokens.size()) {
+            snippet.append('…');
+        } else {
+            snippet.append(body, from, body.length());
+        }
+        return snippet.toString();
+    }
+
+    private static boolean matchesTerm(String token, List<String> terms) {
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            if (i == terms.size() - 1 ? token.startsWith(term) : token.equals(term)) return true;
+        }
+        return false;
+    }
+
+    private static String fold(String token) {
+        return MARKS.matcher(Normalizer.normalize(token, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * BM25 of one row from matchinfo 'pcnalx': phrase count, column count, row count, average
+     * tokens per column, tokens per column in this row, then per phrase and column the hits in
+     * this row, hits in all rows and rows with a hit. Same formula as FTS5's bm25() (b = 0.75).
+     */
+    static double bm25(byte[] blob) {
+        ByteBuffer info = ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder());
+        int phrases = info.getInt(0);
+        int columns = info.getInt(4);
+        long rows = info.getInt(8) & 0xffffffffL;
+        int averageAt = 3;
+        int lengthAt = averageAt + columns;
+        int hitsAt = lengthAt + columns;
+
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int c = 0; c < columns && c < COLUMN_WEIGHTS.length; c++) {
+                int x = hitsAt + 3 * (p * columns + c);
+                double hits = info.getInt(4 * x) & 0xffffffffL;
+                if (hits == 0) continue;
+                double rowsWithHit = info.getInt(4 * (x + 2)) & 0xffffffffL;
+                double length = info.getInt(4 * (lengthAt + c)) & 0xffffffffL;
+                double average = Math.max(1, info.getInt(4 * (averageAt + c)) & 0xffffffffL);
+
+                double idf = Math.max(1e-6, Math.log((rows - rowsWithHit + 0.5) / (rowsWithHit + 0.5)));
+                double tf = hits * (BM25_K1 + 1) / (hits + BM25_K1 * (0.25 + 0.75 * length / average));
+                score += COLUMN_WEIGHTS[c] * idf * tf;
+            }
+        }
+        return score;
+    }
+
+    private static List<SearchResult> readResults(Cursor cursor) {
+        List<SearchResult> results = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                SearchResult result = new SearchResult();
+                result.id = cursor.getLong(0);
+                result.threadId = cursor.getLong(1);
+                result.address = cursor.getString(2);
+                result.date = cursor.getLong(3);
+                result.type = cursor.getInt(4);
+                result.snippet = cursor.getString(5);
+                results.add(result);
+            }
+        } finally {
+            cursor.close();
+        }
+        return results;
+    }
+
+    /**
+     * Turn free text into a MATCH expression: every term must match, the last one as a prefix.
+     * FTS5 takes the prefix star after the quoted term ("hell"*); FTS4 only inside it ("hell*").
+     */
+    static String toMatchExpression(String query, boolean fts5) {
+        if (query == null) return null;
+
+        StringBuilder match = new StringBuilder();
+        String[] terms = query.trim().split("\\s+");
+        for (int i = 0; i < terms.length; i++) {
+            String term = terms[i].replace("\"", "\"\"");
+            if (term.isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            boolean prefix = i == terms.length - 1;
+            match.append('"').append(term);
+            if (prefix && !fts5) match.append('*');
+            match.append('"');
+            if (prefix && fts5) match.append('*');
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Bring the index up to date with the provider; runs on the index thread
+     */
+    private void sync() {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            long maxId = getMeta(db, META_MAX_ID);
+
+            int added;
+            do {
+                added = indexBatchAfter(db, maxId);
+                maxId = getMeta(db, META_MAX_ID);
+            } while (added == INDEX_BATCH_SIZE);
+
+            refreshUnsettled(db);
+            reconcileDeletes(db);
+        } catch (SecurityException e) {
+            Log.w(TAG, "No SMS permission, search index not updated");
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating search index", e);
+        }
+    }
+
+    private int indexBatchAfter(SQLiteDatabase db, long afterId) {
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(
+                Telephony.Sms.CONTENT_URI,
+                INDEX_PROJECTION,
+                Telephony.Sms._ID + " > ?",
+                new String[]{String.valueOf(afterId)},
+                Telephony.Sms._ID + " ASC LIMIT " + INDEX_BATCH_SIZE
+            );
+            if (cursor == null) return 0;
+
+            int count;
+            long maxId;
+            db.beginTransaction();
+            try {
+                maxId = Math.max(afterId, indexRows(db, cursor));
+                count = cursor.getCount();
+                putMeta(db, META_MAX_ID, maxId);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            if (count > 0) {
+                Log.d(TAG, "Indexed " + count + " messages up to _id " + maxId);
+            }
+            return count;
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Re-read rows indexed in a transient state; their type (and a draft's body) may have
+     * changed without a new _id
+     */
+    private void refreshUnsettled(SQLiteDatabase db) {
+        List<String> ids = new ArrayList<>();
+        Cursor idCursor = db.rawQuery("SELECT id FROM " + TABLE_UNSETTLED, null);
+        try {
+            while (idCursor.moveToNext()) {
+                ids.add(idCursor.getString(0));
+            }
+        } finally {
+            idCursor.close();
+        }
+        if (ids.isEmpty()) return;
+
+        for (int start = 0; start < ids.size(); start += ThreadSummaryReader.MAX_SQL_ARGS) {
+            List<String> chunk = ids.subList(start, Math.min(start + ThreadSummaryReader.MAX_SQL_ARGS, ids.size()));
+            String[] args = chunk.toArray(new String[0]);
+            Cursor cursor = null;
+            db.beginTransaction();
+            try {
+                // Deleted rows leave the set here; reconcileDeletes drops them from the index
+                db.execSQL("DELETE FROM " + TABLE_UNSETTLED + " WHERE id IN ("
+                    + ThreadSummaryReader.placeholders(args.length) + ")", args);
+                cursor = contentResolver.query(
+                    Telephony.Sms.CONTENT_URI,
+                    INDEX_PROJECTION,
+                    Telephony.Sms._ID + " IN (" + ThreadSummaryReader.placeholders(args.length) + ")",
+                    args,
+                    null
+                );
+                if (cursor != null) {
+                    indexRows(db, cursor);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                if (cursor != null && !cursor.isClosed()) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert or replace every row of a cursor over INDEX_PROJECTION, tracking the ones in a
+     * transient state. Must run inside a transaction. Returns the highest _id seen.
+     */
+    private long indexRows(SQLiteDatabase db, Cursor cursor) {
+        int version = getFtsVersion(db);
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_FTS
+            + " (" + (version == 5 ? "rowid" : "docid") + ", body, address, thread_id, date, type) VALUES (?, ?, ?, ?, ?, ?)");
+        SQLiteStatement track = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_UNSETTLED + " (id) VALUES (?)");
+
+        long maxId = 0;
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                int type = cursor.getInt(5);
+                insert.clearBindings();
+                insert.bindLong(1, id);
+                insert.bindLong(4, cursor.getLong(1));
+                bindNullable(insert, 3, cursor.getString(2));
+                bindNullable(insert, 2, cursor.getString(3));
+                insert.bindLong(5, cursor.getLong(4));
+                insert.bindLong(6, type);
+                insert.executeInsert();
+                if (isTransient(type)) {
+                    track.bindLong(1, id);
+                    track.executeInsert();
+                }
+                maxId = Math.max(maxId, id);
+            }
+        } finally {
+            insert.close();
+            track.close();
+        }
+        return maxId;
+    }
+
+    /**
+     * Types a message can still move out of (a failed message can be retried)
+     */
+    private static boolean isTransient(int type) {
+        return type == Telephony.Sms.MESSAGE_TYPE_DRAFT
+            || type == Telephony.Sms.MESSAGE_TYPE_OUTBOX
+            || type == Telephony.Sms.MESSAGE_TYPE_QUEUED
+            || type == Telephony.Sms.MESSAGE_TYPE_FAILED;
+    }
+
+    /**
+     * The message _id of content://sms/<id> and content://sms/<box>/<id>, or -1
+     */
+    static long parseMessageId(Uri uri) {
+        if (uri == null || !"sms".equals(uri.getAuthority())) return -1;
+        List<String> segments = uri.getPathSegments();
+        String id;
+        if (segments.size() == 1) {
+            id = segments.get(0);
+        } else if (segments.size() == 2 && !"conversations".equals(segments.get(0))) {
+            id = segments.get(1);
+        } else {
+            return -1;
+        }
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Drop indexed rows the provider no longer has. Rows from change URIs are looked up
+     * directly; if the counts still disagree (e.g. a bulk delete notified without ids) the
+     * full diff runs, at most once per FULL_DIFF_INTERVAL_MS.
+     */
+    private void reconcileDeletes(SQLiteDatabase db) {
+        if (!changedIds.isEmpty()) {
+            List<Long> ids = new ArrayList<>(changedIds);
+            changedIds.clear();
+            deleteFromIndex(db, findDeleted(ids));
+        }
+
+        long providerCount = providerCount();
+        if (providerCount < 0 || providerCount >= longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_FTS)) {
+            return;
+        }
+
+        long sinceLast = SystemClock.elapsedRealtime() - lastFullDiff;
+        if (lastFullDiff > 0 && sinceLast < FULL_DIFF_INTERVAL_MS) {
+            handler.removeCallbacks(syncRunnable);
+            handler.postDelayed(syncRunnable, FULL_DIFF_INTERVAL_MS - sinceLast);
+            return;
+        }
+        lastFullDiff = SystemClock.elapsedRealtime();
+        deleteFromIndex(db, diffWithProvider(db));
+    }
+
+    /**
+     * The ids, among those given, that the provider no longer has
+     */
+    private List<Long> findDeleted(List<Long> ids) {
+        Set<Long> missing = new HashSet<>(ids);
+        for (int start = 0; start < ids.size(); start += ThreadSummaryReader.MAX_SQL_ARGS) {
+            List<Long> chunk = ids.subList(start, Math.min(start + ThreadSummaryReader.MAX_SQL_ARGS, ids.size()));
+            String[] args = new String[chunk.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = String.valueOf(chunk.get(i));
+            }
+            Cursor cursor = contentResolver.query(Telephony.Sms.CONTENT_URI, new String[]{Telephony.Sms._ID},
+                Telephony.Sms._ID + " IN (" + ThreadSummaryReader.placeholders(args.length) + ")", args, null);
+            if (cursor == null) return new ArrayList<>();
+            try {
+                while (cursor.moveToNext()) {
+                    missing.remove(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return new ArrayList<>(missing);
+    }
+
+    /**
+     * Row count of the SMS provider without reading its ids, or -1 if unknown
+     */
+    private long providerCount() {
+        try (Cursor cursor = contentResolver.query(Telephony.Sms.CONTENT_URI, new String[]{"count(*)"}, null, null, null)) {
+            return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } catch (IllegalArgumentException | SQLiteException e) {
+            // Providers that only accept known columns
+            try (Cursor cursor = contentResolver.query(Telephony.Sms.CONTENT_URI, new String[]{Telephony.Sms._ID}, null, null, null)) {
+                return cursor != null ? cursor.getCount() : -1;
+            }
+        }
+    }
+
+    /**
+     * Indexed ids the provider no longer has: both sides are read in _id order and merged, so
+     * neither is held in memory
+     */
+    private List<Long> diffWithProvider(SQLiteDatabase db) {
+        String idColumn = getFtsVersion(db) == 5 ? "rowid" : "docid";
+        List<Long> stale = new ArrayList<>();
+        Cursor providerCursor = contentResolver.query(Telephony.Sms.CONTENT_URI, new String[]{Telephony.Sms._ID},
+            null, null, Telephony.Sms._ID + " ASC");
+        if (providerCursor == null) return stale;
+        Cursor indexCursor = db.rawQuery("SELECT " + idColumn + " FROM " + TABLE_FTS + " ORDER BY " + idColumn + " ASC", null);
+        try {
+            boolean hasProvider = providerCursor.moveToNext();
+            while (indexCursor.moveToNext()) {
+                long id = indexCursor.getLong(0);
+                while (hasProvider && providerCursor.getLong(0) < id) {
+                    hasProvider = providerCursor.moveToNext();
+                }
+                if (!hasProvider || providerCursor.getLong(0) != id) stale.add(id);
+            }
+        } finally {
+            indexCursor.close();
+            providerCursor.close();
+        }
+        return stale;
+    }
+
+    private void deleteFromIndex(SQLiteDatabase db, List<Long> stale) {
+        if (stale.isEmpty()) return;
+        String idColumn = getFtsVersion(db) == 5 ? "rowid" : "docid";
+        db.beginTransaction();
+        try {
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_FTS + " WHERE " + idColumn + " = ?");
+            for (long id : stale) {
+                delete.bindLong(1, id);
+                delete.executeUpdateDelete();
+            }
+            delete.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, "Removed " + stale.size() + " deleted messages from the index");
+    }
+
+    private int getFtsVersion(SQLiteDatabase db) {
+        if (ftsVersion == 0) {
+            ftsVersion = (int) getMeta(db, META_FTS_VERSION);
+        }
+        return ftsVersion;
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static long getMeta(SQLiteDatabase db, String key) {
+        Cursor cursor = db.rawQuery("SELECT value FROM " + TABLE_META + " WHERE key = ?", new String[]{key});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void putMeta(SQLiteDatabase db, String key, long value) {
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_META + " (key, value) VALUES (?, ?)", new Object[]{key, value});
+    }
+
+    private static long longForQuery(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static class RankedMatch {
+        final long id;
+        final long date;
+        final double score;
+
+        RankedMatch(long id, long date, double score) {
+            this.id = id;
+            this.date = date;
+            this.score = score;
+        }
+    }
+
+    static class SearchResult {
+        long id;
+        long threadId;
+        String address;
+        long date;
+        int type;
+        String snippet;
+    }
+}
@@ -0,0 +1,104 @@
+package com.googlemessages.app;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.List;
+
+/**
+ * Full-text message search backed by the on-device SmsSearchIndex
+ */
+public class SmsSearchModule extends ReactContextBaseJavaModule {
+    private static final int MAX_LIMIT = 200;
+
+    private final ReactApplicationContext reactContext;
+    private final SmsIoExecutor ioExecutor = SmsIoExecutor.get();
+
+    // The latest search, so search-as-you-type doesn't queue a search per keystroke
+    private SmsIoExecutor.Handle pendingSearch;
+
+    public SmsSearchModule(ReactApplicationContext reactContext) {
+        super(reactContext);
+        this.reactContext = reactContext;
+    }
+
+    @Override
+    public String getName() {
+        return "SmsSearch";
+    }
+
+    @Override
+    public void initialize() {
+        super.initialize();
+        // Catch up with the provider in the background so the first search is fast
+        SmsSearchIndex.getInstance(reactContext).start();
+    }
+
+    /**
+     * Search message bodies and addresses.
+     * Results are ranked by relevance; snippets wrap matched terms in <b></b>.
+     * Pass the returned nextCursor to fetch the next page (null when there are no more).
+     * A new search rejects the previous one with CANCELLED if it hasn't started yet.
+     */
+    @ReactMethod
+    public void searchMessages(final String query, final int limit, final String cursor, final Promise promise) {
+        SmsIoExecutor.Handle previous = pendingSearch;
+        if (previous != null) {
+            previous.cancel();
+        }
+        pendingSearch = ioExecutor.submit(SmsIoExecutor.Lane.INTERACTIVE, "searchMessages", reactContext, promise,
+            () -> searchMessagesInternal(query, limit, cursor, promise));
+    }
+
+    private void searchMessagesInternal(String query, int limit, String cursor, Promise promise) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_LIMIT));
+        int offset = 0;
+        if (cursor != null) {
+            try {
+                offset = Math.max(0, Integer.parseInt(cursor));
+            } catch (NumberFormatException e) {
+                promise.reject("INVALID_CURSOR", "Invalid search cursor: " + cursor);
+                return;
+            }
+        }
+
+        SmsSearchIndex index = SmsSearchIndex.getInstance(reactContext);
+        index.start();
+
+        // Fetch one extra row to know whether another page exists
+        List<SmsSearchIndex.SearchResult> matches = index.search(query, pageSize + 1, offset);
+        boolean hasMore = matches.size() > pageSize;
+
+        WritableArray results = Arguments.createArray();
+        for (int i = 0; i < Math.min(matches.size(), pageSize); i++) {
+            SmsSearchIndex.SearchResult match = matches.get(i);
+            WritableMap result = Arguments.createMap();
+            result.putString("id", String.valueOf(match.id));
+            result.putString("threadId", String.valueOf(match.threadId));
+            result.putString("address", match.address);
+            result.putDouble("date", match.date);
+            result.putInt("type", match.type);
+            result.putString("snippet", match.snippet);
+            results.pushMap(result);
+        }
+
+        WritableMap page = Arguments.createMap();
+        page.putArray("results", results);
+        if (hasMore) {
+            page.putString("nextCursor", String.valueOf(offset + pageSize));
+        } else {
+            page.putNull("nextCursor");
+        }
+        promise.resolve(page);
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        ioExecutor.cancelAll(reactContext);
+    }
+}
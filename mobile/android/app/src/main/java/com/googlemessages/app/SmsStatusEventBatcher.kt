@@ -0,0 +1,87 @@
+package com.googlemessages.app
+
+import android.content.Context
+import android.os.Handler
+import android.util.Log
+import com.facebook.react.ReactApplication
+import com.facebook.react.bridge.Arguments
+import com.facebook.react.modules.core.DeviceEventManagerModule
+
+/**
+ * Coalesces outbox status transitions into one "onSmsStatusBatch" event.
+ *
+ * Transitions are collected for WINDOW_MS or until MAX_BATCH messages are pending, and only
+ * the latest transition per messageId is kept (a message that went sent -> delivered within
+ * the window is reported once, as delivered). Each batch entry carries the same fields the
+ * old onSmsSent / onSmsDelivered events had, plus "event" ("sent" or "delivered").
+ * Not thread-safe: used from the outbox thread only.
+ */
+class SmsStatusEventBatcher(private val context: Context, private val handler: Handler) {
+
+    private class StatusEvent(
+        val event: String,
+        val messageId: String,
+        val phoneNumber: String?,
+        val status: String,
+        val error: String?,
+        val timestamp: Long
+    )
+
+    private val pending = LinkedHashMap<String, StatusEvent>()
+    private var flushScheduled = false
+
+    private val flushRunnable = Runnable {
+        flushScheduled = false
+        flush()
+    }
+
+    fun add(event: String, messageId: String, phoneNumber: String?, status: String, error: String?) {
+        // Superseded states are replaced in place; the message keeps its position in the batch
+        pending[messageId] = StatusEvent(event, messageId, phoneNumber, status, error, System.currentTimeMillis())
+
+        if (pending.size >= MAX_BATCH) {
+            handler.removeCallbacks(flushRunnable)
+            flushScheduled = false
+            flush()
+        } else if (!flushScheduled) {
+            flushScheduled = true
+            handler.postDelayed(flushRunnable, WINDOW_MS)
+        }
+    }
+
+    private fun flush() {
+        if (pending.isEmpty()) return
+
+        val batch = Arguments.createArray()
+        for (statusEvent in pending.values) {
+            val params = Arguments.createMap()
+            params.putString("event", statusEvent.event)
+            params.putString("messageId", statusEvent.messageId)
+            params.putString("phoneNumber", statusEvent.phoneNumber ?: "unknown")
+            params.putString("status", statusEvent.status)
+            params.putString("error", statusEvent.error)
+            params.putDouble("timestamp", statusEvent.timestamp.toDouble())
+            batch.pushMap(params)
+        }
+        val size = pending.size
+        pending.clear()
+
+        try {
+            val reactApp = context.applicationContext as? ReactApplication
+            reactApp?.reactNativeHost?.reactInstanceManager?.currentReactContext
+                ?.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
+                ?.emit(EVENT_NAME, batch)
+            Log.d(TAG, "Emitted $size status updates")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to send event to React Native: ${e.message}")
+        }
+    }
+
+    companion object {
+        private const val TAG = "SmsStatusEventBatcher"
+        private const val EVENT_NAME = "onSmsStatusBatch"
+
+        private const val WINDOW_MS = 100L
+        private const val MAX_BATCH = 50
+    }
+}
@@ -0,0 +1,586 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.googlemessages.app.SmsConversationQueryModule.MessageColumns;
+import com.googlemessages.app.ThreadSummaryReader.ThreadRow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Incremental SMS sync engine.
+ *
+ * Watches content://sms and content://mms-sms and, instead of re-reading the inbox,
+ * emits "onSmsSyncDelta" events containing only what changed:
+ * - inserted: messages with _id above the persisted high-water mark
+ * - updated / deleted: message ids named by the change notification
+ * - threads / deletedThreads: conversation summaries whose threads-table row changed
+ *
+ * Thread rows are re-read only for the threads a flush can attribute a change to: those of the
+ * inserted and updated messages, threads named by the notification URI, and threads whose
+ * date moved past the newest one seen (which covers MMS). Changes that name nothing, and
+ * message deletes, whose thread is gone with the row, need a diff of the whole threads table;
+ * that runs at most once per FULL_SCAN_INTERVAL_MS.
+ *
+ * Observer registration, unregistration and all sync state live on the sync thread.
+ */
+public class SmsSyncModule extends ReactContextBaseJavaModule {
+    private static final String TAG = "SmsSync";
+    private static final String EVENT_DELTA = "onSmsSyncDelta";
+
+    private static final Uri MMS_SMS_URI = Uri.parse("content://mms-sms/");
+
+    private static final String PREFS_NAME = "sms_sync";
+    private static final String KEY_MAX_ID = "max_id";
+    private static final String KEY_MAX_DATE = "max_date";
+
+    // Collapse notification storms (a batch insert fires one per row) into one delta
+    private static final long DEBOUNCE_MS = 300;
+    private static final int MAX_INSERTED_PER_DELTA = 500;
+    private static final long FULL_SCAN_INTERVAL_MS = 30_000;
+
+    // Boxes of content://sms/<box>/<id>
+    private static final Set<String> SMS_BOXES = new HashSet<>(Arrays.asList(
+        "inbox", "sent", "draft", "outbox", "failed", "queued"));
+
+    private final ReactApplicationContext reactContext;
+    private final SharedPreferences prefs;
+
+    // Created once and kept until the instance is destroyed, so start and stop are ordered
+    private HandlerThread syncThread;
+    private volatile Handler syncHandler;
+    private volatile ContentObserver observer;
+
+    // Written only on syncThread; the mark is also read from the JS thread
+    private volatile long maxSeenId = -1;
+    private volatile long maxSeenDate = 0;
+    private final Set<Long> changedIds = new HashSet<>();
+    private final Set<Long> changedThreadIds = new HashSet<>();
+    private Map<Long, ThreadRow> threadSnapshot = new HashMap<>();
+    private long maxThreadDate = 0;
+    private boolean fullScanPending = false;
+    private long lastFullScan = 0;
+    private volatile boolean flushScheduled = false;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            flush();
+        }
+    };
+
+    public SmsSyncModule(ReactApplicationContext reactContext) {
+        super(reactContext);
+        this.reactContext = reactContext;
+        this.prefs = reactContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public String getName() {
+        return "SmsSync";
+    }
+
+    /**
+     * Start watching the provider. Resumes from the persisted high-water mark, so
+     * messages that arrived while the app was not running are emitted as the first delta.
+     * Resolves with the current mark. A start that failed can be retried.
+     */
+    @ReactMethod
+    public synchronized void start(final Promise promise) {
+        if (syncHandler == null) {
+            syncThread = new HandlerThread("SmsSyncThread");
+            syncThread.start();
+            syncHandler = new Handler(syncThread.getLooper());
+        }
+
+        final Handler handler = syncHandler;
+        handler.post(() -> {
+            // Only set once both observers are registered
+            if (observer != null) {
+                promise.resolve(highWaterMark());
+                return;
+            }
+
+            ContentObserver registered = null;
+            try {
+                maxSeenId = prefs.getLong(KEY_MAX_ID, -1);
+                maxSeenDate = prefs.getLong(KEY_MAX_DATE, 0);
+                if (maxSeenId < 0) {
+                    // First run: everything currently in the provider is already "seen"
+                    loadCurrentMaximum();
+                    persistHighWaterMark();
+                }
+                changedIds.clear();
+                changedThreadIds.clear();
+                fullScanPending = false;
+                maxThreadDate = 0;
+                setSnapshot(readThreadSnapshot());
+                lastFullScan = SystemClock.elapsedRealtime();
+
+                registered = new ContentObserver(handler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        onChange(selfChange, null);
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        onProviderChange(uri);
+                    }
+                };
+
+                ContentResolver contentResolver = reactContext.getContentResolver();
+                contentResolver.registerContentObserver(Telephony.Sms.CONTENT_URI, true, registered);
+                contentResolver.registerContentObserver(MMS_SMS_URI, true, registered);
+                observer = registered;
+
+                Log.d(TAG, "Sync started at _id=" + maxSeenId + ", " + threadSnapshot.size() + " threads");
+                promise.resolve(highWaterMark());
+
+                // Pick up anything inserted since the mark was persisted
+                scheduleFlush();
+            } catch (SecurityException e) {
+                unregister(registered);
+                Log.e(TAG, "SecurityException starting sync", e);
+                promise.reject("PERMISSION_DENIED", "READ_SMS permission required: " + e.getMessage(), e);
+            } catch (Exception e) {
+                unregister(registered);
+                Log.e(TAG, "Failed to start sync", e);
+                promise.reject("SYNC_START_FAILED", e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Stop watching the provider. The high-water mark is kept for the next start().
+     */
+    @ReactMethod
+    public synchronized void stop(Promise promise) {
+        if (syncHandler == null) {
+            promise.resolve(true);
+            return;
+        }
+        // Behind any start() still queued, so its observer is unregistered too
+        final Handler handler = syncHandler;
+        handler.post(() -> {
+            unregisterObserver(handler);
+            promise.resolve(true);
+        });
+    }
+
+    /**
+     * Get the highest message _id/date the engine has emitted
+     */
+    @ReactMethod
+    public void getHighWaterMark(Promise promise) {
+        promise.resolve(highWaterMark());
+    }
+
+    private void onProviderChange(Uri uri) {
+        if (observer == null) return;
+
+        List<String> segments = uri != null ? uri.getPathSegments() : null;
+        String authority = uri != null ? uri.getAuthority() : null;
+        if (segments == null || segments.isEmpty()) {
+            fullScanPending = true;
+        } else if ("sms".equals(authority) && segments.size() == 1 && isNumeric(segments.get(0))) {
+            // content://sms/<id>
+            changedIds.add(Long.parseLong(segments.get(0)));
+        } else if ("sms".equals(authority) && segments.size() == 2
+                && SMS_BOXES.contains(segments.get(0)) && isNumeric(segments.get(1))) {
+            // content://sms/inbox/<id> and the other boxes
+            changedIds.add(Long.parseLong(segments.get(1)));
+        } else if (segments.size() == 2 && "conversations".equals(segments.get(0)) && isNumeric(segments.get(1))) {
+            // content://sms/conversations/<threadId>, content://mms-sms/conversations/<threadId>
+            changedThreadIds.add(Long.parseLong(segments.get(1)));
+        } else {
+            fullScanPending = true;
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        scheduleFlush(DEBOUNCE_MS);
+    }
+
+    private void scheduleFlush(long delayMs) {
+        if (flushScheduled || syncHandler == null) return;
+        flushScheduled = true;
+        syncHandler.postDelayed(flushRunnable, delayMs);
+    }
+
+    private void flush() {
+        if (observer == null) return;
+        try {
+            long previousMaxId = maxSeenId;
+            InsertedRows insertedRows = readInserted();
+            WritableArray inserted = insertedRows.rows;
+
+            // Ids at or below the previous mark that the provider named individually
+            List<String> knownIds = new ArrayList<>();
+            for (Long id : changedIds) {
+                if (id <= previousMaxId) knownIds.add(String.valueOf(id));
+            }
+
+            WritableArray updated = Arguments.createArray();
+            WritableArray deleted = Arguments.createArray();
+            Set<Long> touchedThreads = new HashSet<>(changedThreadIds);
+            touchedThreads.addAll(insertedRows.threadIds);
+            if (knownIds.size() > MAX_INSERTED_PER_DELTA) {
+                // Bulk changes are covered by the full thread diff
+                fullScanPending = true;
+            } else if (!knownIds.isEmpty()) {
+                readUpdatedAndDeleted(knownIds, updated, deleted, touchedThreads);
+                if (deleted.size() > 0) fullScanPending = true;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            boolean fullScan = fullScanPending && now - lastFullScan >= FULL_SCAN_INTERVAL_MS;
+            List<ThreadRow> changedThreads = new ArrayList<>();
+            WritableArray deletedThreads = Arguments.createArray();
+            Map<Long, ThreadRow> nextSnapshot;
+
+            if (fullScan) {
+                nextSnapshot = readThreadSnapshot();
+                for (ThreadRow row : nextSnapshot.values()) {
+                    ThreadRow previous = threadSnapshot.get(row.threadId);
+                    if (previous == null || row.differsFrom(previous)) {
+                        changedThreads.add(row);
+                    }
+                }
+                for (Long threadId : threadSnapshot.keySet()) {
+                    if (!nextSnapshot.containsKey(threadId)) {
+                        deletedThreads.pushString(String.valueOf(threadId));
+                    }
+                }
+            } else {
+                nextSnapshot = new HashMap<>(threadSnapshot);
+                Map<Long, ThreadRow> rows = readTouchedThreads(touchedThreads);
+                for (ThreadRow row : rows.values()) {
+                    ThreadRow previous = nextSnapshot.put(row.threadId, row);
+                    if (previous == null || row.differsFrom(previous)) {
+                        changedThreads.add(row);
+                    }
+                }
+                // A named thread that is gone or now empty
+                for (Long threadId : touchedThreads) {
+                    if (!rows.containsKey(threadId) && nextSnapshot.remove(threadId) != null) {
+                        deletedThreads.pushString(String.valueOf(threadId));
+                    }
+                }
+            }
+
+            if (inserted.size() == 0 && updated.size() == 0 && deleted.size() == 0
+                    && changedThreads.isEmpty() && deletedThreads.size() == 0) {
+                commitThreads(nextSnapshot, fullScan, now);
+                return;
+            }
+
+            WritableMap delta = Arguments.createMap();
+            delta.putArray("inserted", inserted);
+            delta.putArray("updated", updated);
+            delta.putArray("deleted", deleted);
+            delta.putArray("threads", new ThreadSummaryReader(reactContext).toWritableArray(changedThreads));
+            delta.putArray("deletedThreads", deletedThreads);
+            delta.putMap("highWaterMark", highWaterMark(insertedRows.maxId, insertedRows.maxDate));
+
+            if (!sendEvent(EVENT_DELTA, delta)) {
+                // Nobody received it: keep the mark, named ids and snapshot so the next flush repeats it
+                Log.d(TAG, "No React context, delta kept for the next change");
+                return;
+            }
+            Log.d(TAG, "Delta: " + inserted.size() + " inserted, " + updated.size() + " updated, "
+                + deleted.size() + " deleted, " + changedThreads.size() + " threads changed, "
+                + deletedThreads.size() + " threads deleted");
+
+            commitThreads(nextSnapshot, fullScan, now);
+            if (inserted.size() > 0) {
+                maxSeenId = insertedRows.maxId;
+                maxSeenDate = insertedRows.maxDate;
+                persistHighWaterMark();
+            }
+
+            // Still more inserted rows than fit in one delta
+            if (inserted.size() == MAX_INSERTED_PER_DELTA) {
+                scheduleFlush();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error computing sync delta", e);
+        }
+    }
+
+    /**
+     * The delta was delivered (or was empty): adopt the thread rows and forget the named
+     * changes. A deferred full diff is scheduled for when the interval allows it.
+     */
+    private void commitThreads(Map<Long, ThreadRow> snapshot, boolean fullScan, long now) {
+        changedIds.clear();
+        changedThreadIds.clear();
+        setSnapshot(snapshot);
+        if (fullScan) {
+            fullScanPending = false;
+            lastFullScan = now;
+        } else if (fullScanPending) {
+            scheduleFlush(Math.max(DEBOUNCE_MS, lastFullScan + FULL_SCAN_INTERVAL_MS - now));
+        }
+    }
+
+    private void setSnapshot(Map<Long, ThreadRow> snapshot) {
+        threadSnapshot = snapshot;
+        for (ThreadRow row : snapshot.values()) {
+            maxThreadDate = Math.max(maxThreadDate, row.date);
+        }
+    }
+
+    private static class InsertedRows {
+        final WritableArray rows = Arguments.createArray();
+        final Set<Long> threadIds = new HashSet<>();
+        long maxId;
+        long maxDate;
+    }
+
+    /**
+     * Read rows above the high-water mark. The mark itself only moves once the delta is delivered.
+     */
+    private InsertedRows readInserted() {
+        InsertedRows inserted = new InsertedRows();
+        inserted.maxId = maxSeenId;
+        inserted.maxDate = maxSeenDate;
+        Cursor cursor = null;
+        try {
+            cursor = reactContext.getContentResolver().query(
+                Telephony.Sms.CONTENT_URI,
+                SmsConversationQueryModule.MESSAGE_PROJECTION,
+                Telephony.Sms._ID + " > ?",
+                new String[]{String.valueOf(maxSeenId)},
+                Telephony.Sms._ID + " ASC LIMIT " + MAX_INSERTED_PER_DELTA
+            );
+
+            if (cursor != null) {
+                MessageColumns columns = new MessageColumns(cursor);
+                while (inserted.rows.size() < MAX_INSERTED_PER_DELTA && cursor.moveToNext()) {
+                    inserted.maxId = Math.max(inserted.maxId, cursor.getLong(columns.id));
+                    inserted.maxDate = Math.max(inserted.maxDate, cursor.getLong(columns.date));
+                    inserted.threadIds.add(cursor.getLong(columns.threadId));
+                    inserted.rows.pushMap(columns.toMap(cursor));
+                }
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Re-read specific rows: present ones were updated (their threads are added to
+     * threadIds), missing ones were deleted
+     */
+    private void readUpdatedAndDeleted(List<String> ids, WritableArray updated, WritableArray deleted, Set<Long> threadIds) {
+        Set<String> found = new HashSet<>();
+        Cursor cursor = null;
+        try {
+            cursor = reactContext.getContentResolver().query(
+                Telephony.Sms.CONTENT_URI,
+                SmsConversationQueryModule.MESSAGE_PROJECTION,
+                Telephony.Sms._ID + " IN (" + ThreadSummaryReader.placeholders(ids.size()) + ")",
+                ids.toArray(new String[0]),
+                null
+            );
+
+            if (cursor != null) {
+                MessageColumns columns = new MessageColumns(cursor);
+                while (cursor.moveToNext()) {
+                    found.add(String.valueOf(cursor.getLong(columns.id)));
+                    threadIds.add(cursor.getLong(columns.threadId));
+                    updated.pushMap(columns.toMap(cursor));
+                }
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+
+        for (String id : ids) {
+            if (!found.contains(id)) deleted.pushString(id);
+        }
+    }
+
+    /**
+     * Non-empty thread rows among threadIds, plus any thread newer than the newest one seen
+     */
+    private Map<Long, ThreadRow> readTouchedThreads(Set<Long> threadIds) {
+        Map<Long, ThreadRow> rows = new HashMap<>();
+        readThreads(Telephony.Threads.MESSAGE_COUNT + " > 0 AND " + Telephony.Threads.DATE + " > ?",
+            new String[]{String.valueOf(maxThreadDate)}, rows);
+
+        List<String> ids = new ArrayList<>();
+        for (Long threadId : threadIds) {
+            if (!rows.containsKey(threadId)) ids.add(String.valueOf(threadId));
+        }
+        for (int start = 0; start < ids.size(); start += ThreadSummaryReader.MAX_SQL_ARGS) {
+            List<String> chunk = ids.subList(start, Math.min(start + ThreadSummaryReader.MAX_SQL_ARGS, ids.size()));
+            readThreads(Telephony.Threads.MESSAGE_COUNT + " > 0 AND " + Telephony.Threads._ID
+                + " IN (" + ThreadSummaryReader.placeholders(chunk.size()) + ")", chunk.toArray(new String[0]), rows);
+        }
+        return rows;
+    }
+
+    private void readThreads(String selection, String[] selectionArgs, Map<Long, ThreadRow> into) {
+        Cursor cursor = null;
+        try {
+            cursor = reactContext.getContentResolver().query(
+                ThreadSummaryReader.THREADS_URI,
+                ThreadSummaryReader.THREAD_PROJECTION,
+                selection,
+                selectionArgs,
+                null
+            );
+            for (ThreadRow row : ThreadSummaryReader.readRows(cursor, Integer.MAX_VALUE)) {
+                into.put(row.threadId, row);
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    private Map<Long, ThreadRow> readThreadSnapshot() {
+        Map<Long, ThreadRow> snapshot = new HashMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = reactContext.getContentResolver().query(
+                ThreadSummaryReader.THREADS_URI,
+                ThreadSummaryReader.THREAD_PROJECTION,
+                Telephony.Threads.MESSAGE_COUNT + " > 0",
+                null,
+                null
+            );
+            for (ThreadRow row : ThreadSummaryReader.readRows(cursor, Integer.MAX_VALUE)) {
+                snapshot.put(row.threadId, row);
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+        return snapshot;
+    }
+
+    private void loadCurrentMaximum() {
+        Cursor cursor = null;
+        try {
+            cursor = reactContext.getContentResolver().query(
+                Telephony.Sms.CONTENT_URI,
+                new String[]{Telephony.Sms._ID, Telephony.Sms.DATE},
+                null,
+                null,
+                Telephony.Sms._ID + " DESC LIMIT 1"
+            );
+            if (cursor != null && cursor.moveToFirst()) {
+                maxSeenId = cursor.getLong(0);
+                maxSeenDate = cursor.getLong(1);
+            } else {
+                maxSeenId = 0;
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void persistHighWaterMark() {
+        prefs.edit()
+            .putLong(KEY_MAX_ID, maxSeenId)
+            .putLong(KEY_MAX_DATE, maxSeenDate)
+            .apply();
+    }
+
+    private WritableMap highWaterMark() {
+        return highWaterMark(maxSeenId, maxSeenDate);
+    }
+
+    private static WritableMap highWaterMark(long id, long date) {
+        WritableMap mark = Arguments.createMap();
+        mark.putDouble("id", id);
+        mark.putDouble("date", date);
+        return mark;
+    }
+
+    private static boolean isNumeric(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) return false;
+        }
+        return !value.isEmpty();
+    }
+
+    /**
+     * Returns false if there was no React instance to deliver the event to
+     */
+    private boolean sendEvent(String eventName, WritableMap params) {
+        if (!reactContext.hasActiveCatalystInstance()) {
+            return false;
+        }
+        reactContext
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+            .emit(eventName, params);
+        return true;
+    }
+
+    private void unregister(ContentObserver contentObserver) {
+        if (contentObserver != null) {
+            reactContext.getContentResolver().unregisterContentObserver(contentObserver);
+        }
+    }
+
+    /**
+     * Runs on the sync thread
+     */
+    private void unregisterObserver(Handler handler) {
+        unregister(observer);
+        observer = null;
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+        Log.d(TAG, "Sync stopped");
+    }
+
+    @Override
+    public synchronized void onCatalystInstanceDestroy() {
+        if (syncThread == null) return;
+        // quitSafely still runs everything already posted, including a pending start()
+        final Handler handler = syncHandler;
+        handler.post(() -> unregisterObserver(handler));
+        syncThread.quitSafely();
+        syncThread = null;
+        syncHandler = null;
+    }
+}
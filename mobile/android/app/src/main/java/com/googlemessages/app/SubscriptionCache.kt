@@ -0,0 +1,199 @@
+package com.googlemessages.app
+
+import android.Manifest
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.PackageManager
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.telephony.SmsManager
+import android.telephony.SubscriptionManager
+import android.util.Log
+import androidx.core.content.ContextCompat
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Process-wide cache of the active subscriptions and their SmsManagers.
+ *
+ * Reading SubscriptionManager and creating an SmsManager are both binder calls into the
+ * telephony service, and the send and compose paths need them on every message. The cache holds
+ * an immutable snapshot that is rebuilt only when OnSubscriptionsChangedListener (or a change of
+ * the default SMS SIM) reports a change. Each snapshot carries a version that increases only
+ * when its contents differ, so JS can skip re-fetching the SIM list when nothing changed.
+ */
+class SubscriptionCache private constructor(context: Context) {
+
+    data class SimCard(
+        val subscriptionId: Int,
+        val slotIndex: Int,
+        val displayName: String,
+        val carrierName: String,
+        val phoneNumber: String,
+        val countryIso: String,
+        val isDefaultSms: Boolean
+    )
+
+    class Snapshot(val version: Int, val simCards: List<SimCard>, val defaultSmsSubscriptionId: Int) {
+        val isDualSim: Boolean
+            get() = simCards.size > 1
+    }
+
+    private val appContext = context.applicationContext
+    private val handler: Handler
+    private val smsManagers = ConcurrentHashMap<Int, SmsManager>()
+
+    @Volatile
+    private var snapshot: Snapshot? = null
+    private var version = 0
+    private var listening = false
+
+    init {
+        val thread = HandlerThread("SubscriptionCache")
+        thread.start()
+        handler = Handler(thread.looper)
+    }
+
+    /**
+     * Current snapshot, loaded on first use. Returns null without READ_PHONE_STATE; nothing is
+     * cached in that case, so the next call after the permission is granted loads it.
+     */
+    fun getSnapshot(): Snapshot? {
+        snapshot?.let { return it }
+        if (!hasPermission()) {
+            return null
+        }
+        startListening()
+        return refresh()
+    }
+
+    /**
+     * SmsManager for a subscription; -1 (or an old platform) gives the default one
+     */
+    fun getSmsManager(subscriptionId: Int): SmsManager {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1 || subscriptionId == -1) {
+            @Suppress("DEPRECATION")
+            return SmsManager.getDefault()
+        }
+        return smsManagers.getOrPut(subscriptionId) {
+            @Suppress("DEPRECATION")
+            SmsManager.getSmsManagerForSubscriptionId(subscriptionId)
+        }
+    }
+
+    /**
+     * Re-read the subscriptions. The version only moves when the SIM list actually changed;
+     * onSubscriptionsChanged also fires for signal and roaming updates.
+     */
+    @Synchronized
+    private fun refresh(): Snapshot? {
+        val defaultSubId = defaultSmsSubscriptionId()
+        val simCards = try {
+            readSimCards(defaultSubId)
+        } catch (e: SecurityException) {
+            Log.e(TAG, "Permission denied reading subscriptions: ${e.message}")
+            snapshot = null
+            return null
+        }
+
+        val previous = snapshot
+        if (previous != null && previous.simCards == simCards && previous.defaultSmsSubscriptionId == defaultSubId) {
+            return previous
+        }
+
+        // A removed or re-provisioned SIM may reuse its id with a different SmsManager
+        smsManagers.clear()
+        version++
+        val current = Snapshot(version, simCards, defaultSubId)
+        snapshot = current
+        Log.d(TAG, "Subscriptions changed: ${simCards.size} active, version $version")
+        return current
+    }
+
+    private fun readSimCards(defaultSubId: Int): List<SimCard> {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) {
+            return emptyList()
+        }
+        val subscriptionManager = appContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE) as? SubscriptionManager
+            ?: return emptyList()
+
+        val simCards = ArrayList<SimCard>()
+        subscriptionManager.activeSubscriptionInfoList?.forEach { subInfo ->
+            @Suppress("DEPRECATION")
+            simCards.add(
+                SimCard(
+                    subscriptionId = subInfo.subscriptionId,
+                    slotIndex = subInfo.simSlotIndex,
+                    displayName = subInfo.displayName?.toString() ?: "SIM ${subInfo.simSlotIndex + 1}",
+                    carrierName = subInfo.carrierName?.toString() ?: "Unknown",
+                    phoneNumber = subInfo.number ?: "",
+                    countryIso = subInfo.countryIso ?: "",
+                    isDefaultSms = subInfo.subscriptionId == defaultSubId
+                )
+            )
+        }
+        return simCards
+    }
+
+    private fun defaultSmsSubscriptionId(): Int {
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            SubscriptionManager.getDefaultSmsSubscriptionId()
+        } else {
+            -1
+        }
+    }
+
+    private fun hasPermission(): Boolean {
+        return ContextCompat.checkSelfPermission(appContext, Manifest.permission.READ_PHONE_STATE) == PackageManager.PERMISSION_GRANTED
+    }
+
+    /**
+     * Register for subscription changes (idempotent). The listener is created on the cache
+     * thread because it delivers callbacks on the looper it was created on.
+     */
+    @Synchronized
+    private fun startListening() {
+        if (listening || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) return
+        listening = true
+
+        handler.post {
+            try {
+                val subscriptionManager = appContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE) as? SubscriptionManager
+                subscriptionManager?.addOnSubscriptionsChangedListener(object : SubscriptionManager.OnSubscriptionsChangedListener() {
+                    override fun onSubscriptionsChanged() {
+                        refresh()
+                    }
+                })
+            } catch (e: Exception) {
+                Log.w(TAG, "Cannot listen for subscription changes: ${e.message}")
+            }
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Changing the default SMS SIM is not a subscription change
+            val filter = IntentFilter(SubscriptionManager.ACTION_DEFAULT_SMS_SUBSCRIPTION_CHANGED)
+            val receiver = object : BroadcastReceiver() {
+                override fun onReceive(context: Context, intent: Intent) {
+                    refresh()
+                }
+            }
+            ContextCompat.registerReceiver(appContext, receiver, filter, null, handler, ContextCompat.RECEIVER_NOT_EXPORTED)
+        }
+    }
+
+    companion object {
+        private const val TAG = "SubscriptionCache"
+
+        @Volatile
+        private var instance: SubscriptionCache? = null
+
+        @JvmStatic
+        fun get(context: Context): SubscriptionCache {
+            return instance ?: synchronized(this) {
+                instance ?: SubscriptionCache(context).also { instance = it }
+            }
+        }
+    }
+}
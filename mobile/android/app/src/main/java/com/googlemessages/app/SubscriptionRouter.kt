@@ -0,0 +1,151 @@
+package com.googlemessages.app
+
+import android.app.Activity
+import android.content.Context
+import android.os.SystemClock
+import android.telephony.SmsManager
+import android.util.Log
+
+/**
+ * Picks a SIM for messages sent with SmsOutbox.SUBSCRIPTION_AUTO.
+ *
+ * Per subscription it tracks the number of unfinished messages (queued or in flight) and
+ * moving averages of the sent latency and of the failure rate. The failure rate also halves
+ * every FAILURE_HALF_LIFE_MS without new results, so a SIM that was routed around after a bad
+ * spell becomes eligible again. A message goes to the SIM with the lowest expected wait,
+ * (pending + 1) * latency, scaled up by its failure rate. A conversation keeps its SIM as long
+ * as that SIM stays healthy, so one recipient doesn't see a thread from two numbers; before
+ * this process has routed it, that is the SIM of its newest message in ConversationSummaryStore.
+ */
+class SubscriptionRouter(context: Context) {
+
+    private class Health {
+        var pending = 0
+        var latencyMs = INITIAL_LATENCY_MS.toDouble()
+        var unavailableUntil = 0L
+        private var failureRate = 0.0
+        private var failureRateAt = 0L
+
+        fun failureRate(now: Long): Double {
+            return failureRate * Math.pow(0.5, (now - failureRateAt).toDouble() / FAILURE_HALF_LIFE_MS)
+        }
+
+        fun recordResult(failed: Boolean, now: Long) {
+            val current = failureRate(now)
+            failureRate = if (failed) current + SMOOTHING * (1 - current) else current * (1 - SMOOTHING)
+            failureRateAt = now
+        }
+
+        fun isHealthy(now: Long): Boolean = now >= unavailableUntil && failureRate(now) < MAX_HEALTHY_FAILURE_RATE
+
+        fun cost(now: Long): Double = (pending + 1) * latencyMs / (1.0 - minOf(failureRate(now), MAX_FAILURE_RATE))
+    }
+
+    private val subscriptions = SubscriptionCache.get(context)
+    private val canonicalizer = PhoneNumberCanonicalizer.getInstance(context.applicationContext)
+    private val summaries = ConversationSummaryStore.getInstance(context)
+
+    // Guarded by this
+    private val health = HashMap<Int, Health>()
+    private val sticky = object : LinkedHashMap<String, Int>(64, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Int>?): Boolean = size > MAX_STICKY_CONVERSATIONS
+    }
+
+    /**
+     * Subscription to send a message to address on, or -1 (the default SMS SIM) if the active
+     * SIMs are unknown
+     */
+    @Synchronized
+    fun choose(address: String): Int {
+        val candidates = subscriptions.getSnapshot()?.simCards?.map { it.subscriptionId } ?: emptyList()
+        if (candidates.isEmpty()) return -1
+        if (candidates.size == 1) return candidates[0]
+
+        val now = SystemClock.elapsedRealtime()
+        val key = canonicalizer.canonicalize(address)
+        val previous = sticky[key] ?: summaries.getLastSubscriptionId(key)?.also { sticky[key] = it }
+        if (previous != null && previous in candidates && healthOf(previous).isHealthy(now)) {
+            return previous
+        }
+
+        val healthy = candidates.filter { healthOf(it).isHealthy(now) }
+        val chosen = (healthy.ifEmpty { candidates }).minByOrNull { healthOf(it).cost(now) }!!
+        sticky[key] = chosen
+        if (previous != null && previous != chosen) {
+            Log.d(TAG, "Moving conversation from subscription $previous to $chosen")
+        }
+        return chosen
+    }
+
+    /**
+     * A message was queued on a subscription
+     */
+    @Synchronized
+    fun onQueued(subscriptionId: Int) {
+        healthOf(subscriptionId).pending++
+    }
+
+    /**
+     * A message on a subscription left the radio (sent, failed or delivered)
+     */
+    @Synchronized
+    fun onFinished(subscriptionId: Int) {
+        val entry = healthOf(subscriptionId)
+        entry.pending = maxOf(0, entry.pending - 1)
+    }
+
+    /**
+     * Sent result of a message. latencyMs < 0 when the dispatch time is unknown.
+     */
+    @Synchronized
+    fun onSentResult(subscriptionId: Int, resultCode: Int, latencyMs: Long) {
+        val entry = healthOf(subscriptionId)
+        val now = SystemClock.elapsedRealtime()
+        when (resultCode) {
+            Activity.RESULT_OK -> {
+                entry.recordResult(false, now)
+                if (latencyMs >= 0) {
+                    entry.latencyMs += SMOOTHING * (latencyMs - entry.latencyMs)
+                }
+            }
+            SmsManager.RESULT_ERROR_NO_SERVICE, SmsManager.RESULT_ERROR_RADIO_OFF -> {
+                entry.recordResult(true, now)
+                // Out of coverage; nothing else will get through on this SIM for a while
+                entry.unavailableUntil = now + NO_SERVICE_BACKOFF_MS
+                Log.w(TAG, "Subscription $subscriptionId has no service, routing around it")
+            }
+            SmsManager.RESULT_ERROR_GENERIC_FAILURE -> {
+                entry.recordResult(true, now)
+            }
+            // Other errors (e.g. a malformed PDU) say nothing about the SIM
+            else -> {}
+        }
+    }
+
+    /**
+     * Routing state for one subscription, or null if it hasn't sent anything
+     */
+    @Synchronized
+    fun getHealth(subscriptionId: Int): Map<String, Double>? {
+        val entry = health[subscriptionId] ?: return null
+        return mapOf(
+            "pending" to entry.pending.toDouble(),
+            "latencyMs" to entry.latencyMs,
+            "failureRate" to entry.failureRate(SystemClock.elapsedRealtime())
+        )
+    }
+
+    private fun healthOf(subscriptionId: Int): Health = health.getOrPut(subscriptionId) { Health() }
+
+    companion object {
+        private const val TAG = "SubscriptionRouter"
+
+        private const val SMOOTHING = 0.2
+        private const val INITIAL_LATENCY_MS = 1_000L
+        private const val NO_SERVICE_BACKOFF_MS = 30_000L
+        private const val MAX_HEALTHY_FAILURE_RATE = 0.5
+        private const val MAX_FAILURE_RATE = 0.95
+        private const val FAILURE_HALF_LIFE_MS = 5 * 60 * 1000L
+        private const val MAX_STICKY_CONVERSATIONS = 500
+    }
+}
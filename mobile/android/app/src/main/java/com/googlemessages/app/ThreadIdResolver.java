@@ -0,0 +1,265 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.Telephony;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded LRU cache from canonical address (see PhoneNumberCanonicalizer) to thread_id.
+ *
+ * Lookups are read-only: the address's key is mapped to the recipient ids of all its spellings
+ * in canonical-addresses (CanonicalAddressIndex), and the newest thread with exactly one of
+ * those recipients and at least one message wins. Unlike Telephony.Threads.getOrCreateThreadId
+ * this never creates a thread, so a miss doesn't itself trigger the observer below. Addresses
+ * without a conversation are cached negatively.
+ *
+ * A provider observer keeps the cache honest without rescanning the threads table: a newer
+ * thread date drops the negative entries, and cached thread ids are re-checked in one query
+ * so deleted or emptied threads drop out.
+ */
+class ThreadIdResolver {
+    private static final String TAG = "ThreadIdResolver";
+
+    private static final int MAX_ENTRIES = 256;
+    private static final int MAX_NEGATIVE_ENTRIES = 128;
+    private static final long REVALIDATE_DELAY_MS = 300;
+
+    private static final Uri MMS_SMS_URI = Uri.parse("content://mms-sms/");
+
+    private static ThreadIdResolver instance;
+
+    private final ContentResolver contentResolver;
+    private final Handler handler;
+    private final CanonicalAddressIndex addressIndex;
+
+    private final Map<String, Long> threadIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final Map<String, Boolean> missing = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_NEGATIVE_ENTRIES;
+        }
+    };
+
+    // Newest thread date at the last revalidation; only touched on handler thread
+    private long latestThreadDate = -1;
+
+    private final Runnable revalidateRunnable = this::revalidate;
+
+    static synchronized ThreadIdResolver getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThreadIdResolver(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ThreadIdResolver(Context context) {
+        this.contentResolver = context.getContentResolver();
+        this.addressIndex = CanonicalAddressIndex.getInstance(context);
+
+        HandlerThread thread = new HandlerThread("ThreadIdResolver");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+
+        handler.post(this::revalidate);
+
+        try {
+            contentResolver.registerContentObserver(MMS_SMS_URI, true, new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    // Debounce: bulk writes notify once per row
+                    handler.removeCallbacks(revalidateRunnable);
+                    handler.postDelayed(revalidateRunnable, REVALIDATE_DELAY_MS);
+                }
+            });
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot observe provider, cache will not be invalidated", e);
+        }
+    }
+
+    /**
+     * Get the thread_id of the conversation with this address, or null if there is none
+     */
+    Long resolve(String address) {
+        String key = addressIndex.keyFor(address);
+        if (key == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            Long cached = threadIds.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            if (missing.containsKey(key)) {
+                return null;
+            }
+        }
+
+        Long threadId;
+        try {
+            threadId = findThread(addressIndex.recipientIdsFor(key));
+        } catch (Exception e) {
+            Log.e(TAG, "Error resolving thread_id for " + address, e);
+            return null;
+        }
+
+        synchronized (this) {
+            if (threadId != null) {
+                threadIds.put(key, threadId);
+            } else {
+                missing.put(key, Boolean.TRUE);
+            }
+        }
+
+        Log.d(TAG, "Resolved " + key + " -> " + threadId);
+        return threadId;
+    }
+
+    /**
+     * Newest non-empty one-to-one thread with any of these recipient ids
+     */
+    private Long findThread(List<String> recipientIds) {
+        if (recipientIds.isEmpty()) {
+            return null;
+        }
+        // A number has a handful of spellings at most; cap it anyway
+        List<String> ids = recipientIds.size() > ThreadSummaryReader.MAX_SQL_ARGS
+            ? recipientIds.subList(0, ThreadSummaryReader.MAX_SQL_ARGS)
+            : recipientIds;
+
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(
+                ThreadSummaryReader.THREADS_URI,
+                new String[]{Telephony.Threads._ID},
+                Telephony.Threads.RECIPIENT_IDS + " IN (" + ThreadSummaryReader.placeholders(ids.size()) + ")"
+                    + " AND " + Telephony.Threads.MESSAGE_COUNT + " > 0",
+                ids.toArray(new String[0]),
+                Telephony.Threads.DATE + " DESC LIMIT 1"
+            );
+            return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Check the cache against the provider with two bounded queries. Any thread that could
+     * answer a negative entry (created, or gaining its first message) becomes the newest
+     * thread, so a newer maximum date drops the negative entries. Positive entries are
+     * re-checked by id, dropping threads that were deleted or emptied.
+     */
+    private void revalidate() {
+        try {
+            long latest = latestThreadDate();
+            if (latestThreadDate >= 0 && latest != latestThreadDate) {
+                synchronized (this) {
+                    missing.clear();
+                }
+            }
+            latestThreadDate = latest;
+
+            Set<Long> cached;
+            synchronized (this) {
+                cached = new HashSet<>(threadIds.values());
+            }
+            if (cached.isEmpty()) return;
+
+            Set<Long> live = liveThreadIds(new ArrayList<>(cached));
+            if (live.size() == cached.size()) return;
+
+            int dropped = 0;
+            synchronized (this) {
+                Iterator<Long> it = threadIds.values().iterator();
+                while (it.hasNext()) {
+                    Long id = it.next();
+                    if (cached.contains(id) && !live.contains(id)) {
+                        it.remove();
+                        dropped++;
+                    }
+                }
+            }
+            Log.d(TAG, "Dropped " + dropped + " cached threads that were deleted or emptied");
+        } catch (Exception e) {
+            Log.e(TAG, "Error revalidating thread cache", e);
+            synchronized (this) {
+                threadIds.clear();
+                missing.clear();
+            }
+        }
+    }
+
+    private long latestThreadDate() {
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(
+                ThreadSummaryReader.THREADS_URI,
+                new String[]{Telephony.Threads.DATE},
+                Telephony.Threads.MESSAGE_COUNT + " > 0",
+                null,
+                Telephony.Threads.DATE + " DESC LIMIT 1"
+            );
+            return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * The subset of these thread ids that still exist and have messages
+     */
+    private Set<Long> liveThreadIds(List<Long> threadIds) {
+        Set<Long> live = new HashSet<>();
+        for (int start = 0; start < threadIds.size(); start += ThreadSummaryReader.MAX_SQL_ARGS) {
+            List<Long> chunk = threadIds.subList(start, Math.min(start + ThreadSummaryReader.MAX_SQL_ARGS, threadIds.size()));
+            String[] args = new String[chunk.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = String.valueOf(chunk.get(i));
+            }
+
+            Cursor cursor = null;
+            try {
+                cursor = contentResolver.query(
+                    ThreadSummaryReader.THREADS_URI,
+                    new String[]{Telephony.Threads._ID},
+                    Telephony.Threads._ID + " IN (" + ThreadSummaryReader.placeholders(args.length) + ")"
+                        + " AND " + Telephony.Threads.MESSAGE_COUNT + " > 0",
+                    args,
+                    null
+                );
+                while (cursor != null && cursor.moveToNext()) {
+                    live.add(cursor.getLong(0));
+                }
+            } finally {
+                if (cursor != null && !cursor.isClosed()) {
+                    cursor.close();
+                }
+            }
+        }
+        return live;
+    }
+}
@@ -0,0 +1,329 @@
+package com.googlemessages.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Shared reader for rows of the threads table and their JS representation.
+ * Used by the paged conversation query and the incremental sync engine.
+ */
+class ThreadSummaryReader {
+    private static final String TAG = "ThreadSummaryReader";
+
+    // "simple=true" returns the raw threads table instead of the joined mms-sms view
+    static final Uri THREADS_URI = Telephony.Threads.CONTENT_URI.buildUpon()
+        .appendQueryParameter("simple", "true")
+        .build();
+    static final Uri CANONICAL_ADDRESSES_URI = Uri.parse("content://mms-sms/canonical-addresses");
+
+    static final String[] THREAD_PROJECTION = new String[]{
+        Telephony.Threads._ID,
+        Telephony.Threads.DATE,
+        Telephony.Threads.MESSAGE_COUNT,
+        Telephony.Threads.RECIPIENT_IDS,
+        Telephony.Threads.SNIPPET,
+        Telephony.Threads.READ
+    };
+
+    // Stay well below SQLite's default limit of 999 bound arguments
+    static final int MAX_SQL_ARGS = 500;
+
+    private final ContentResolver contentResolver;
+    private final CanonicalAddressIndex addressIndex;
+
+    ThreadSummaryReader(Context context) {
+        this.contentResolver = context.getContentResolver();
+        this.addressIndex = CanonicalAddressIndex.getInstance(context);
+    }
+
+    /**
+     * Read all rows from a cursor over THREAD_PROJECTION, stopping after maxRows
+     */
+    static List<ThreadRow> readRows(Cursor cursor, int maxRows) {
+        List<ThreadRow> rows = new ArrayList<>();
+        if (cursor == null) {
+            return rows;
+        }
+
+        int idIndex = cursor.getColumnIndexOrThrow(Telephony.Threads._ID);
+        int dateIndex = cursor.getColumnIndexOrThrow(Telephony.Threads.DATE);
+        int countIndex = cursor.getColumnIndexOrThrow(Telephony.Threads.MESSAGE_COUNT);
+        int recipientsIndex = cursor.getColumnIndexOrThrow(Telephony.Threads.RECIPIENT_IDS);
+        int snippetIndex = cursor.getColumnIndexOrThrow(Telephony.Threads.SNIPPET);
+        int readIndex = cursor.getColumnIndexOrThrow(Telephony.Threads.READ);
+
+        while (rows.size() < maxRows && cursor.moveToNext()) {
+            ThreadRow row = new ThreadRow();
+            row.threadId = cursor.getLong(idIndex);
+            row.date = cursor.getLong(dateIndex);
+            row.messageCount = cursor.getInt(countIndex);
+            row.recipientIds = cursor.getString(recipientsIndex);
+            row.snippet = cursor.getString(snippetIndex);
+            row.read = cursor.getInt(readIndex) != 0;
+            rows.add(row);
+        }
+
+        return rows;
+    }
+
+    /**
+     * Build the JS conversation objects for a list of thread rows.
+     * Addresses and unread counts are resolved with one query each for the whole list.
+     */
+    WritableArray toWritableArray(List<ThreadRow> rows) {
+        WritableArray conversations = Arguments.createArray();
+        for (ThreadSummary summary : summarize(rows)) {
+            WritableArray threadAddresses = Arguments.createArray();
+            for (String address : summary.addresses) {
+                threadAddresses.pushString(address);
+            }
+
+            ThreadRow row = summary.row;
+            WritableMap conversation = Arguments.createMap();
+            conversation.putString("threadId", String.valueOf(row.threadId));
+            conversation.putString("phoneNumber", summary.primaryAddress);
+            // Same for every spelling of the number, e.g. "+1 555…" and "555…"
+            conversation.putString("conversationKey", summary.conversationKey);
+            conversation.putArray("addresses", threadAddresses);
+            conversation.putString("snippet", row.snippet);
+            conversation.putDouble("date", row.date);
+            conversation.putInt("messageCount", row.messageCount);
+            conversation.putBoolean("read", row.read);
+            conversation.putInt("unreadCount", summary.unreadCount);
+            conversations.pushMap(conversation);
+        }
+
+        return conversations;
+    }
+
+    /**
+     * Key of a conversation: the canonical key of its address, or for a group the sorted keys
+     * of all members, so a group never shares a key with a one-to-one thread
+     */
+    private String conversationKey(List<String> threadAddresses) {
+        if (threadAddresses.isEmpty()) {
+            return null;
+        }
+        if (threadAddresses.size() == 1) {
+            return addressIndex.keyFor(threadAddresses.get(0));
+        }
+        Set<String> keys = new TreeSet<>();
+        for (String address : threadAddresses) {
+            keys.add(addressIndex.keyFor(address));
+        }
+        return TextUtils.join(",", keys);
+    }
+
+    /**
+     * Resolve addresses, conversation keys and unread counts for a list of thread rows
+     */
+    List<ThreadSummary> summarize(List<ThreadRow> rows) {
+        Map<String, String> addresses = resolveRecipientAddresses(rows);
+        Map<Long, Integer> unreadCounts = countUnread(rows);
+
+        List<ThreadSummary> summaries = new ArrayList<>(rows.size());
+        for (ThreadRow row : rows) {
+            ThreadSummary summary = new ThreadSummary();
+            summary.row = row;
+
+            for (String recipientId : splitRecipientIds(row.recipientIds)) {
+                String address = addresses.get(recipientId);
+                if (address == null) continue;
+                if (summary.primaryAddress == null) summary.primaryAddress = address;
+                summary.addresses.add(address);
+            }
+
+            summary.conversationKey = conversationKey(summary.addresses);
+            Integer unread = unreadCounts.get(row.threadId);
+            summary.unreadCount = unread != null ? unread : 0;
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    /**
+     * Resolve recipient_ids of all threads through the shared address index
+     */
+    private Map<String, String> resolveRecipientAddresses(List<ThreadRow> rows) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (ThreadRow row : rows) {
+            ids.addAll(splitRecipientIds(row.recipientIds));
+        }
+
+        if (ids.isEmpty()) {
+            return new HashMap<>();
+        }
+        return addressIndex.addressesFor(ids);
+    }
+
+    /**
+     * Count unread inbox messages for the threads that are flagged unread
+     */
+    private Map<Long, Integer> countUnread(List<ThreadRow> rows) {
+        List<String> unreadThreadIds = new ArrayList<>();
+        for (ThreadRow row : rows) {
+            if (!row.read) {
+                unreadThreadIds.add(String.valueOf(row.threadId));
+            }
+        }
+
+        if (unreadThreadIds.isEmpty()) {
+            return new HashMap<>();
+        }
+        return countUnreadByThread(unreadThreadIds);
+    }
+
+    /**
+     * Count unread inbox messages per thread_id in one provider round-trip per chunk.
+     * Only the thread_id column of unread rows is read; pass null to count every thread.
+     */
+    Map<Long, Integer> countUnreadByThread(List<String> threadIds) {
+        Map<Long, Integer> counts = new HashMap<>();
+
+        if (threadIds == null) {
+            // The threads table flags threads with unread messages; only count those
+            threadIds = readUnreadThreadIds();
+            if (threadIds == null) {
+                countUnreadInto(counts, null);
+                return counts;
+            }
+        }
+
+        for (int start = 0; start < threadIds.size(); start += MAX_SQL_ARGS) {
+            List<String> chunk = threadIds.subList(start, Math.min(start + MAX_SQL_ARGS, threadIds.size()));
+            countUnreadInto(counts, chunk);
+        }
+        return counts;
+    }
+
+    /**
+     * Ids of threads whose read flag is 0, or null if the threads table can't be read
+     */
+    private List<String> readUnreadThreadIds() {
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(
+                THREADS_URI,
+                new String[]{Telephony.Threads._ID},
+                Telephony.Threads.READ + " = 0 AND " + Telephony.Threads.MESSAGE_COUNT + " > 0",
+                null,
+                null
+            );
+            if (cursor == null) {
+                return null;
+            }
+
+            List<String> ids = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+            return ids;
+        } catch (Exception e) {
+            Log.w(TAG, "Threads read flag unavailable, counting all unread rows", e);
+            return null;
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void countUnreadInto(Map<Long, Integer> counts, List<String> threadIds) {
+        String selection = Telephony.Sms.READ + " = 0";
+        String[] selectionArgs = null;
+        if (threadIds != null) {
+            selection += " AND " + Telephony.Sms.THREAD_ID + " IN (" + placeholders(threadIds.size()) + ")";
+            selectionArgs = threadIds.toArray(new String[0]);
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(
+                Telephony.Sms.Inbox.CONTENT_URI,
+                new String[]{Telephony.Sms.THREAD_ID},
+                selection,
+                selectionArgs,
+                null
+            );
+
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    long threadId = cursor.getLong(0);
+                    Integer count = counts.get(threadId);
+                    counts.put(threadId, count == null ? 1 : count + 1);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error counting unread messages", e);
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static List<String> splitRecipientIds(String recipientIds) {
+        List<String> ids = new ArrayList<>();
+        if (TextUtils.isEmpty(recipientIds)) {
+            return ids;
+        }
+        for (String id : recipientIds.trim().split(" ")) {
+            if (!id.isEmpty()) ids.add(id);
+        }
+        return ids;
+    }
+
+    static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(',');
+            builder.append('?');
+        }
+        return builder.toString();
+    }
+
+    static class ThreadRow {
+        long threadId;
+        long date;
+        int messageCount;
+        String recipientIds;
+        String snippet;
+        boolean read;
+
+        /**
+         * True when anything shown in the conversation list differs from the other row
+         */
+        boolean differsFrom(ThreadRow other) {
+            return date != other.date
+                || messageCount != other.messageCount
+                || read != other.read
+                || !TextUtils.equals(snippet, other.snippet)
+                || !TextUtils.equals(recipientIds, other.recipientIds);
+        }
+    }
+
+    static class ThreadSummary {
+        ThreadRow row;
+        String primaryAddress;
+        String conversationKey;
+        final List<String> addresses = new ArrayList<>();
+        int unreadCount;
+    }
+}
@@ -0,0 +1,90 @@
+package com.googlemessages.app
+
+import android.os.Handler
+import android.os.SystemClock
+
+/**
+ * Hashed timing wheel for large numbers of coarse timeouts (sent / delivery fallbacks).
+ *
+ * Deadlines are bucketed into SLOT_COUNT slots of tickMs each; schedule and cancel are O(1).
+ * The wheel ticks on the owner's Handler and stops ticking while nothing is scheduled.
+ * Not thread-safe: schedule, cancel and the tasks all run on the handler's thread.
+ */
+class TimingWheel(private val handler: Handler, private val tickMs: Long = DEFAULT_TICK_MS) {
+
+    inner class Timeout internal constructor(
+        internal val task: () -> Unit,
+        internal var rounds: Long,
+        internal val slot: Int
+    ) {
+        /**
+         * Cancel the timeout if it has not fired yet
+         */
+        fun cancel() {
+            if (slots[slot].remove(this)) {
+                pending--
+            }
+        }
+    }
+
+    private val slots = Array(SLOT_COUNT) { LinkedHashSet<Timeout>() }
+    private var cursor = 0
+    private var pending = 0
+    private var ticking = false
+    private var nextTickAt = 0L
+
+    private val tickRunnable = Runnable { tick() }
+
+    /**
+     * Run task after roughly delayMs (rounded up to the next tick)
+     */
+    fun schedule(delayMs: Long, task: () -> Unit): Timeout {
+        if (!ticking) {
+            // Waking up: the wheel starts over from the current slot
+            ticking = true
+            nextTickAt = SystemClock.uptimeMillis() + tickMs
+            handler.postAtTime(tickRunnable, nextTickAt)
+        }
+
+        val ticks = maxOf(1L, (delayMs + tickMs - 1) / tickMs)
+        val slot = ((cursor + ticks) % SLOT_COUNT).toInt()
+        val timeout = Timeout(task, (ticks - 1) / SLOT_COUNT, slot)
+        slots[slot].add(timeout)
+        pending++
+        return timeout
+    }
+
+    private fun tick() {
+        cursor = (cursor + 1) % SLOT_COUNT
+
+        val bucket = slots[cursor]
+        if (bucket.isNotEmpty()) {
+            var expired: ArrayList<Timeout>? = null
+            val iterator = bucket.iterator()
+            while (iterator.hasNext()) {
+                val timeout = iterator.next()
+                if (timeout.rounds > 0) {
+                    timeout.rounds--
+                } else {
+                    iterator.remove()
+                    pending--
+                    (expired ?: ArrayList<Timeout>().also { expired = it }).add(timeout)
+                }
+            }
+            // Run after iterating; tasks may schedule or cancel other timeouts
+            expired?.forEach { it.task() }
+        }
+
+        if (pending == 0) {
+            ticking = false
+            return
+        }
+        nextTickAt += tickMs
+        handler.postAtTime(tickRunnable, maxOf(nextTickAt, SystemClock.uptimeMillis()))
+    }
+
+    companion object {
+        private const val SLOT_COUNT = 256
+        private const val DEFAULT_TICK_MS = 250L
+    }
+}
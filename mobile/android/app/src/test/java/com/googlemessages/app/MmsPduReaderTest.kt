@@ -0,0 +1,188 @@
+package com.googlemessages.app
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertThrows
+import org.junit.Test
+
+class MmsPduReaderTest {
+
+    @Test
+    fun parsesNotification() {
+        val headers = MmsPduReader.parseNotification(notification())
+
+        assertEquals(MmsPduReader.MESSAGE_TYPE_NOTIFICATION_IND, headers.messageType)
+        assertEquals("T-42", headers.transactionId)
+        assertEquals(0x12, headers.mmsVersion)
+        assertEquals(SENDER, headers.from)
+        assertEquals(4096L, headers.messageSize)
+        assertEquals(128L, headers.expiry)
+        assertEquals(CONTENT_LOCATION, headers.contentLocation)
+    }
+
+    @Test
+    fun rejectsOtherMessageTypes() {
+        val pdu = pdu {
+            write(0x8C)
+            write(MmsPduReader.MESSAGE_TYPE_RETRIEVE_CONF)
+            write(0x83)
+            text(CONTENT_LOCATION)
+        }
+
+        assertThrows(MmsPduException::class.java) { MmsPduReader.parseNotification(pdu) }
+    }
+
+    @Test
+    fun rejectsNotificationWithoutContentLocation() {
+        val pdu = pdu {
+            write(0x8C)
+            write(MmsPduReader.MESSAGE_TYPE_NOTIFICATION_IND)
+            write(0x98)
+            text("T-42")
+        }
+
+        assertThrows(MmsPduException::class.java) { MmsPduReader.parseNotification(pdu) }
+    }
+
+    @Test
+    fun truncatedPduThrows() {
+        val full = notification()
+        // Cut inside the From value
+        val truncated = full.copyOf(14)
+
+        assertThrows(IOException::class.java) { MmsPduReader.parseNotification(truncated) }
+    }
+
+    @Test
+    fun notifyRespRoundTrips() {
+        val headers = MmsPduReader(ByteArrayInputStream(MmsPduReader.buildNotifyResp("T-42"))).readHeaders()
+
+        assertEquals(MmsPduReader.MESSAGE_TYPE_NOTIFYRESP_IND, headers.messageType)
+        assertEquals("T-42", headers.transactionId)
+        assertEquals(0x12, headers.mmsVersion)
+    }
+
+    @Test
+    fun readsRetrieveConfParts() {
+        val image = byteArrayOf(1, 2, 3, 4)
+        val pdu = pdu {
+            write(0x8C)
+            write(MmsPduReader.MESSAGE_TYPE_RETRIEVE_CONF)
+            write(0x8B)
+            text("M-1")
+            from(SENDER)
+            write(0x97)
+            text("+15557654321/TYPE=PLMN")
+            // Content-Type: application/vnd.wap.multipart.mixed
+            write(0x84)
+            write(0xA3)
+
+            write(2)
+            // text/plain "hello"
+            write(1)
+            write(5)
+            write(0x83)
+            write("hello".toByteArray())
+            // image/jpeg with Content-ID <img1>
+            write(1 + 1 + "<img1>".length + 1)
+            write(image.size)
+            write(0x9E)
+            write(0xC0)
+            text("<img1>")
+            write(image)
+        }
+
+        val reader = MmsPduReader(ByteArrayInputStream(pdu))
+        val headers = reader.readHeaders()
+        assertEquals(MmsPduReader.MESSAGE_TYPE_RETRIEVE_CONF, headers.messageType)
+        assertEquals("M-1", headers.messageId)
+        assertEquals(SENDER, headers.from)
+        assertEquals(listOf("+15557654321/TYPE=PLMN"), headers.to)
+        assertEquals("application/vnd.wap.multipart.mixed", headers.contentType?.mimeType)
+
+        val parts = ArrayList<Pair<MmsPartHeaders, ByteArray>>()
+        val count = reader.readParts { part, data -> parts.add(Pair(part, data.readBytes())) }
+
+        assertEquals(2, count)
+        assertEquals("text/plain", parts[0].first.contentType.mimeType)
+        assertNull(parts[0].first.contentId)
+        assertArrayEquals("hello".toByteArray(), parts[0].second)
+        assertEquals("image/jpeg", parts[1].first.contentType.mimeType)
+        assertEquals("img1", parts[1].first.contentId)
+        assertEquals(image.size.toLong(), parts[1].first.dataLength)
+        assertArrayEquals(image, parts[1].second)
+    }
+
+    @Test
+    fun skipsUnreadPartData() {
+        val pdu = pdu {
+            write(0x8C)
+            write(MmsPduReader.MESSAGE_TYPE_RETRIEVE_CONF)
+            write(0x84)
+            write(0xA3)
+
+            write(2)
+            write(1)
+            write(3)
+            write(0x9E)
+            write(byteArrayOf(9, 9, 9))
+            write(1)
+            write(2)
+            write(0x83)
+            write("hi".toByteArray())
+        }
+
+        val reader = MmsPduReader(ByteArrayInputStream(pdu))
+        reader.readHeaders()
+        val texts = ArrayList<String>()
+        reader.readParts { part, data ->
+            if (part.contentType.mimeType == "text/plain") texts.add(String(data.readBytes()))
+        }
+
+        assertEquals(listOf("hi"), texts)
+    }
+
+    private fun notification(): ByteArray = pdu {
+        write(0x8C)
+        write(MmsPduReader.MESSAGE_TYPE_NOTIFICATION_IND)
+        write(0x98)
+        text("T-42")
+        write(0x8D)
+        write(0x92)
+        from(SENDER)
+        // X-Mms-Message-Class: personal, not decoded
+        write(0x8A)
+        write(0x80)
+        write(0x8E)
+        write(byteArrayOf(2, 0x10, 0x00))
+        // Expiry: relative, 128 seconds
+        write(0x88)
+        write(byteArrayOf(3, 0x81.toByte(), 1, 0x80.toByte()))
+        write(0x83)
+        text(CONTENT_LOCATION)
+    }
+
+    private fun pdu(build: ByteArrayOutputStream.() -> Unit): ByteArray = ByteArrayOutputStream().apply(build).toByteArray()
+
+    private fun ByteArrayOutputStream.text(value: String) {
+        write(value.toByteArray())
+        write(0)
+    }
+
+    private fun ByteArrayOutputStream.from(address: String) {
+        write(0x89)
+        // Value-length, Address-present-token, Text-string
+        write(1 + address.length + 1)
+        write(0x80)
+        text(address)
+    }
+
+    companion object {
+        private const val SENDER = "+15551234567/TYPE=PLMN"
+        private const val CONTENT_LOCATION = "http://mmsc.example.com/m/abc"
+    }
+}
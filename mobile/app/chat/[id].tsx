@@ -9,7 +9,7 @@ import SimSelector from '../../src/components/SimSelector';
 import SimIndicator from '../../src/components/SimIndicator';
 import { Message, SimCard } from '../../src/types';
 import { COLORS } from '../../src/config/constants';
-import smsService from '../../src/services/smsService';
+import smsService, { ThreadPageCursor } from '../../src/services/smsService';
 import socketService from '../../src/services/socketService';
 import contactsService from '../../src/services/contactsService';
 import dualSimService from '../../src/services/dualSimService';
@@ -32,6 +32,13 @@ export default function ChatScreen() {
   const [showSimSelector, setShowSimSelector] = useState(false);
   const [isDualSim, setIsDualSim] = useState(false);
   const flatListRef = useRef<any>(null);
+  // Cursor for the next older page (undefined = not loaded yet, null = no more pages)
+  const olderCursorRef = useRef<ThreadPageCursor | null | undefined>(undefined);
+  // Resolved on the first load; null until the conversation has a thread
+  const threadIdRef = useRef<string | null>(null);
+  const isLoadingOlderRef = useRef(false);
+  const prependingRef = useRef(false);
+  const initialScrollDoneRef = useRef(false);
   const permissions = usePermissions();
   const [bannerDismissed, setBannerDismissed] = useState(false);
   const [nowTick, setNowTick] = useState(Date.now());
@@ -61,6 +68,7 @@ export default function ChatScreen() {
           timestamp: event.timestamp,
           type: 'received',
           read: false,
+          attachments: event.attachments,
         };
         
         setMessages((prev) => [...prev, newMessage]);
@@ -216,15 +224,39 @@ export default function ChatScreen() {
     try {
       console.log('[Chat] Loading messages for:', phoneNumber, 'showLoading=', showLoading);
       if (showLoading) setIsLoading(true);
-      const msgs = await smsService.readConversationMessages(phoneNumber);
-      const sortedMessages = msgs.sort((a, b) => a.timestamp - b.timestamp);
+
+      // Newest page from the native thread cursor; older pages load on scroll
+      const page = await smsService.readConversationMessagesPage(phoneNumber, null, threadIdRef.current).catch((error) => {
+        console.warn('[Chat] Paged thread query failed, falling back to full read:', error);
+        return null;
+      });
+      if (page) threadIdRef.current = page.threadId;
+
+      let sortedMessages: Message[];
+      if (page) {
+        const latest = page.messages.sort((a, b) => a.timestamp - b.timestamp);
+        const oldestLoaded = latest.length > 0 ? latest[0].timestamp : Infinity;
+        // On reloads keep any older pages the user has already scrolled through
+        if (!showLoading && olderCursorRef.current !== undefined) {
+          setMessages((prev) => [...prev.filter((m) => m.timestamp < oldestLoaded), ...latest]);
+        } else {
+          olderCursorRef.current = page.nextCursor;
+          setMessages(latest);
+        }
+        sortedMessages = latest;
+      } else {
+        const msgs = await smsService.readConversationMessages(phoneNumber);
+        sortedMessages = msgs.sort((a, b) => a.timestamp - b.timestamp);
+        olderCursorRef.current = null;
+        setMessages(sortedMessages);
+      }
       console.log(`[Chat] Loaded ${sortedMessages.length} messages`);
-      setMessages(sortedMessages);
       
       // Scroll to bottom after messages are loaded
       setTimeout(() => {
         flatListRef.current?.scrollToEnd?.({ animated: false });
         console.log('[Chat] Scrolled to bottom after loading');
+        initialScrollDoneRef.current = true;
       }, 150);
       
       // Sync to web
@@ -238,6 +270,28 @@ export default function ChatScreen() {
     }
   };
 
+  // Load the next older page when the user scrolls near the top
+  const loadOlderMessages = async () => {
+    const cursor = olderCursorRef.current;
+    if (!cursor || isLoadingOlderRef.current || !initialScrollDoneRef.current) return;
+
+    isLoadingOlderRef.current = true;
+    try {
+      const page = await smsService.readConversationMessagesPage(phoneNumber, cursor);
+      if (!page) return;
+
+      olderCursorRef.current = page.nextCursor;
+      const older = page.messages.sort((a, b) => a.timestamp - b.timestamp);
+      console.log(`[Chat] Loaded ${older.length} older messages`);
+      prependingRef.current = true;
+      setMessages((prev) => [...older, ...prev]);
+    } catch (error) {
+      console.error('[Chat] Error loading older messages:', error);
+    } finally {
+      isLoadingOlderRef.current = false;
+    }
+  };
+
   const loadSimInfo = async () => {
     try {
       // Check if device has dual SIM
@@ -599,6 +653,11 @@ export default function ChatScreen() {
           extraHeight={16}
           // Auto-scroll behavior
           onContentSizeChange={() => {
+            // Older pages are prepended above the viewport; don't jump to the bottom for them
+            if (prependingRef.current) {
+              prependingRef.current = false;
+              return;
+            }
             // Auto-scroll to bottom when new messages arrive
             setTimeout(() => {
               flatListRef.current?.scrollToEnd?.({ animated: true });
@@ -610,6 +669,13 @@ export default function ChatScreen() {
               flatListRef.current?.scrollToEnd?.({ animated: false });
             }, 100);
           }}
+          // Page in older messages as the top of the list comes into view
+          onScroll={(event: any) => {
+            if (event.nativeEvent.contentOffset.y < 200) {
+              loadOlderMessages();
+            }
+          }}
+          scrollEventThrottle={100}
           // Keep scroll position stable
           maintainVisibleContentPosition={{
             minIndexForVisible: 0,
@@ -1,4 +1,4 @@
-import React, { useState, useEffect, useCallback } from 'react';
+import React, { useState, useEffect, useCallback, useRef } from 'react';
 import { View, FlatList, StyleSheet, RefreshControl, TouchableOpacity, AppState, Animated, Platform } from 'react-native';
 import { FAB, Searchbar, Text, ActivityIndicator, IconButton } from 'react-native-paper';
 import { useRouter, useFocusEffect } from 'expo-router';
@@ -7,7 +7,7 @@ import PermissionRequest from '../src/components/PermissionRequest';
 import DefaultSmsAppBanner from '../src/components/DefaultSmsAppBanner';
 import { Conversation } from '../src/types';
 import { COLORS } from '../src/config/constants';
-import smsService from '../src/services/smsService';
+import smsService, { ConversationListCursor, SyncDelta } from '../src/services/smsService';
 import socketService from '../src/services/socketService';
 import contactsService from '../src/services/contactsService';
 import { useSmsListener } from '../src/hooks/useSmsListener';
@@ -22,6 +22,9 @@ export default function InboxScreen() {
   const [isLoading, setIsLoading] = useState(true);
   const [isRefreshing, setIsRefreshing] = useState(false);
   const [bannerDismissed, setBannerDismissed] = useState(false);
+  // Where the next page of the list starts; null once everything is loaded
+  const nextCursor = useRef<ConversationListCursor | null>(null);
+  const isLoadingMore = useRef(false);
   
   // Animation values
   const [fabScale] = useState(new Animated.Value(1));
@@ -73,17 +76,34 @@ export default function InboxScreen() {
     };
   }, [permissions.hasSmsPermissions]);
 
-  // Periodic refresh to sync with Google Messages changes
+  // Keep the list in sync with provider changes (including Google Messages).
+  // Uses native deltas when available, periodic refresh otherwise.
   useEffect(() => {
     if (!permissions.hasSmsPermissions) return;
 
-    const interval = setInterval(() => {
-      console.log('[Inbox] Periodic refresh to sync with Google Messages...');
-      loadConversations();
-    }, 30000); // Refresh every 30 seconds
+    let interval: ReturnType<typeof setInterval> | null = null;
+    let unsubscribe: (() => void) | null = null;
+    let cancelled = false;
+
+    smsService.startSync(applySyncDelta).then((unsub) => {
+      if (cancelled) {
+        unsub?.();
+        return;
+      }
+      if (unsub) {
+        unsubscribe = unsub;
+        return;
+      }
+      interval = setInterval(() => {
+        console.log('[Inbox] Periodic refresh to sync with Google Messages...');
+        loadConversations();
+      }, 30000); // Refresh every 30 seconds
+    });
 
     return () => {
-      clearInterval(interval);
+      cancelled = true;
+      unsubscribe?.();
+      if (interval) clearInterval(interval);
     };
   }, [permissions.hasSmsPermissions]);
 
@@ -156,12 +176,15 @@ export default function InboxScreen() {
 
 
 
+  // Loads the first page only; the rest is loaded as the list scrolls (loadMoreConversations)
   const loadConversations = async () => {
     try {
       console.log('[Inbox] Loading conversations...');
       setIsLoading(true);
-      const convs = await smsService.getConversations();
-      console.log(`[Inbox] Loaded ${convs.length} conversations`);
+      const page = await smsService.getConversationListPage();
+      const convs = page.conversations;
+      nextCursor.current = page.nextCursor;
+      console.log(`[Inbox] Loaded ${convs.length} conversations${page.nextCursor ? ' (more available)' : ''}`);
       
       // Log unread counts for debugging
       const unreadConvs = convs.filter(c => c.unreadCount > 0);
@@ -172,9 +195,9 @@ export default function InboxScreen() {
       
       setConversations(convs);
       
-      // Sync to web if connected
+      // Sync to web if connected; the web client needs the whole list, read in the background
       if (socketService.connected) {
-        socketService.syncConversations(convs);
+        syncToWeb();
       }
     } catch (error) {
       console.error('[Inbox] Error loading conversations:', error);
@@ -187,6 +210,53 @@ export default function InboxScreen() {
     }
   };
 
+  const loadMoreConversations = async () => {
+    const cursor = nextCursor.current;
+    if (!cursor || isLoadingMore.current) return;
+
+    isLoadingMore.current = true;
+    try {
+      const page = await smsService.getConversationListPage(cursor);
+      // A refresh started from the top while this page was loading
+      if (nextCursor.current !== cursor) return;
+      nextCursor.current = page.nextCursor;
+      setConversations((prev) => {
+        // State holds one row per thread; rows are merged by id for display
+        const loaded = new Set(prev.map((c) => c.threadId ?? c.id));
+        return prev.concat(page.conversations.filter((c) => !loaded.has(c.threadId ?? c.id)));
+      });
+    } catch (error) {
+      console.error('[Inbox] Error loading more conversations:', error);
+    } finally {
+      isLoadingMore.current = false;
+    }
+  };
+
+  // Merge changed threads from the sync engine into the list without a full reload
+  const applySyncDelta = (delta: SyncDelta) => {
+    if (delta.conversations.length === 0 && delta.deletedThreads.length === 0) return;
+    console.log(`[Inbox] Sync delta: ${delta.conversations.length} changed, ${delta.deletedThreads.length} deleted threads`);
+
+    setConversations((prev) => {
+      const changedIds = new Set(delta.conversations.map((c) => c.threadId));
+      const deletedIds = new Set(delta.deletedThreads);
+      // Delta rows come straight from the threads table and carry no contact names
+      const names = new Map(prev.filter((c) => c.contactName).map((c) => [c.threadId, c.contactName]));
+      const changed = delta.conversations.map((c) =>
+        c.contactName || !names.has(c.threadId) ? c : { ...c, contactName: names.get(c.threadId) }
+      );
+      return prev
+        .filter((c) => !(c.threadId && (changedIds.has(c.threadId) || deletedIds.has(c.threadId))))
+        .concat(changed)
+        .sort((a, b) => b.lastMessageTime - a.lastMessageTime);
+    });
+
+    // Outside the updater: React may run updaters more than once
+    if (socketService.connected) {
+      syncToWeb();
+    }
+  };
+
   const handleRefresh = async () => {
     setIsRefreshing(true);
     await loadConversations();
@@ -209,13 +279,15 @@ export default function InboxScreen() {
   };
 
   const filterConversations = () => {
+    // Threads of the same number (different spellings) show as one conversation
+    const merged = smsService.mergeConversations(conversations);
     if (!searchQuery.trim()) {
-      setFilteredConversations(conversations);
+      setFilteredConversations(merged);
       return;
     }
 
     const query = searchQuery.toLowerCase();
-    const filtered = conversations.filter(
+    const filtered = merged.filter(
       (conv) =>
         conv.phoneNumber.toLowerCase().includes(query) ||
         conv.contactName?.toLowerCase().includes(query) ||
@@ -346,6 +418,8 @@ export default function InboxScreen() {
         renderItem={renderConversation}
         keyExtractor={(item) => item.id}
         ListEmptyComponent={renderEmpty}
+        onEndReached={loadMoreConversations}
+        onEndReachedThreshold={0.5}
         showsVerticalScrollIndicator={false}
         refreshControl={
           <RefreshControl
@@ -1,10 +1,47 @@
-import React, { useEffect, useRef } from 'react';
-import { View, StyleSheet, TouchableOpacity, Alert, Animated } from 'react-native';
+import React, { useEffect, useRef, useState } from 'react';
+import { View, StyleSheet, TouchableOpacity, Alert, Animated, Image, PixelRatio } from 'react-native';
 import { Text, IconButton } from 'react-native-paper';
-import { Message } from '../types';
+import { Message, MessageAttachment } from '../types';
+import attachmentService from '../services/attachmentService';
 import { formatChatTime } from '../utils/dateUtils';
 import { COLORS } from '../config/constants';
 
+// Rendered size of an image attachment; thumbnails are decoded natively at this size
+const THUMBNAIL_DP = 220;
+const THUMBNAIL_PX = PixelRatio.getPixelSizeForLayoutSize(THUMBNAIL_DP);
+const MAX_THUMBNAIL_RETRIES = 1;
+
+/**
+ * Image part rendered from the native thumbnail cache instead of the full-size part
+ */
+function AttachmentThumbnail({ attachment }: { attachment: MessageAttachment }) {
+  const [uri, setUri] = useState<string | null>(null);
+  // Bumped when a cached file turned out to be gone, to request it again
+  const [attempt, setAttempt] = useState(0);
+
+  useEffect(() => {
+    let cancelled = false;
+    attachmentService.getThumbnailUri(attachment.partId, THUMBNAIL_PX).then((result) => {
+      if (!cancelled) setUri(result);
+    });
+    return () => {
+      cancelled = true;
+    };
+  }, [attachment.partId, attempt]);
+
+  const handleError = () => {
+    attachmentService.invalidateThumbnail(attachment.partId, THUMBNAIL_PX);
+    setUri(null);
+    // One retry; a part that can't be decoded stays a placeholder
+    if (attempt < MAX_THUMBNAIL_RETRIES) setAttempt(attempt + 1);
+  };
+
+  if (!uri) {
+    return <View style={styles.attachmentPlaceholder} />;
+  }
+  return <Image source={{ uri }} style={styles.attachment} resizeMode="cover" onError={handleError} />;
+}
+
 interface Props {
   message: Message;
   showTimestamp?: boolean;
@@ -89,9 +126,16 @@ export default function MessageBubble({ message, showTimestamp = true, onRetry,
         delayLongPress={500}
       >
         <View style={[styles.bubble, isSent ? styles.sentBubble : styles.receivedBubble, isFailed && styles.failedBubble]}>
-        <Text style={[styles.messageText, isSent ? styles.sentText : styles.receivedText]}>
-          {message.body}
-        </Text>
+        {message.attachments
+          ?.filter((attachment) => attachment.contentType.startsWith('image/'))
+          .map((attachment) => (
+            <AttachmentThumbnail key={attachment.partId} attachment={attachment} />
+          ))}
+        {!!message.body && (
+          <Text style={[styles.messageText, isSent ? styles.sentText : styles.receivedText]}>
+            {message.body}
+          </Text>
+        )}
         
         <View style={styles.footer}>
           <View style={styles.timeAndStatus}>
@@ -168,6 +212,19 @@ const styles = StyleSheet.create({
     alignItems: 'center',
     gap: 4,
   },
+  attachment: {
+    width: THUMBNAIL_DP,
+    height: THUMBNAIL_DP,
+    borderRadius: 12,
+    marginBottom: 4,
+  },
+  attachmentPlaceholder: {
+    width: THUMBNAIL_DP,
+    height: THUMBNAIL_DP,
+    borderRadius: 12,
+    marginBottom: 4,
+    backgroundColor: 'rgba(0, 0, 0, 0.08)',
+  },
   messageText: {
     fontSize: 16,
     lineHeight: 22,
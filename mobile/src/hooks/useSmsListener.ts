@@ -1,5 +1,7 @@
 import { useEffect } from 'react';
 import { DeviceEventEmitter, Platform } from 'react-native';
+import type { SmsStatusEvent } from '../services/smsService';
+import type { MessageAttachment } from '../types';
 
 /**
  * Hook for listening to real-time SMS events from native Android
@@ -8,6 +10,10 @@ import { DeviceEventEmitter, Platform } from 'react-native';
  * - onSmsReceived: When a new SMS is received
  * - onSmsSent: When an SMS is successfully sent
  * - onSmsDelivered: When an SMS is delivered
+ *
+ * Sent and delivered updates arrive from native as one onSmsStatusBatch event
+ * and are fanned out to the callbacks here. Incoming MMS (onMmsReceived) are
+ * delivered through onSmsReceived with their attachments.
  */
 
 interface SmsReceivedEvent {
@@ -15,6 +21,7 @@ interface SmsReceivedEvent {
   body: string;
   timestamp: number;
   type: 'received';
+  attachments?: MessageAttachment[];
 }
 
 interface SmsSentEvent {
@@ -25,7 +32,7 @@ interface SmsSentEvent {
 
 interface SmsDeliveredEvent {
   messageId: string;
-  status: 'delivered';
+  status: 'delivered' | 'not_delivered';
 }
 
 export interface UseSmsListenerOptions {
@@ -57,25 +64,41 @@ export function useSmsListener(options: UseSmsListenerOptions) {
         }
       );
       subscriptions.push(subscription);
-    }
 
-    if (onSmsSent) {
-      const subscription = DeviceEventEmitter.addListener(
-        'onSmsSent',
-        (event: SmsSentEvent) => {
-          console.log('[useSmsListener] SMS sent status:', event.messageId, event.status);
-          onSmsSent(event);
+      const mmsSubscription = DeviceEventEmitter.addListener(
+        'onMmsReceived',
+        (event: any) => {
+          console.log('[useSmsListener] MMS received:', event.phoneNumber);
+          onSmsReceived({
+            phoneNumber: event.phoneNumber,
+            body: event.body ?? event.subject ?? '',
+            timestamp: event.timestamp,
+            type: 'received',
+            attachments: event.attachments,
+          });
         }
       );
-      subscriptions.push(subscription);
+      subscriptions.push(mmsSubscription);
     }
 
-    if (onSmsDelivered) {
+    if (onSmsSent || onSmsDelivered) {
       const subscription = DeviceEventEmitter.addListener(
-        'onSmsDelivered',
-        (event: SmsDeliveredEvent) => {
-          console.log('[useSmsListener] SMS delivered:', event.messageId);
-          onSmsDelivered(event);
+        'onSmsStatusBatch',
+        (batch: SmsStatusEvent[]) => {
+          for (const event of batch) {
+            if (event.event === 'sent' && onSmsSent) {
+              onSmsSent({
+                messageId: event.messageId,
+                status: event.status as SmsSentEvent['status'],
+                error: event.error ?? undefined,
+              });
+            } else if (event.event === 'delivered' && onSmsDelivered) {
+              onSmsDelivered({
+                messageId: event.messageId,
+                status: event.status as SmsDeliveredEvent['status'],
+              });
+            }
+          }
         }
       );
       subscriptions.push(subscription);
@@ -0,0 +1,64 @@
+import { NativeModules, Platform } from 'react-native';
+
+const { AttachmentCache } = NativeModules;
+
+/**
+ * Thumbnails and full-size files of MMS parts, served from the native disk cache as file:// URIs
+ */
+class AttachmentService {
+  // Resolved URIs, so remounting a bubble doesn't cross the bridge again. The files may be
+  // evicted later; callers report that through invalidateThumbnail.
+  private thumbnailUris: Map<string, string> = new Map();
+  private pending: Map<string, Promise<string | null>> = new Map();
+
+  /**
+   * URI of a part's thumbnail, at most maxSize pixels on its longer side; null when unavailable
+   */
+  getThumbnailUri(partId: string, maxSize: number): Promise<string | null> {
+    if (Platform.OS !== 'android' || !AttachmentCache) {
+      return Promise.resolve(null);
+    }
+
+    const key = `${partId}:${maxSize}`;
+    const cached = this.thumbnailUris.get(key);
+    if (cached) {
+      return Promise.resolve(cached);
+    }
+
+    let request = this.pending.get(key);
+    if (!request) {
+      request = AttachmentCache.getThumbnail(partId, maxSize)
+        .then((uri: string) => {
+          this.thumbnailUris.set(key, uri);
+          return uri;
+        })
+        .catch((error: any) => {
+          console.warn(`[attachmentService] No thumbnail for part ${partId}:`, error);
+          return null;
+        })
+        .finally(() => this.pending.delete(key));
+      this.pending.set(key, request!);
+    }
+    return request!;
+  }
+
+  /**
+   * Forget a thumbnail URI that failed to load, e.g. because the native LRU evicted its file,
+   * so the next getThumbnailUri regenerates it
+   */
+  invalidateThumbnail(partId: string, maxSize: number): void {
+    this.thumbnailUris.delete(`${partId}:${maxSize}`);
+  }
+
+  /**
+   * URI of a full-size copy of a part, e.g. for a viewer
+   */
+  async getAttachmentUri(partId: string): Promise<string | null> {
+    if (Platform.OS !== 'android' || !AttachmentCache) {
+      return null;
+    }
+    return AttachmentCache.getAttachment(partId);
+  }
+}
+
+export default new AttachmentService();
@@ -1,6 +1,11 @@
-import { PermissionsAndroid, Platform } from 'react-native';
+import { NativeModules, PermissionsAndroid, Platform } from 'react-native';
 import Contacts from 'react-native-contacts';
 
+const { ContactLookup } = NativeModules;
+
+// Digits compared when numbers only match by their national part
+const SUFFIX_DIGITS = 10;
+
 export interface Contact {
   id: string;
   name: string;
@@ -8,11 +13,23 @@ export interface Contact {
   photo?: string;
 }
 
+export interface ResolvedName {
+  // Contact id (ContactsContract.Contacts._ID, same as Contact.id)
+  id: string;
+  name: string;
+  photo: string | null;
+}
+
 class ContactsService {
   private contactsCache: Map<string, Contact> = new Map();
   private phoneToContactMap: Map<string, Contact> = new Map();
+  private phoneSuffixMap: Map<string, Contact> = new Map();
   private initialized = false;
 
+  // Lookups requested in the same tick, resolved with one native call
+  private pendingLookups: Map<string, Array<(result: ResolvedName | null) => void>> = new Map();
+  private lookupScheduled = false;
+
   /**
    * Request contacts permissions
    */
@@ -77,9 +94,12 @@ class ContactsService {
           contacts.push(contact);
           this.contactsCache.set(contact.id, contact);
 
-          // Map each phone number to this contact
+          // Map each phone number (and its national suffix) to this contact
           contact.phoneNumbers.forEach((phone) => {
             this.phoneToContactMap.set(phone, contact);
+            if (phone.length >= SUFFIX_DIGITS) {
+              this.phoneSuffixMap.set(phone.slice(-SUFFIX_DIGITS), contact);
+            }
           });
         }
       });
@@ -94,27 +114,89 @@ class ContactsService {
   }
 
   /**
-   * Get contact by phone number
+   * Resolve many numbers to contact names with one native call.
+   * Backed by a native LRU that is invalidated when contacts change.
+   */
+  async resolveNames(numbers: string[]): Promise<Record<string, ResolvedName | null>> {
+    if (!ContactLookup) {
+      const result: Record<string, ResolvedName | null> = {};
+      for (const number of numbers) {
+        const contact = await this.getContactByPhoneNumber(number);
+        result[number] = contact ? { id: contact.id, name: contact.name, photo: contact.photo || null } : null;
+      }
+      return result;
+    }
+    return ContactLookup.resolveNames(numbers);
+  }
+
+  /**
+   * Resolve one number, coalesced with other lookups made in the same tick
+   */
+  private resolveName(phoneNumber: string): Promise<ResolvedName | null> {
+    return new Promise((resolve) => {
+      const waiting = this.pendingLookups.get(phoneNumber);
+      if (waiting) {
+        waiting.push(resolve);
+      } else {
+        this.pendingLookups.set(phoneNumber, [resolve]);
+      }
+
+      if (!this.lookupScheduled) {
+        this.lookupScheduled = true;
+        setTimeout(() => this.flushLookups(), 0);
+      }
+    });
+  }
+
+  private async flushLookups() {
+    const batch = this.pendingLookups;
+    this.pendingLookups = new Map();
+    this.lookupScheduled = false;
+
+    let results: Record<string, ResolvedName | null> = {};
+    try {
+      results = await ContactLookup.resolveNames(Array.from(batch.keys()));
+    } catch (error) {
+      console.error('Error resolving contact names:', error);
+    }
+
+    batch.forEach((callbacks, number) => {
+      const result = results[number] ?? null;
+      callbacks.forEach((callback) => callback(result));
+    });
+  }
+
+  /**
+   * Get contact by phone number, or null if the number has no contact
    */
   async getContactByPhoneNumber(phoneNumber: string): Promise<Contact | null> {
+    if (ContactLookup) {
+      const resolved = await this.resolveName(phoneNumber);
+      if (!resolved) {
+        return null;
+      }
+      const cached = this.contactsCache.get(resolved.id);
+      if (cached) {
+        return cached;
+      }
+      return {
+        id: resolved.id,
+        name: resolved.name,
+        phoneNumbers: [this.normalizePhoneNumber(phoneNumber)],
+        photo: resolved.photo || undefined,
+      };
+    }
+
     if (!this.initialized) {
       await this.loadContacts();
     }
 
     const normalizedPhone = this.normalizePhoneNumber(phoneNumber);
     
-    // Try exact match first
+    // Try exact match first, then the national suffix (last 10 digits)
     let contact = this.phoneToContactMap.get(normalizedPhone);
-    
-    // If no exact match, try partial match (last 10 digits)
-    if (!contact && normalizedPhone.length >= 10) {
-      const lastDigits = normalizedPhone.slice(-10);
-      for (const [phone, cont] of this.phoneToContactMap.entries()) {
-        if (phone.endsWith(lastDigits) || lastDigits.endsWith(phone.slice(-10))) {
-          contact = cont;
-          break;
-        }
-      }
+    if (!contact && normalizedPhone.length >= SUFFIX_DIGITS) {
+      contact = this.phoneSuffixMap.get(normalizedPhone.slice(-SUFFIX_DIGITS));
     }
 
     return contact || null;
@@ -208,6 +290,7 @@ class ContactsService {
   async refreshContacts(): Promise<void> {
     this.contactsCache.clear();
     this.phoneToContactMap.clear();
+    this.phoneSuffixMap.clear();
     this.initialized = false;
     await this.loadContacts();
   }
@@ -218,6 +301,7 @@ class ContactsService {
   clearCache(): void {
     this.contactsCache.clear();
     this.phoneToContactMap.clear();
+    this.phoneSuffixMap.clear();
     this.initialized = false;
   }
 }
@@ -6,10 +6,18 @@ const { DualSimManager } = NativeModules;
 
 const SIM_PREFERENCES_KEY = '@sim_preferences';
 
+/**
+ * Subscription id that lets the native outbox route the message to the least loaded healthy SIM,
+ * keeping each conversation on the SIM it was first sent from
+ */
+export const AUTO_SUBSCRIPTION_ID = -2;
+
 class DualSimService {
   private simCards: SimCard[] = [];
   private simPreferences: Map<string, SimPreference> = new Map();
   private isDualSim: boolean = false;
+  // Version of the native subscription snapshot simCards came from; -1 before the first load
+  private subscriptionVersion: number = -1;
 
   /**
    * Initialize the service - load SIM cards and preferences
@@ -45,8 +53,20 @@ class DualSimService {
     }
 
     try {
-      console.log('Loading SIM cards from device...');
-      const cards = await DualSimManager.getSimCards();
+      let cards: any;
+      let version = -1;
+      if (DualSimManager.getSubscriptionSnapshot) {
+        const snapshot = await DualSimManager.getSubscriptionSnapshot(this.subscriptionVersion);
+        if (!snapshot.changed) {
+          return this.simCards;
+        }
+        console.log(`Loading SIM cards from device (version ${snapshot.version})...`);
+        version = snapshot.version;
+        cards = snapshot.simCards;
+      } else {
+        console.log('Loading SIM cards from device...');
+        cards = await DualSimManager.getSimCards();
+      }
       
       // Validate the response
       if (!Array.isArray(cards)) {
@@ -78,6 +98,7 @@ class DualSimService {
       
       this.simCards = validCards;
       this.isDualSim = this.simCards.length > 1;
+      this.subscriptionVersion = version;
       
       console.log(`✅ Loaded ${this.simCards.length} valid SIM card(s):`);
       this.simCards.forEach((card, index) => {
@@ -101,6 +122,7 @@ class DualSimService {
       console.error(errorMessage);
       this.simCards = [];
       this.isDualSim = false;
+      this.subscriptionVersion = -1;
       return [];
     }
   }
@@ -167,8 +189,10 @@ class DualSimService {
     try {
       await DualSimManager.sendSmsWithSim(phoneNumber, message, messageId, subscriptionId);
       
-      // Save preference for this contact
-      await this.saveSimPreference(phoneNumber, subscriptionId);
+      // Save preference for this contact; auto-routed sends keep their SIM natively
+      if (subscriptionId !== AUTO_SUBSCRIPTION_ID) {
+        await this.saveSimPreference(phoneNumber, subscriptionId);
+      }
       
       return true;
     } catch (error) {
@@ -284,11 +308,8 @@ class DualSimService {
    */
   async getRecommendedSimForContact(phoneNumber: string): Promise<SimCard | null> {
     try {
-      // Refresh SIM cards if we don't have any loaded
-      if (this.simCards.length === 0) {
-        console.log('No SIM cards loaded, attempting to reload...');
-        await this.loadSimCards();
-      }
+      // Cheap when nothing changed: the native side only returns the list on a new version
+      await this.loadSimCards();
 
       // Check if we have a preference for this contact
       const preference = this.getSimPreference(phoneNumber);
@@ -1,10 +1,77 @@
-import { PermissionsAndroid, Platform, Linking, NativeEventEmitter } from 'react-native';
+import { PermissionsAndroid, Platform, Linking, NativeEventEmitter, DeviceEventEmitter } from 'react-native';
 import SmsAndroid from 'react-native-get-sms-android';
 import { Message, Conversation } from '../types';
 import { NativeModules } from 'react-native';
 
 const { EnhancedSmsManager, DefaultSmsModule } = NativeModules;
 
+// Threads per native page when reading the conversation list
+const CONVERSATION_PAGE_SIZE = 50;
+
+// Messages per native page when reading a single thread
+const MESSAGE_PAGE_SIZE = 50;
+
+export type PageCursor = { beforeDate: number; beforeId: number };
+// Message pages remember their thread, so older pages don't resolve it again
+export type ThreadPageCursor = PageCursor & { threadId: string };
+// Which native source the conversation list is being paged from
+export type ConversationListCursor = PageCursor & { source: 'summaries' | 'threads' };
+
+export interface SmsStatusEvent {
+  event: 'sent' | 'delivered';
+  messageId: string;
+  phoneNumber: string;
+  status: 'sent' | 'failed' | 'delivered' | 'not_delivered';
+  error: string | null;
+  timestamp: number;
+}
+
+export interface SmsSearchResult {
+  id: string;
+  threadId: string;
+  address: string;
+  date: number;
+  type: number;
+  // Body excerpt with matched terms wrapped in <b></b>
+  snippet: string;
+}
+
+export interface DeleteProgress {
+  operationId: string | null;
+  processed: number;
+  total: number;
+  deleted: number;
+}
+
+export interface BulkSendProgress {
+  operationId: string;
+  total: number;
+  queued: number;
+  sent: number;
+  delivered: number; // Best-effort: delivery reports that arrive after the job finished are not counted
+  failed: number;
+  cancelled: boolean;
+  done: boolean;
+  error?: string; // Set on the final event of a job that could not be resumed after a restart
+}
+
+export interface BulkSendOptions {
+  // Pass one to be able to cancelBulk() before the first progress event
+  operationId?: string;
+  subscriptionId?: number;
+  // Can only slow sending below the platform limit, never speed it up
+  partsPerMinute?: number;
+  burst?: number;
+}
+
+export interface SyncDelta {
+  inserted: Message[];
+  updated: Message[];
+  deleted: string[];
+  conversations: Conversation[];
+  deletedThreads: string[];
+}
+
 class SMSService {
   private eventEmitter: NativeEventEmitter | null = null;
   private smsStatusListeners: Map<string, (status: string, error?: string) => void> = new Map();
@@ -28,27 +95,17 @@ class SMSService {
 
     console.log('[smsService] Setting up SMS status event listeners...');
 
-    // Listen for SMS sent status
-    this.eventEmitter.addListener('onSmsSent', (data: any) => {
-      console.log('[smsService] SMS sent status received:', data);
-      const listener = this.smsStatusListeners.get(data.messageId);
-      if (listener) {
-        console.log(`[smsService] Calling status listener for messageId: ${data.messageId}, status: ${data.status}`);
-        listener(data.status, data.error);
-      } else {
-        console.warn(`[smsService] No listener found for messageId: ${data.messageId}`);
+    // Native coalesces sent/delivered transitions into one batch per window,
+    // keeping only the latest status per messageId
+    this.eventEmitter.addListener('onSmsStatusBatch', (batch: SmsStatusEvent[]) => {
+      if (this.smsStatusListeners.size === 0) {
+        return;
       }
-    });
-
-    // Listen for SMS delivered status
-    this.eventEmitter.addListener('onSmsDelivered', (data: any) => {
-      console.log('[smsService] SMS delivered status received:', data);
-      const listener = this.smsStatusListeners.get(data.messageId);
-      if (listener) {
-        console.log(`[smsService] Calling status listener for messageId: ${data.messageId}, status: ${data.status}`);
-        listener(data.status, data.error);
-      } else {
-        console.warn(`[smsService] No listener found for messageId: ${data.messageId}`);
+      for (const data of batch) {
+        const listener = this.smsStatusListeners.get(data.messageId);
+        if (listener) {
+          listener(data.status, data.error ?? undefined);
+        }
       }
     });
 
@@ -262,9 +319,283 @@ class SMSService {
   }
 
   /**
-   * Get conversations grouped by phone number
+   * Read one page of a conversation's messages from the native thread query (newest first).
+   * SMS and MMS are interleaved; MMS carry their media parts as attachments.
+   * Pass the previous page's nextCursor to load older messages, or the threadId of an earlier
+   * page to reload the newest one without resolving the thread again. The thread is looked up
+   * read-only: an address without one gets an empty page and a null threadId.
+   * Resolves null when the module is unavailable.
+   */
+  async readConversationMessagesPage(
+    phoneNumber: string,
+    cursor: ThreadPageCursor | null = null,
+    knownThreadId: string | null = null,
+    limit: number = MESSAGE_PAGE_SIZE
+  ): Promise<{ messages: Message[]; nextCursor: ThreadPageCursor | null; threadId: string | null } | null> {
+    const { SmsConversationQuery } = NativeModules;
+    if (Platform.OS !== 'android' || !SmsConversationQuery?.getThreadMessages) {
+      return null;
+    }
+
+    const threadId: string | null =
+      cursor?.threadId ?? knownThreadId ?? (await SmsConversationQuery.getThreadId(phoneNumber));
+    if (!threadId) {
+      return { messages: [], nextCursor: null, threadId: null };
+    }
+    const page = await SmsConversationQuery.getThreadMessages(
+      threadId,
+      cursor ? cursor.beforeDate : -1,
+      cursor ? cursor.beforeId : -1,
+      limit
+    );
+
+    const messages: Message[] = page.messages.map((sms: any) => {
+      // Android SMS types: 1=inbox(received), 2=sent (native query returns only these)
+      const isSent = sms.type === 2;
+      return {
+        id: sms.id,
+        conversationId: sms.threadId,
+        phoneNumber: sms.address,
+        body: sms.body,
+        timestamp: sms.date,
+        type: isSent ? 'sent' : 'received',
+        status: isSent ? 'sent' : undefined,
+        read: sms.read,
+        subscriptionId: sms.subscriptionId,
+        attachments: sms.attachments,
+      } as Message;
+    });
+
+    return { messages, nextCursor: page.nextCursor ? { ...page.nextCursor, threadId } : null, threadId };
+  }
+
+  /**
+   * Get one page of conversations from the native threads query (newest first).
+   * Pass the previous page's nextCursor to continue; resolves null when the module is unavailable.
+   */
+  async getConversationsPage(
+    cursor: PageCursor | null = null,
+    limit: number = CONVERSATION_PAGE_SIZE
+  ): Promise<{ conversations: Conversation[]; nextCursor: PageCursor | null } | null> {
+    const { SmsConversationQuery } = NativeModules;
+    if (Platform.OS !== 'android' || !SmsConversationQuery) {
+      return null;
+    }
+
+    const page = await SmsConversationQuery.getConversationsPage(
+      cursor ? cursor.beforeDate : -1,
+      cursor ? cursor.beforeId : -1,
+      limit
+    );
+
+    const conversations: Conversation[] = page.conversations
+      .filter((row: any) => !!row.phoneNumber)
+      .map((row: any) => this.toConversation(row));
+
+    return { conversations, nextCursor: page.nextCursor };
+  }
+
+  /**
+   * Get one page of the native summary table (newest first).
+   * Resolves null when the module is unavailable.
+   */
+  async getConversationSummariesPage(
+    cursor: PageCursor | null = null,
+    limit: number = CONVERSATION_PAGE_SIZE
+  ): Promise<{ conversations: Conversation[]; nextCursor: PageCursor | null } | null> {
+    const { SmsConversationQuery } = NativeModules;
+    if (Platform.OS !== 'android' || !SmsConversationQuery?.getConversationSummaries) {
+      return null;
+    }
+
+    const page = await SmsConversationQuery.getConversationSummaries(
+      cursor ? cursor.beforeDate : -1,
+      cursor ? cursor.beforeId : -1,
+      limit
+    );
+    if (!Array.isArray(page?.conversations)) {
+      throw new Error('Malformed conversation summaries page');
+    }
+
+    const conversations: Conversation[] = page.conversations
+      .filter((row: any) => !!row.phoneNumber)
+      .map((row: any) => this.toConversation(row));
+
+    return { conversations, nextCursor: page.nextCursor };
+  }
+
+  /**
+   * Get one page of the conversation list (newest first) from the fastest source available:
+   * the materialized summary table, then the paged threads query. Pass the previous page's
+   * nextCursor to continue. Pages hold one entry per thread; combine them with mergeConversations
+   * for display. A page that fails rejects, so the caller keeps its cursor and can retry; only a
+   * device without the native query module falls back to reading every message.
+   */
+  async getConversationListPage(
+    cursor: ConversationListCursor | null = null
+  ): Promise<{ conversations: Conversation[]; nextCursor: ConversationListCursor | null }> {
+    if (!cursor || cursor.source === 'summaries') {
+      // Already sorted, names and unread counts included
+      const page = await this.getConversationSummariesPage(cursor).catch((error) => {
+        // Later pages must come from the same source as the cursor
+        if (cursor) throw error;
+        console.warn('[smsService] Conversation summaries unavailable, using threads query:', error);
+        return null;
+      });
+      // An empty first page may be a table that isn't built yet; let the threads query decide
+      if (page && (cursor || page.conversations.length > 0)) {
+        return {
+          conversations: page.conversations,
+          nextCursor: page.nextCursor ? { ...page.nextCursor, source: 'summaries' } : null,
+        };
+      }
+    }
+
+    // The native paged threads query never materializes individual messages
+    const page = await this.getConversationsPage(cursor);
+    if (page) {
+      return {
+        conversations: page.conversations,
+        nextCursor: page.nextCursor ? { ...page.nextCursor, source: 'threads' } : null,
+      };
+    }
+
+    return { conversations: await this.readConversationsFromMessages(), nextCursor: null };
+  }
+
+  /**
+   * Full-text search over message bodies and addresses, best matches first.
+   * Pass the previous page's nextCursor to continue; resolves null when the module is unavailable.
+   * Rejects with code CANCELLED when a newer search superseded it before it ran.
+   */
+  async searchMessages(
+    query: string,
+    limit: number = MESSAGE_PAGE_SIZE,
+    cursor: string | null = null
+  ): Promise<{ results: SmsSearchResult[]; nextCursor: string | null } | null> {
+    const { SmsSearch } = NativeModules;
+    if (Platform.OS !== 'android' || !SmsSearch) {
+      return null;
+    }
+
+    return SmsSearch.searchMessages(query, limit, cursor);
+  }
+
+  /**
+   * Merge conversations that share an id, i.e. one number filed under several provider threads
+   * ("+1 555…" and "555…"). The newest thread supplies the fields shown in the list and unread
+   * counts add up. Input must be per thread (as returned by the page methods), newest first.
+   */
+  mergeConversations(conversations: Conversation[]): Conversation[] {
+    const byId = new Map<string, Conversation>();
+    for (const conversation of conversations) {
+      const existing = byId.get(conversation.id);
+      if (!existing) {
+        byId.set(conversation.id, conversation);
+        continue;
+      }
+      const newest = conversation.lastMessageTime > existing.lastMessageTime ? conversation : existing;
+      byId.set(conversation.id, {
+        ...newest,
+        contactName: newest.contactName || existing.contactName || conversation.contactName,
+        unreadCount: existing.unreadCount + conversation.unreadCount,
+      });
+    }
+    return Array.from(byId.values());
+  }
+
+  /**
+   * Convert a native thread summary into a Conversation, keyed by its conversationKey so every
+   * spelling of a number lands on the same id
+   */
+  private toConversation(row: any): Conversation {
+    return {
+      id: row.conversationKey || row.phoneNumber,
+      threadId: row.threadId,
+      conversationKey: row.conversationKey,
+      phoneNumber: row.phoneNumber,
+      contactName: row.contactName || undefined,
+      subscriptionId: row.subscriptionId,
+      lastMessage: row.snippet || '',
+      lastMessageTime: row.date,
+      unreadCount: row.unreadCount,
+    };
+  }
+
+  /**
+   * Start the native incremental sync engine and subscribe to its deltas.
+   * Returns an unsubscribe function, or null when the engine is unavailable (callers should poll instead).
+   */
+  async startSync(onDelta: (delta: SyncDelta) => void): Promise<(() => void) | null> {
+    const { SmsSync } = NativeModules;
+    if (Platform.OS !== 'android' || !SmsSync) {
+      return null;
+    }
+
+    const subscription = DeviceEventEmitter.addListener('onSmsSyncDelta', (raw: any) => {
+      const toMessage = (sms: any): Message => {
+        const isSent = sms.type === 2;
+        return {
+          id: sms.id,
+          conversationId: sms.threadId,
+          phoneNumber: sms.address,
+          body: sms.body,
+          timestamp: sms.date,
+          type: isSent ? 'sent' : 'received',
+          status: isSent ? 'sent' : undefined,
+          read: sms.read,
+          subscriptionId: sms.subscriptionId,
+        };
+      };
+
+      onDelta({
+        inserted: raw.inserted.map(toMessage),
+        updated: raw.updated.map(toMessage),
+        deleted: raw.deleted,
+        conversations: raw.threads
+          .filter((row: any) => !!row.phoneNumber)
+          .map((row: any) => this.toConversation(row)),
+        deletedThreads: raw.deletedThreads,
+      });
+    });
+
+    try {
+      const mark = await SmsSync.start();
+      console.log(`[smsService] Incremental sync started at _id=${mark.id}`);
+    } catch (error) {
+      console.warn('[smsService] Could not start incremental sync:', error);
+      subscription.remove();
+      return null;
+    }
+
+    return () => subscription.remove();
+  }
+
+  /**
+   * Get the whole conversation list. Screens should page with getConversationListPage instead;
+   * this is for callers that need every conversation (e.g. web sync).
    */
   async getConversations(): Promise<Conversation[]> {
+    try {
+      const conversations: Conversation[] = [];
+      let cursor: ConversationListCursor | null = null;
+      do {
+        const page: { conversations: Conversation[]; nextCursor: ConversationListCursor | null } =
+          await this.getConversationListPage(cursor);
+        conversations.push(...page.conversations);
+        cursor = page.nextCursor;
+      } while (cursor);
+      return this.mergeConversations(conversations);
+    } catch (error) {
+      console.error('Error getting conversations:', error);
+      return [];
+    }
+  }
+
+  /**
+   * Build conversations grouped by phone number from every message (slow fallback)
+   */
+  private async readConversationsFromMessages(): Promise<Conversation[]> {
     try {
       const messages = await this.readAllMessages();
       const conversationsMap = new Map<string, Conversation>();
@@ -521,6 +852,24 @@ class SMSService {
     }
   }
 
+  /**
+   * Get unread counts for many conversations in one native call, keyed by thread_id.
+   * Omit threadIds to get every thread with unread messages.
+   */
+  async getUnreadCounts(threadIds?: string[]): Promise<Record<string, number>> {
+    const { SmsReadManager } = NativeModules;
+    if (Platform.OS !== 'android' || !SmsReadManager?.getUnreadCounts) {
+      return {};
+    }
+
+    try {
+      return await SmsReadManager.getUnreadCounts(threadIds ?? null);
+    } catch (error) {
+      console.error('[smsService] Error getting unread counts:', error);
+      return {};
+    }
+  }
+
   /**
    * Force refresh conversations to sync with Google Messages
    * This can be called after marking as read to ensure Google Messages updates
@@ -582,6 +931,91 @@ class SMSService {
       throw new Error(error.message || 'Failed to delete message');
     }
   }
+
+  /**
+   * Delete many messages with one native call and one provider delete (very large sets are split).
+   * onProgress receives aggregated progress after each delete; resolves with the rows deleted.
+   */
+  async deleteMessages(messageIds: string[], onProgress?: (progress: DeleteProgress) => void): Promise<number> {
+    if (EnhancedSmsManager?.deleteMessages) {
+      return this.runBulkDelete((operationId) => EnhancedSmsManager.deleteMessages(messageIds, operationId), onProgress);
+    }
+
+    // Older native builds: one call per message
+    for (const messageId of messageIds) {
+      await this.deleteSms(messageId);
+    }
+    return messageIds.length;
+  }
+
+  /**
+   * Delete whole conversations by thread id; resolves with the messages deleted
+   */
+  async deleteThreads(threadIds: string[], onProgress?: (progress: DeleteProgress) => void): Promise<number> {
+    if (Platform.OS !== 'android' || !EnhancedSmsManager?.deleteThreads) {
+      throw new Error('Thread delete is only supported on Android');
+    }
+    return this.runBulkDelete((operationId) => EnhancedSmsManager.deleteThreads(threadIds, operationId), onProgress);
+  }
+
+  /**
+   * Send one message to many recipients. The native side paces the sends under Android's
+   * outgoing SMS limit and reports aggregated progress about once a second; the promise
+   * resolves with the final counts once every message has been sent or has failed.
+   * Use cancelBulk(operationId) to stop queuing the rest.
+   */
+  async sendBulk(
+    recipients: string[],
+    message: string,
+    options: BulkSendOptions = {},
+    onProgress?: (progress: BulkSendProgress) => void
+  ): Promise<BulkSendProgress> {
+    if (Platform.OS !== 'android' || !EnhancedSmsManager?.sendBulk) {
+      throw new Error('Bulk sending is only supported on Android');
+    }
+
+    const operationId = options.operationId ?? `bulk_${Date.now()}_${Math.random().toString(36).slice(2, 8)}`;
+    const cleanNumbers = recipients.map((number) => number.replace(/[\s-()]/g, ''));
+    const subscription = onProgress
+      ? DeviceEventEmitter.addListener('onSmsBulkProgress', (progress: BulkSendProgress) => {
+          if (progress.operationId === operationId) onProgress(progress);
+        })
+      : null;
+
+    try {
+      return await EnhancedSmsManager.sendBulk(cleanNumbers, message, { ...options, operationId });
+    } finally {
+      subscription?.remove();
+    }
+  }
+
+  /**
+   * Stop a running bulk send; messages already handed to the radio are still sent
+   */
+  async cancelBulk(operationId: string): Promise<void> {
+    if (Platform.OS !== 'android' || !EnhancedSmsManager?.cancelBulk) {
+      return;
+    }
+    await EnhancedSmsManager.cancelBulk(operationId);
+  }
+
+  private async runBulkDelete(
+    run: (operationId: string) => Promise<number>,
+    onProgress?: (progress: DeleteProgress) => void
+  ): Promise<number> {
+    const operationId = `delete_${Date.now()}_${Math.random().toString(36).slice(2, 8)}`;
+    const subscription = onProgress
+      ? DeviceEventEmitter.addListener('onSmsDeleteProgress', (progress: DeleteProgress) => {
+          if (progress.operationId === operationId) onProgress(progress);
+        })
+      : null;
+
+    try {
+      return await run(operationId);
+    } finally {
+      subscription?.remove();
+    }
+  }
 }
 
 export default new SMSService();
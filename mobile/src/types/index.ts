@@ -8,15 +8,24 @@ export interface Message {
   status?: 'sending' | 'sent' | 'delivered' | 'failed';
   read: boolean;
   subscriptionId?: number; // For dual SIM support
+  attachments?: MessageAttachment[]; // MMS media parts
+}
+
+export interface MessageAttachment {
+  partId: string; // _id in content://mms/part
+  contentType: string;
 }
 
 export interface Conversation {
   id: string;
+  threadId?: string; // Provider thread_id when read through the native query
+  conversationKey?: string; // Canonical (E.164 where possible) address shared by every spelling of the number
   phoneNumber: string;
   contactName?: string;
   lastMessage: string;
   lastMessageTime: number;
   unreadCount: number;
+  subscriptionId?: number; // SIM of the newest message, when the native summary table provides it
 }
 
 export interface Contact {